@@ -0,0 +1,173 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Stops sending requests to an Elasticsearch cluster which keeps failing, so that producers don't wait for a
+ * timeout with every document.
+ * After the configured number of consecutive failed requests the breaker opens and rejects all requests for the
+ * cool-down time. Then the next request probes the cluster with {@link ElasticSearchAccess#testConnection()}, while
+ * the others are still rejected. If the probe succeeds, the breaker closes again, otherwise the cool-down starts over.
+ */
+@Restricted(NoExternalUse.class)
+public final class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    static final int DEFAULT_COOLDOWN_SECONDS = 30;
+
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final ElasticSearchAccess access;
+    private final int failureThreshold;
+    private final long cooldownMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    private long openedCount;
+    private long rejectedCount;
+
+    private long droppedCount;
+    private long reportedDrops;
+    private long lastDropReport;
+    private boolean dropsReported;
+
+    CircuitBreaker(ElasticSearchAccess access, int failureThreshold, long cooldownMillis) {
+        this.access = access;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.cooldownMillis = Math.max(0, cooldownMillis);
+    }
+
+    /**
+     * Decides whether a request may be sent. If the cool-down is over, the calling thread probes the cluster first.
+     *
+     * @return <code>false</code> if the request must not be sent, it is counted as rejected then
+     */
+    public boolean allowRequest() {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.HALF_OPEN || System.currentTimeMillis() - openedAt < cooldownMillis) {
+                rejectedCount++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            LOGGER.log(Level.INFO, "Circuit breaker for Elastic Search is half-open, probing the connection");
+        }
+        // probe outside of the lock, the other threads are rejected meanwhile
+        boolean reachable;
+        try {
+            access.testConnection();
+            reachable = true;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Probing Elastic Search failed", e);
+            reachable = false;
+        }
+        synchronized (this) {
+            if (reachable) {
+                close();
+                return true;
+            }
+            open();
+            rejectedCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Records a request which was sent successfully.
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            close();
+        }
+        failures = 0;
+    }
+
+    /**
+     * Records a request which failed.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            open();
+        }
+    }
+
+    /**
+     * Records documents which were dropped because their request was rejected. The first drop after the breaker
+     * opened is logged right away, the following ones at most once a minute with their number.
+     *
+     * @param documents
+     *            the number of dropped documents
+     */
+    public synchronized void recordDropped(long documents) {
+        droppedCount += documents;
+        long now = System.currentTimeMillis();
+        if (!dropsReported || now - lastDropReport > REPORT_INTERVAL_MILLIS) {
+            LOGGER.log(Level.WARNING, "Dropped {0} documents because the circuit breaker for Elastic Search is open, {1} altogether",
+                    new Object[] { droppedCount - reportedDrops, droppedCount });
+            reportedDrops = droppedCount;
+            lastDropReport = now;
+            dropsReported = true;
+        }
+    }
+
+    private void open() {
+        if (state == State.HALF_OPEN) {
+            LOGGER.log(Level.FINE, "Circuit breaker for Elastic Search opened again, the probe failed");
+        } else {
+            openedCount++;
+            dropsReported = false;
+            LOGGER.log(Level.WARNING, "Circuit breaker for Elastic Search opened after {0} failed requests, requests are rejected for {1} s",
+                    new Object[] { failures, TimeUnit.MILLISECONDS.toSeconds(cooldownMillis) });
+        }
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        LOGGER.log(Level.INFO, "Circuit breaker for Elastic Search closed, {0} requests have been rejected so far", rejectedCount);
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times the breaker opened, not counting failed probes
+     */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * @return the number of requests which were not sent because the breaker was open
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return the number of documents which were dropped because the breaker was open
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+}
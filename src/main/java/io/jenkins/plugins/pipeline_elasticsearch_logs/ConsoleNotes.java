@@ -29,12 +29,11 @@ package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import com.google.common.collect.ImmutableMap;
+import javax.annotation.CheckForNull;
 
 import hudson.console.ConsoleNote;
 
@@ -43,16 +42,139 @@ import hudson.console.ConsoleNote;
  */
 class ConsoleNotes {
 
-    private static final String MESSAGE_KEY = "message";
+    static final String MESSAGE_KEY = "message";
     private static final String ANNOTATIONS_KEY = "annotations";
     private static final String POSITION_KEY = "position";
     private static final String NOTE_KEY = "note";
+    static final String LINE_OFFSETS_KEY = "lineOffsets";
+    /**
+     * The number of bytes {@link #write(Writer, Map)} writes for a message document, so that a reader can skip the
+     * document without fetching its message.
+     */
+    static final String LOG_BYTES_KEY = "logBytes";
 
-    static void parse(byte[] b, int len, Map<String, Object> data, boolean saveAnnotations) {
+    /**
+     * The fields of a message document {@link #write(Writer, Map)} reads, the other fields need not be fetched.
+     */
+    static final String[] SOURCE_FIELDS = { MESSAGE_KEY, ANNOTATIONS_KEY, LINE_OFFSETS_KEY, RepeatedLine.REPEAT_COUNT_KEY, LOG_BYTES_KEY };
+
+    static final byte[] MESSAGE_NAME = JsonEncoder.name(MESSAGE_KEY);
+    static final byte[] ANNOTATIONS_NAME = JsonEncoder.name(ANNOTATIONS_KEY);
+    private static final byte[] POSITION_NAME = JsonEncoder.name(POSITION_KEY);
+    private static final byte[] NOTE_NAME = JsonEncoder.name(NOTE_KEY);
+    static final byte[] LOG_BYTES_NAME = JsonEncoder.name(LOG_BYTES_KEY);
+
+    /**
+     * Writes the message and, if requested, the annotations of a console line to the encoder.
+     * The line is scanned for notes at the byte level. Lines without notes are copied to the encoder in a single pass.
+     * The positions of the annotations are UTF-16 char offsets into the message, as expected by {@link #write(Writer, Map)}.
+     * The returned size is taken from the text the encoder wrote, so that malformed UTF-8, which is replaced, is
+     * counted as it is read back.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     * @param encoder
+     *            the encoder of the event document
+     * @param saveAnnotations
+     *            whether to write the annotations field
+     * @return the number of bytes {@link #write(Writer, Map)} writes for the line
+     */
+    static int parse(byte[] b, int len, JsonEncoder encoder, boolean saveAnnotations) {
         assert len > 0 && len <= b.length;
 
-        assert data != null;
+        long text = encoder.textLength();
+        int eol = lineEnd(b, len);
+        if (indexOf(b, 0, eol, ConsoleNote.PREAMBLE) == -1) {
+            // Shortcut for the common case that we have no notes.
+            encoder.field(MESSAGE_NAME, b, 0, eol);
+            return (int) (encoder.textLength() - text) + 1;
+        }
+
+        JsonEncoder annotations = saveAnnotations ? new JsonEncoder() : null;
+        encoder.startString(MESSAGE_NAME);
+        appendMessage(b, eol, encoder, 0, annotations);
+        encoder.endString();
+        int logLength = (int) (encoder.textLength() - text) + 1;
+        if (annotations != null) {
+            encoder.startArray(ANNOTATIONS_NAME).append(annotations).endArray();
+            logLength += (int) annotations.textLength() + markersLength(b, len);
+        }
+        return logLength;
+    }
+
+    /**
+     * Appends the message of a console line to a string started in the message encoder, e.g. to collect several lines
+     * in one document.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     * @param message
+     *            the encoder of the message
+     * @param position
+     *            the UTF-16 length of the message so far, the positions of the annotations are relative to its start
+     * @param annotations
+     *            the encoder to append the annotation objects to or null to drop the annotations
+     * @return the UTF-16 length of the appended text
+     */
+    static int appendLine(byte[] b, int len, JsonEncoder message, int position, @CheckForNull JsonEncoder annotations) {
+        return appendMessage(b, lineEnd(b, len), message, position, annotations);
+    }
+
+    private static int appendMessage(byte[] b, int eol, JsonEncoder message, int position, @CheckForNull JsonEncoder annotations) {
+        int start = position;
+        int pos = 0;
+        int preamble = indexOf(b, 0, eol, ConsoleNote.PREAMBLE);
+        while (preamble != -1) {
+            int endOfPreamble = preamble + ConsoleNote.PREAMBLE.length;
+            int postamble = indexOf(b, endOfPreamble, eol, ConsoleNote.POSTAMBLE);
+            if (postamble == -1) {
+                // Malformed; stop here.
+                break;
+            }
+            position += message.appendUtf8(b, pos, preamble - pos);
+            if (annotations != null) {
+                annotations.startObject();
+                annotations.field(POSITION_NAME, position);
+                annotations.field(NOTE_NAME, b, endOfPreamble, postamble - endOfPreamble);
+                annotations.endObject();
+            }
+            pos = postamble + ConsoleNote.POSTAMBLE.length;
+            preamble = indexOf(b, pos, eol, ConsoleNote.PREAMBLE);
+        }
+        position += message.appendUtf8(b, pos, eol - pos); // append tail
+        return position - start;
+    }
+
+    /**
+     * Returns the number of bytes of the preambles and postambles of the complete notes of a console line, which
+     * {@link #write(Writer, Map)} writes around the saved annotations.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     */
+    static int markersLength(byte[] b, int len) {
+        int eol = lineEnd(b, len);
+        int length = 0;
+        int preamble = indexOf(b, 0, eol, ConsoleNote.PREAMBLE);
+        while (preamble != -1) {
+            int postamble = indexOf(b, preamble + ConsoleNote.PREAMBLE.length, eol, ConsoleNote.POSTAMBLE);
+            if (postamble == -1) {
+                // Malformed; kept in the message by parse.
+                break;
+            }
+            length += ConsoleNote.PREAMBLE.length + ConsoleNote.POSTAMBLE.length;
+            preamble = indexOf(b, postamble + ConsoleNote.POSTAMBLE.length, eol, ConsoleNote.PREAMBLE);
+        }
+        return length;
+    }
 
+    private static int lineEnd(byte[] b, int len) {
         int eol = len;
         while (eol > 0) {
             byte c = b[eol - 1];
@@ -62,62 +184,94 @@ class ConsoleNotes {
                 break;
             }
         }
+        return eol;
+    }
 
-        String line = new String(b, 0, eol, StandardCharsets.UTF_8);
-
-        // Would be more efficient to do searches at the byte[] level, but too much bother for now,
-        // especially since there is no standard library method to do offset searches like String has.
-        if (!line.contains(ConsoleNote.PREAMBLE_STR)) {
-            // Shortcut for the common case that we have no notes.
-            data.put(MESSAGE_KEY, line);
-        } else {
-            StringBuilder buf = new StringBuilder();
-            List<Map<String, Object>> annotations = new ArrayList<>();
-            int pos = 0;
-            while (true) {
-                int preamble = line.indexOf(ConsoleNote.PREAMBLE_STR, pos);
-                if (preamble == -1) {
-                    break;
-                }
-                int endOfPreamble = preamble + ConsoleNote.PREAMBLE_STR.length();
-                int postamble = line.indexOf(ConsoleNote.POSTAMBLE_STR, endOfPreamble);
-                if (postamble == -1) {
-                    // Malformed; stop here.
-                    break;
-                }
-                buf.append(line, pos, preamble);
-                annotations.add(ImmutableMap.of(POSITION_KEY, buf.length(), NOTE_KEY, line.substring(endOfPreamble, postamble)));
-                pos = postamble + ConsoleNote.POSTAMBLE_STR.length();
+    private static int indexOf(byte[] b, int from, int to, byte[] pattern) {
+        int last = to - pattern.length;
+        byte first = pattern[0];
+        outer: for (int i = from; i <= last; i++) {
+            if (b[i] != first) {
+                continue;
             }
-            buf.append(line, pos, line.length()); // append tail
-            data.put(MESSAGE_KEY, buf.toString());
-            if (saveAnnotations) {
-                data.put(ANNOTATIONS_KEY, annotations);
+            for (int j = 1; j < pattern.length; j++) {
+                if (b[i + j] != pattern[j]) {
+                    continue outer;
+                }
             }
+            return i;
         }
+        return -1;
     }
 
+    /**
+     * Writes the lines of a message document with the annotations reinserted. A chunk of several lines is expanded
+     * with its line offsets, a repeated line is written as often as it was repeated.
+     */
     static void write(Writer w, Map<String, Object> source) throws IOException {
+        long lines = getRepeatCount(source);
+        for (long i = 0; i < lines; i++) {
+            writeOnce(w, source);
+        }
+    }
+
+    /**
+     * @return how often {@link #write(Writer, Map)} writes the line of a repeated line document, 1 for other documents
+     */
+    static long getRepeatCount(Map<String, Object> source) {
+        if (source == null) throw new NullPointerException("source is null");
+        Object repeatCount = source.get(RepeatedLine.REPEAT_COUNT_KEY);
+        return repeatCount instanceof Number ? ((Number) repeatCount).longValue() : 1;
+    }
+
+    /**
+     * Writes the lines of a message document like {@link #write(Writer, Map)}, but a repeated line only once, so that
+     * a reader can repeat the written bytes instead of holding all repetitions.
+     */
+    static void writeOnce(Writer w, Map<String, Object> source) throws IOException {
         if (source == null) throw new NullPointerException("source is null");
         String message = (String) source.get(MESSAGE_KEY);
         Object annotations = source.get(ANNOTATIONS_KEY);
-        if (annotations == null || !(annotations instanceof ArrayList)) {
-            w.write(message);
+        List<?> notes = annotations instanceof List ? (List<?>) annotations : Collections.emptyList();
+        Object lineOffsets = source.get(LINE_OFFSETS_KEY);
+        if (lineOffsets instanceof List) {
+            List<?> offsets = (List<?>) lineOffsets;
+            int note = 0;
+            for (int i = 0; i < offsets.size(); i++) {
+                int start = ((Number) offsets.get(i)).intValue();
+                // the lines are separated by a line break
+                int end = i + 1 < offsets.size() ? ((Number) offsets.get(i + 1)).intValue() - 1 : message.length();
+                note = writeLine(w, message, start, end, notes, note);
+            }
         } else {
-            int pos = 0;
-            for (Object o : (ArrayList<Object>) annotations) {
-                Map<String, Object> annotation = (Map<String, Object>) o;
-                int position = (Integer) annotation.get(POSITION_KEY);
-                String note = (String) annotation.get(NOTE_KEY);
-                w.write(message, pos, position - pos);
-                w.write(ConsoleNote.PREAMBLE_STR);
-                w.write(note);
-                w.write(ConsoleNote.POSTAMBLE_STR);
-                pos = position;
+            writeLine(w, message, 0, message.length(), notes, 0);
+        }
+    }
+
+    /**
+     * Writes a line of the message with the annotations which belong to it.
+     *
+     * @return the index of the first annotation of the next line
+     */
+    private static int writeLine(Writer w, String message, int start, int end, List<?> annotations, int first) throws IOException {
+        int pos = start;
+        int i = first;
+        for (; i < annotations.size(); i++) {
+            Map<?, ?> annotation = (Map<?, ?>) annotations.get(i);
+            int position = ((Number) annotation.get(POSITION_KEY)).intValue();
+            if (position > end) {
+                break;
             }
-            w.write(message, pos, message.length() - pos);
+            String note = (String) annotation.get(NOTE_KEY);
+            w.write(message, pos, position - pos);
+            w.write(ConsoleNote.PREAMBLE_STR);
+            w.write(note);
+            w.write(ConsoleNote.POSTAMBLE_STR);
+            pos = position;
         }
+        w.write(message, pos, end - pos);
         w.write('\n');
+        return i;
     }
 
     private ConsoleNotes() {
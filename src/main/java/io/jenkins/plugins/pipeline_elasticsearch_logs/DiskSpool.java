@@ -0,0 +1,117 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * An append-only file of length-prefixed records which are read back in the order they were written.
+ * The file is truncated whenever all records have been read.
+ */
+class DiskSpool {
+
+    private final File directory;
+
+    private File file;
+    private FileChannel channel;
+    private long readPosition;
+    private long writePosition;
+    private long records;
+
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    DiskSpool(File directory) {
+        this.directory = directory;
+    }
+
+    boolean isEmpty() {
+        return records == 0;
+    }
+
+    long size() {
+        return records;
+    }
+
+    void append(byte[] b, int off, int len) throws IOException {
+        FileChannel channel = getChannel();
+        header.clear();
+        header.putInt(len).flip();
+        writeFully(channel, header, writePosition);
+        writeFully(channel, ByteBuffer.wrap(b, off, len), writePosition + 4);
+        writePosition += 4 + len;
+        records++;
+    }
+
+    /**
+     * @return the length of the next record without reading it
+     */
+    int peekLength() throws IOException {
+        header.clear();
+        readFully(channel, header, readPosition);
+        header.flip();
+        return header.getInt();
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the record or null if the spool is empty
+     */
+    byte[] next() throws IOException {
+        if (records == 0) {
+            return null;
+        }
+        byte[] record = new byte[peekLength()];
+        readFully(channel, ByteBuffer.wrap(record), readPosition + 4);
+        readPosition += 4 + record.length;
+        records--;
+        if (records == 0) {
+            channel.truncate(0);
+            readPosition = 0;
+            writePosition = 0;
+        }
+        return record;
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            Files.deleteIfExists(file.toPath());
+        }
+        records = 0;
+        readPosition = 0;
+        writePosition = 0;
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(directory.toPath());
+            file = new File(directory, "spill-" + UUID.randomUUID() + ".bin");
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool file " + channel);
+            }
+            position += read;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.IOException;
+
+/**
+ * Holds documents between the producers and the {@link ElasticSearchBulkProcessor}.
+ * Documents are taken in the order they were added.
+ */
+interface DocumentBuffer {
+
+    /**
+     * Receives the records taken from the buffer.
+     */
+    interface RecordSink {
+        void accept(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * Adds a record to the buffer.
+     */
+    void put(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return true if a record of the size can never be stored and the overflow policy does not allow to drop it, then
+     *         it has to be sent without the buffer
+     */
+    default boolean isTooLarge(int len) {
+        return false;
+    }
+
+    /**
+     * Takes records from the buffer and passes them to the sink.
+     *
+     * @param sink
+     *            receives the records
+     * @param maxRecords
+     *            the maximum number of records to take
+     * @param maxBytes
+     *            the maximum number of bytes to take, at least one record is taken anyway
+     * @return the number of records taken
+     */
+    int drainTo(RecordSink sink, int maxRecords, long maxBytes) throws IOException;
+
+    /**
+     * Acknowledges the records taken since the last call to {@link #commit()} or {@link #rollback()}.
+     */
+    default void commit() throws IOException {
+    }
+
+    /**
+     * Returns the records taken since the last call to {@link #commit()} to the buffer, if the buffer is durable.
+     */
+    default void rollback() throws IOException {
+    }
+
+    /**
+     * @return true if records survive a failed request and a restart of the JVM
+     */
+    default boolean isDurable() {
+        return false;
+    }
+
+    boolean isEmpty();
+
+    int size();
+
+    long usedBytes();
+
+    /**
+     * @return the number of records added to the buffer
+     */
+    long getPutCount();
+
+    /**
+     * @return the number of records which have left the buffer, including dropped ones
+     */
+    long getTakeCount();
+
+    default long getBlockedCount() {
+        return 0;
+    }
+
+    default long getDroppedNewestCount() {
+        return 0;
+    }
+
+    default long getDroppedOldestCount() {
+        return 0;
+    }
+
+    default long getSpilledCount() {
+        return 0;
+    }
+
+    /**
+     * Releases the resources of the buffer. A durable buffer keeps the records which were not committed.
+     */
+    default void close() throws IOException {
+    }
+
+}
@@ -4,18 +4,22 @@ import static com.google.common.collect.Ranges.closedOpen;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -24,16 +28,22 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -42,15 +52,27 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import com.google.common.collect.Range;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 /**
  * Post data to Elastic Search.
- *
+ * Every request is sent once, it is only sent to the next node if a node is unavailable. The callers retry bulk requests
+ * which Elasticsearch rejects with 429 because it is overloaded, or fails with a server error, after a delay, see
+ * {@link #getRetryDelay(int, long, long)}. Of a bulk request only the rejected documents are sent again, see
+ * {@link BulkItemsFailure}. Documents with an id are not indexed twice by a repeated request.
  */
 public class ElasticSearchAccess {
     private static final Logger LOGGER = Logger.getLogger(ElasticSearchAccess.class.getName());
 
     private static final Range<Integer> SUCCESS_CODES = closedOpen(200, 300);
 
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private static final byte[] BULK_INDEX_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+
     private final URI uri;
 
     @CheckForNull
@@ -63,8 +85,15 @@ public class ElasticSearchAccess {
 
     private KeyStore trustKeyStore;
 
-    @CheckForNull
-    private transient HttpClientBuilder clientBuilder;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    private int compressionThreshold = -1;
+
+    private List<URI> additionalNodes = Collections.emptyList();
+
+    private boolean sniffNodes;
+
+    private transient ElasticSearchNodes nodes;
 
     public ElasticSearchAccess(URI uri, String username, String password) {
         this.uri = uri;
@@ -76,6 +105,52 @@ public class ElasticSearchAccess {
         this.trustKeyStore = trustKeyStore;
     }
 
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Enables gzip compression of request bodies.
+     *
+     * @param compressionThreshold
+     *            the minimum size of a request body in bytes to compress it, a negative value disables compression
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Spreads the requests across several nodes of the cluster.
+     *
+     * @param additionalNodes
+     *            further nodes besides the one of the URI, only scheme, host and port are used
+     * @param sniffNodes
+     *            whether to use the http nodes the cluster reports instead of the configured ones
+     */
+    public void setNodes(List<URI> additionalNodes, boolean sniffNodes) {
+        this.additionalNodes = new ArrayList<>(additionalNodes);
+        this.sniffNodes = sniffNodes;
+    }
+
+    private ElasticSearchNodes getNodes() {
+        if (nodes == null) {
+            List<HttpHost> hosts = new ArrayList<>();
+            hosts.add(toHttpHost(uri));
+            for (URI node : additionalNodes) {
+                HttpHost host = toHttpHost(node);
+                if (!hosts.contains(host)) {
+                    hosts.add(host);
+                }
+            }
+            nodes = ElasticSearchNodes.get(hosts, sniffNodes);
+        }
+        return nodes;
+    }
+
+    private static HttpHost toHttpHost(URI uri) {
+        return new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    }
+
     @CheckForNull
     private String getAuth() {
         if (auth == null && StringUtils.isNotBlank(username)) {
@@ -84,68 +159,170 @@ public class ElasticSearchAccess {
         return auth;
     }
 
-    private HttpPost getHttpPost(String data) {
-        HttpPost postRequest = new HttpPost(uri);
+    /**
+     * Creates the request which indexes a document, a POST to the index URI or, if the document has an id, a PUT to
+     * the URI of the document.
+     */
+    private HttpEntityEnclosingRequestBase getIndexRequest(String data, @CheckForNull String id, @CheckForNull String routing)
+            throws IOException {
+        String path = uri.getRawPath();
+        String routingParameter = routing != null ? "routing=" + URLEncoder.encode(routing, StandardCharsets.UTF_8.name()) : null;
+        HttpEntityEnclosingRequestBase request;
+        if (id == null) {
+            request = new HttpPost(withQuery(path, routingParameter));
+        } else {
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            // URLEncoder encodes form data, a space in a path is %20
+            String encodedId = URLEncoder.encode(id, StandardCharsets.UTF_8.name()).replace("+", "%20");
+            request = new HttpPut(withQuery(path + "/" + encodedId, routingParameter));
+        }
         // char encoding is set to UTF_8 since this request posts a JSON string
-        StringEntity input = new StringEntity(data, StandardCharsets.UTF_8);
-        input.setContentType(ContentType.APPLICATION_JSON.toString());
-        postRequest.setEntity(input);
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        request.setEntity(createEntity(bytes, bytes.length, ContentType.APPLICATION_JSON));
         auth = getAuth();
         if (auth != null) {
-            postRequest.addHeader("Authorization", "Basic " + auth);
+            request.addHeader("Authorization", "Basic " + auth);
+        }
+        return request;
+    }
+
+    private String withQuery(String path, @CheckForNull String parameter) {
+        String query = uri.getRawQuery();
+        if (parameter != null) {
+            query = query != null ? query + "&" + parameter : parameter;
+        }
+        return query != null ? path + "?" + query : path;
+    }
+
+    /**
+     * Creates the request entity, compressed if it reaches the compression threshold.
+     */
+    private HttpEntity createEntity(byte[] body, int length, ContentType contentType) throws IOException {
+        if (compressionThreshold < 0 || length < compressionThreshold) {
+            return new ByteArrayEntity(body, 0, length, contentType);
         }
-        return postRequest;
+        CompressedBody compressed = new CompressedBody(length / 4);
+        try (GZIPOutputStream gzip = new FastGZIPOutputStream(compressed)) {
+            gzip.write(body, 0, length);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.getBuffer(), 0, compressed.size(), contentType);
+        entity.setContentEncoding("gzip");
+        return entity;
+    }
+
+    private String getBulkPath() {
+        String path = uri.getRawPath();
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        String index = path.split("/")[0];
+        return "/" + index + "/_bulk";
     }
 
     public RestHighLevelClient createNewRestClient() {
-        RestClientBuilder builder = RestClient.builder(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()));
+        RestClientBuilder builder = RestClient.builder(getNodes().getHosts().toArray(new HttpHost[0]));
         if (getAuth() != null) builder.setDefaultHeaders(new Header[] { new BasicHeader("Authorization", "Basic " + getAuth()) });
         return new RestHighLevelClient(builder);
     }
 
     @Nonnull
-    private HttpClientBuilder getClientBuilder() {
-        if (clientBuilder == null) {
-            clientBuilder = HttpClientBuilder.create();
-            RequestConfig.Builder requestBuilder = RequestConfig.custom();
-            requestBuilder.setConnectTimeout(2000);
-            requestBuilder.setConnectionRequestTimeout(2000);
-            requestBuilder.setSocketTimeout(2000);
-            clientBuilder.setDefaultRequestConfig(requestBuilder.build());
-            if (trustKeyStore != null) {
-                try {
-                    SSLHelper.setClientBuilderSSLContext(clientBuilder, trustKeyStore);
-                } catch (KeyManagementException | CertificateException | NoSuchAlgorithmException | KeyStoreException | IOException e) {
-                    LOGGER.log(Level.SEVERE, "Failed to set SSLContext for http client. Will try without.", e);
-                }
-            }
-        }
-        return clientBuilder;
+    private CloseableHttpClient getHttpClient() {
+        return ElasticSearchHttpClients.get(trustKeyStore, maxConnectionsPerRoute);
     }
 
     @Restricted(NoExternalUse.class)
     String testConnection() throws URISyntaxException, IOException {
-        URI testUri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), null, null, null);
-        HttpGet getRequest = new HttpGet(testUri);
+        HttpGet getRequest = new HttpGet("/");
         String auth = getAuth();
         if (auth != null) {
             getRequest.addHeader("Authorization", "Basic " + auth);
         }
 
-        try (CloseableHttpClient httpClient = getClientBuilder().build()) {
-            try (CloseableHttpResponse response = httpClient.execute(getRequest)) {
-                if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
-                    String errorMessage = this.getErrorMessage(response);
-                    throw new IOException(errorMessage);
-                }
-            } catch (Exception e) {
-                throw new IOException(e);
+        try (CloseableHttpResponse response = execute(getRequest)) {
+            if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
+                String errorMessage = this.getErrorMessage(response);
+                throw new IOException(errorMessage);
             }
+            EntityUtils.consume(response.getEntity());
+        } catch (Exception e) {
+            throw new IOException(e);
         }
 
         return "";
     }
 
+    /**
+     * Reads a JSON resource of the cluster, e.g. an index template.
+     *
+     * @param path
+     *            the path of the resource, starting with a slash
+     * @return the resource or null if it does not exist
+     * @throws IOException
+     */
+    @CheckForNull
+    JSONObject getJson(String path) throws IOException {
+        HttpGet getRequest = new HttpGet(path);
+        String auth = getAuth();
+        if (auth != null) {
+            getRequest.addHeader("Authorization", "Basic " + auth);
+        }
+
+        try (CloseableHttpResponse response = execute(getRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 404) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return null;
+            }
+            if (!SUCCESS_CODES.contains(statusCode)) {
+                throw new IOException(getErrorMessage(response));
+            }
+            return JSONObject.fromObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Creates or replaces a JSON resource of the cluster, e.g. an index template.
+     *
+     * @param path
+     *            the path of the resource, starting with a slash
+     * @throws IOException
+     */
+    void putJson(String path, JSONObject resource) throws IOException {
+        HttpPut putRequest = new HttpPut(path);
+        byte[] bytes = resource.toString().getBytes(StandardCharsets.UTF_8);
+        putRequest.setEntity(createEntity(bytes, bytes.length, ContentType.APPLICATION_JSON));
+        String auth = getAuth();
+        if (auth != null) {
+            putRequest.addHeader("Authorization", "Basic " + auth);
+        }
+
+        try (CloseableHttpResponse response = execute(putRequest)) {
+            if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
+                throw new IOException(getErrorMessage(response));
+            }
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the name of the index the documents are sent to, the first segment of the path of the URI
+     */
+    static String getIndex(URI uri) {
+        String path = uri.getPath();
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        return path.split("/")[0];
+    }
+
     /**
      * Posts the given string to elastic search.
      *
@@ -154,21 +331,361 @@ public class ElasticSearchAccess {
      * @throws IOException
      */
     public void push(String data) throws IOException {
-        HttpPost post = getHttpPost(data);
+        push(data, null, null);
+    }
+
+    /**
+     * Indexes the given document with a single request. It is not sent again if it fails, because this method is
+     * called on the threads which write the log and run the pipeline, which must not wait for Elastic Search to
+     * recover. Failed requests are retried in the background in bulk mode, see {@link ElasticSearchBulkProcessor}.
+     *
+     * @param data
+     *            The JSON document to index
+     * @param id
+     *            the id of the document, so that it is not indexed twice if a request is sent again, or null to let
+     *            Elasticsearch generate one
+     * @param routing
+     *            the value which selects the shard of the document, or null to route by id
+     * @throws IOException
+     */
+    public void push(String data, @CheckForNull String id, @CheckForNull String routing) throws IOException {
+        HttpEntityEnclosingRequestBase request = getIndexRequest(data, id, routing);
+
+        try (CloseableHttpResponse response = execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (!SUCCESS_CODES.contains(statusCode)) {
+                throw new IOException(getErrorMessage(response));
+            }
+            // the response must be consumed completely, otherwise the connection is not reused
+            EntityUtils.consume(response.getEntity());
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Posts the given documents to the bulk endpoint of the index in a single request.
+     *
+     * @param documents
+     *            The JSON documents to index
+     * @throws IOException
+     *             if the request failed or Elastic Search rejected any of the documents
+     */
+    public void pushBulk(List<String> documents) throws IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (String document : documents) {
+            body.write(BULK_INDEX_ACTION);
+            body.write(document.getBytes(StandardCharsets.UTF_8));
+            body.write('\n');
+        }
+        pushBulk(body.toByteArray(), body.size());
+    }
+
+    /**
+     * Posts a bulk request body to the bulk endpoint of the index.
+     *
+     * @param body
+     *            the newline delimited actions and documents, UTF-8 encoded
+     * @param length
+     *            the number of bytes of the body to send
+     * @throws IOException
+     *             if the request failed, or a {@link BulkItemsFailure} if Elastic Search rejected some of the
+     *             documents
+     */
+    public void pushBulk(byte[] body, int length) throws IOException {
+        try {
+            HttpPost post = getBulkPost(body, length);
+            try (CloseableHttpResponse response = execute(post)) {
+                checkBulkResponse(response, body, length);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
 
-        try (CloseableHttpClient httpClient = getClientBuilder().build()) {
-            try (CloseableHttpResponse response = httpClient.execute(post)) {
-                if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
-                    String errorMessage = this.getErrorMessage(response);
-                    throw new IOException(errorMessage);
+    /**
+     * Posts a bulk request body to the bulk endpoint of the index without blocking the calling thread. Like
+     * {@link #pushBulk(byte[], int)}, the request is sent to the next node if a node fails.
+     * The callback is called on the I/O thread of the client, so it must not block.
+     *
+     * @param body
+     *            the newline delimited actions and documents, UTF-8 encoded, must not be changed until the callback
+     *            was called
+     * @param length
+     *            the number of bytes of the body to send
+     * @param callback
+     *            receives an IOException if the request failed, or a {@link BulkItemsFailure} if Elastic Search
+     *            rejected some of the documents
+     * @throws IOException
+     *             if the request could not be started
+     */
+    public void pushBulkAsync(byte[] body, int length, FutureCallback<Void> callback) throws IOException {
+        HttpPost post = getBulkPost(body, length);
+        ElasticSearchNodes nodes = getNodes();
+        if (nodes.claimSniff()) {
+            sniff(nodes);
+        }
+        executeAsync(ElasticSearchHttpClients.getAsync(trustKeyStore, maxConnectionsPerRoute), post, 1, nodes.size(),
+                new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        try {
+                            checkBulkResponse(response, body, length);
+                        } catch (IOException e) {
+                            callback.failed(e);
+                            return;
+                        } catch (RuntimeException e) {
+                            callback.failed(new IOException(e));
+                            return;
+                        }
+                        callback.completed(null);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        callback.failed(e instanceof IOException ? e : new IOException(e));
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        callback.cancelled();
+                    }
+                });
+    }
+
+    private HttpPost getBulkPost(byte[] body, int length) throws IOException {
+        HttpPost post = new HttpPost(getBulkPath());
+        post.setEntity(createEntity(body, length, ContentType.create("application/x-ndjson", StandardCharsets.UTF_8)));
+        String auth = getAuth();
+        if (auth != null) {
+            post.addHeader("Authorization", "Basic " + auth);
+        }
+        return post;
+    }
+
+    private void checkBulkResponse(HttpResponse response, byte[] body, int length) throws IOException {
+        if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
+            String errorMessage = this.getErrorMessage(response);
+            throw new IOException(errorMessage);
+        }
+        JSONObject result = JSONObject.fromObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+        if (result.optBoolean("errors")) {
+            List<Integer> retryable = new ArrayList<>();
+            int failed = getFailedItems(result, retryable);
+            byte[] retryBody = retryable.isEmpty() ? null : selectItems(body, length, retryable);
+            throw new BulkItemsFailure(getBulkErrorMessage(result), retryBody, retryable.size(), failed - retryable.size());
+        }
+    }
+
+    /**
+     * Sends a request to the node selected by {@link ElasticSearchNodes}. If the node cannot be reached or is
+     * unavailable, it is marked dead and the request is sent to the next node, until every node has been tried once.
+     *
+     * @param request
+     *            the request with a URI relative to the node, with a repeatable entity
+     * @return the response, which must be closed by the caller
+     */
+    private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+        ElasticSearchNodes nodes = getNodes();
+        if (nodes.claimSniff()) {
+            sniff(nodes);
+        }
+        int attempts = nodes.size();
+        IOException failure = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            ElasticSearchNodes.Node node = nodes.select();
+            node.begin();
+            try {
+                CloseableHttpResponse response = getHttpClient().execute(node.getHost(), request);
+                if (!isUnavailable(response.getStatusLine().getStatusCode())) {
+                    node.markAlive();
+                    return response;
+                }
+                node.markDead();
+                if (attempt == attempts) {
+                    return response;
                 }
-            } catch (Exception e) {
-                throw new IOException(e);
+                EntityUtils.consumeQuietly(response.getEntity());
+                response.close();
+            } catch (IOException e) {
+                node.markDead();
+                failure = e;
+            } finally {
+                node.end();
             }
+            request.reset();
         }
+        throw failure;
     }
 
-    private String getErrorMessage(CloseableHttpResponse response) {
+    /**
+     * Sends a request like {@link #execute(HttpRequestBase)}, but the next node is tried from the callback of the
+     * failed attempt.
+     */
+    private void executeAsync(CloseableHttpAsyncClient client, HttpRequestBase request, int attempt, int attempts,
+            FutureCallback<HttpResponse> callback) {
+        ElasticSearchNodes.Node node = getNodes().select();
+        node.begin();
+        client.execute(node.getHost(), request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                node.end();
+                if (!isUnavailable(response.getStatusLine().getStatusCode())) {
+                    node.markAlive();
+                    callback.completed(response);
+                    return;
+                }
+                node.markDead();
+                if (attempt == attempts) {
+                    callback.completed(response);
+                    return;
+                }
+                EntityUtils.consumeQuietly(response.getEntity());
+                executeAsync(client, request, attempt + 1, attempts, callback);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                node.end();
+                node.markDead();
+                if (attempt == attempts) {
+                    callback.failed(e);
+                    return;
+                }
+                executeAsync(client, request, attempt + 1, attempts, callback);
+            }
+
+            @Override
+            public void cancelled() {
+                node.end();
+                callback.cancelled();
+            }
+        });
+    }
+
+    /**
+     * @return whether a request which failed with the status code may succeed later, 429 means that Elasticsearch
+     *         rejected the request because its queues are full
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Returns the delay before the next attempt. It grows exponentially and half of it is random, so that the
+     * clients which failed at the same time do not retry at the same time.
+     *
+     * @param attempt
+     *            the number of the failed attempt, starting with 1
+     */
+    static long getRetryDelay(int attempt, long minDelayMillis, long maxDelayMillis) {
+        long delay = Math.min(maxDelayMillis, minDelayMillis << Math.min(attempt - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Collects the positions of the items of a bulk response which failed, but may succeed later.
+     *
+     * @return the number of failed items
+     */
+    static int getFailedItems(JSONObject result, List<Integer> retryable) {
+        int failed = 0;
+        JSONArray items = result.optJSONArray("items");
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                JSONObject item = items.getJSONObject(i).optJSONObject("index");
+                if (item != null && item.has("error")) {
+                    failed++;
+                    if (isRetryable(item.optInt("status"))) {
+                        retryable.add(i);
+                    }
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Copies the given items of a bulk request body, each an action line followed by a document line.
+     *
+     * @param items
+     *            the positions of the items in ascending order
+     */
+    static byte[] selectItems(byte[] body, int length, List<Integer> items) {
+        ByteArrayOutputStream selected = new ByteArrayOutputStream();
+        int start = 0;
+        int item = 0;
+        int next = 0;
+        while (start < length && next < items.size()) {
+            int end = Math.min(length, nextLine(body, nextLine(body, start, length), length));
+            if (item == items.get(next)) {
+                selected.write(body, start, end - start);
+                next++;
+            }
+            item++;
+            start = end;
+        }
+        return selected.toByteArray();
+    }
+
+    private static int nextLine(byte[] body, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (body[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isUnavailable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Replaces the nodes by the http nodes the cluster reports.
+     */
+    private void sniff(ElasticSearchNodes nodes) {
+        HttpGet getRequest = new HttpGet("/_nodes/http");
+        String auth = getAuth();
+        if (auth != null) {
+            getRequest.addHeader("Authorization", "Basic " + auth);
+        }
+        ElasticSearchNodes.Node node = nodes.select();
+        try (CloseableHttpResponse response = getHttpClient().execute(node.getHost(), getRequest)) {
+            if (!SUCCESS_CODES.contains(response.getStatusLine().getStatusCode())) {
+                throw new IOException(getErrorMessage(response));
+            }
+            JSONObject result = JSONObject.fromObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+            nodes.update(ElasticSearchNodes.parseHttpNodes(result, uri.getScheme()));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to sniff the Elasticsearch nodes from " + node.getHost(), e);
+        }
+    }
+
+    private String getBulkErrorMessage(JSONObject result) {
+        int failed = 0;
+        Object firstError = null;
+        JSONArray items = result.optJSONArray("items");
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                JSONObject item = items.getJSONObject(i).optJSONObject("index");
+                if (item != null && item.has("error")) {
+                    failed++;
+                    if (firstError == null) {
+                        firstError = item.get("error");
+                    }
+                }
+            }
+        }
+        return String.format("Elastic Search rejected %d documents of a bulk request. URI: %s, first error: %s", failed, uri, firstError);
+    }
+
+    private String getErrorMessage(HttpResponse response) {
         ByteArrayOutputStream byteStream = null;
         PrintStream stream = null;
         try {
@@ -196,4 +713,63 @@ public class ElasticSearchAccess {
         }
     }
 
+    /**
+     * Elastic Search processed a bulk request, but failed to index some of its documents.
+     */
+    static class BulkItemsFailure extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @CheckForNull
+        private final transient byte[] retryBody;
+        private final int retryableItems;
+        private final int rejectedItems;
+
+        BulkItemsFailure(String message, @CheckForNull byte[] retryBody, int retryableItems, int rejectedItems) {
+            super(message);
+            this.retryBody = retryBody;
+            this.retryableItems = retryableItems;
+            this.rejectedItems = rejectedItems;
+        }
+
+        /**
+         * @return the bulk request body with the items which failed with 429 or a server error and may succeed when
+         *         they are sent again, null if there are none
+         */
+        @CheckForNull
+        byte[] getRetryBody() {
+            return retryBody;
+        }
+
+        int getRetryableItems() {
+            return retryableItems;
+        }
+
+        /**
+         * @return the number of documents which Elasticsearch cannot index, e.g. because of a mapping conflict
+         */
+        int getRejectedItems() {
+            return rejectedItems;
+        }
+    }
+
+    private static class CompressedBody extends ByteArrayOutputStream {
+        CompressedBody(int size) {
+            super(Math.max(size, 32));
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Log lines compress well even with the fastest level, which keeps the CPU usage on the agents low.
+     */
+    private static class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, 8192);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
 }
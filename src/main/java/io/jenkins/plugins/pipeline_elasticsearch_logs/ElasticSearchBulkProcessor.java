@@ -0,0 +1,709 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Collects documents in a {@link DocumentBuffer}, by default a bounded {@link LogRingBuffer}, and sends them to the
+ * Elasticsearch <code>_bulk</code> endpoint in the background.
+ * A batch is sent as soon as it reaches the configured number of documents or bytes, or when the
+ * first document of the batch has waited for the configured linger time.
+ * Batches of one processor are always sent in the order the documents were added.
+ * A batch which could not be sent is sent again after a growing delay by a task scheduled on the executor, no thread
+ * waits for it. A durable buffer keeps the batch until it was sent, otherwise it is dropped after
+ * {@value #MAX_ATTEMPTS} attempts. If Elasticsearch failed to index some documents of a batch, only the documents
+ * which failed with 429 or a server error are sent again, the documents it cannot index are reported once.
+ * While the {@link CircuitBreaker} is open, batches are not sent. A durable buffer keeps them, otherwise they are dropped.
+ * <p>
+ * With a buffer which is not durable, several batches can be sent at once with the non-blocking client, see
+ * {@link #setMaxRequestsInFlight(int)}. Then a single thread takes batches from the buffer while the requests are in
+ * flight, and a batch which failed is sent again like above, independently of the other batches. The batches may
+ * arrive out of order, which does not matter because the documents are sorted when the log is read.
+ */
+@Restricted(NoExternalUse.class)
+public class ElasticSearchBulkProcessor {
+    private static final Logger LOGGER = Logger.getLogger(ElasticSearchBulkProcessor.class.getName());
+
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final byte[] BULK_INDEX_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The first byte of a record in the buffer which holds the document only.
+     */
+    private static final byte[] DOCUMENT_RECORD = { 0 };
+
+    /**
+     * The first byte of a record in the buffer which holds its action line and the document, see
+     * {@link #add(byte[], int, int, String, String)}.
+     */
+    private static final byte[] ACTION_RECORD = { 1 };
+
+    private static final byte[] INDEX_NAME = JsonEncoder.name("index");
+
+    private static final byte[] ID_NAME = JsonEncoder.name("_id");
+
+    private static final byte[] ROUTING_NAME = JsonEncoder.name("routing");
+
+    private static final byte[] LINE_BREAK = { '\n' };
+
+    private static final ThreadLocal<JsonEncoder> RECORD_ENCODER = ThreadLocal.withInitial(JsonEncoder::new);
+
+    private static final ScheduledExecutorService EXECUTOR = createExecutor();
+
+    private final ElasticSearchAccess access;
+    private final int batchSize;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final DocumentBuffer buffer;
+
+    private final BulkPayload payload = new BulkPayload();
+
+    @CheckForNull
+    private volatile CircuitBreaker circuitBreaker;
+
+    private volatile int maxRequestsInFlight;
+
+    /** The batches sent with the non-blocking client which are not completed yet, in the order they were taken */
+    private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+
+    /** Batches which can be reused */
+    private final ArrayDeque<Batch> freeBatches = new ArrayDeque<>();
+
+    private long completed;
+    private boolean draining;
+    private boolean lingerScheduled;
+    /** The number of failed attempts to send the current batch, which is kept in the payload until it was sent */
+    private int failures;
+    /** The number of documents in the payload */
+    private int pending;
+    private boolean closed;
+    /** Whether a buffer which is not durable is closed once it is empty */
+    private boolean closing;
+
+    private long lastReport;
+    private long reportedLosses;
+
+    public ElasticSearchBulkProcessor(ElasticSearchAccess access, int batchSize, long maxBytes, long lingerMillis, int bufferCapacity,
+            OverflowPolicy overflowPolicy, File spoolDirectory) {
+        this(access, batchSize, maxBytes, lingerMillis, new LogRingBuffer(bufferCapacity, overflowPolicy, spoolDirectory));
+    }
+
+    ElasticSearchBulkProcessor(ElasticSearchAccess access, int batchSize, long maxBytes, long lingerMillis, DocumentBuffer buffer) {
+        this.access = access;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.buffer = buffer;
+        // send what is left over from a previous JVM
+        scheduleDrain();
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4,
+                new NamingThreadFactory(new DaemonThreadFactory(), "ElasticSearchBulkProcessor"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * The threads which send the batches of all processors of the JVM. Other background work of the producers, like
+     * sending lines whose linger time expired, is scheduled on them too instead of on threads of its own.
+     */
+    static ScheduledExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+
+    public void setCircuitBreaker(@CheckForNull CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sends batches with the non-blocking client, several at once. Durable buffers acknowledge batches in order, so
+     * they are always sent one after the other with the blocking client.
+     *
+     * @param maxRequestsInFlight
+     *            the maximum number of concurrent bulk requests, 0 to send with the blocking client
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        this.maxRequestsInFlight = Math.max(0, maxRequestsInFlight);
+    }
+
+    /**
+     * Adds a document to the buffer. What happens if the buffer is full depends on the {@link OverflowPolicy}.
+     *
+     * @param document
+     *            The JSON document to index
+     * @throws IOException
+     *             if the document could not be spilled or the thread was interrupted while blocked
+     */
+    public void add(String document) throws IOException {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Adds a UTF-8 encoded document to the buffer. The bytes are copied.
+     *
+     * @return the number of documents added to the buffer so far, including this one, to wait for them with
+     *         {@link #flush(long, long)}
+     * @see #add(String)
+     */
+    public long add(byte[] document, int off, int len) throws IOException {
+        JsonEncoder record = RECORD_ENCODER.get().reset();
+        record.raw(DOCUMENT_RECORD, 0, 1).raw(document, off, len);
+        return addRecord(record.getBuffer(), record.size());
+    }
+
+    /**
+     * Adds a UTF-8 encoded document with its id to the buffer. The action line with the id is stored with the
+     * document, so that a batch which is sent again overwrites the documents instead of indexing them twice.
+     *
+     * @param id
+     *            the id of the document, null to let Elasticsearch generate one
+     * @param routing
+     *            the value which selects the shard of the document, null to route by id
+     * @return see {@link #add(byte[], int, int)}
+     * @see #add(String)
+     */
+    public long add(byte[] document, int off, int len, @CheckForNull String id, @CheckForNull String routing) throws IOException {
+        if (id == null && routing == null) {
+            return add(document, off, len);
+        }
+        JsonEncoder record = RECORD_ENCODER.get().reset();
+        record.raw(ACTION_RECORD, 0, 1).startObject().startObject(INDEX_NAME);
+        if (id != null) {
+            record.field(ID_NAME, id);
+        }
+        if (routing != null) {
+            record.field(ROUTING_NAME, routing);
+        }
+        record.endObject().endObject();
+        record.raw(LINE_BREAK, 0, 1).raw(document, off, len);
+        return addRecord(record.getBuffer(), record.size());
+    }
+
+    /**
+     * Adds a record which is marked as containing its action line or not by its first byte. Whether a document
+     * contains its action line is not guessed from its content, a document can start like an action line.
+     */
+    private long addRecord(byte[] record, int len) throws IOException {
+        if (buffer.isTooLarge(len)) {
+            sendDirectly(record, len);
+            return buffer.getPutCount();
+        }
+        // may block, so don't hold the lock of this processor
+        buffer.put(record, 0, len);
+        synchronized (this) {
+            if (buffer.size() >= batchSize || buffer.usedBytes() >= maxBytes) {
+                scheduleDrain();
+            } else if (!lingerScheduled && !draining) {
+                lingerScheduled = true;
+                EXECUTOR.schedule(this::lingerExpired, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            return buffer.getPutCount();
+        }
+    }
+
+    /**
+     * @return the number of documents added so far, the position of the last one
+     */
+    long getPutCount() {
+        return buffer.getPutCount();
+    }
+
+    /**
+     * Sends all documents added so far and waits until they have been processed.
+     * If the buffer is durable and Elasticsearch is not reachable, the documents stay in the buffer and this
+     * method returns without waiting.
+     *
+     * @throws IOException
+     *             if the thread was interrupted while waiting
+     */
+    public void flush() throws IOException {
+        flush(0);
+    }
+
+    /**
+     * Sends all documents added so far and waits until they have been processed or the timeout has elapsed, see
+     * {@link #flush()}.
+     *
+     * @param timeoutMillis
+     *            the maximum time to wait, 0 to wait without a timeout
+     * @return see {@link #flush(long, long)}
+     * @throws IOException
+     *             if the thread was interrupted while waiting
+     */
+    public synchronized boolean flush(long timeoutMillis) throws IOException {
+        return flush(buffer.getPutCount(), timeoutMillis);
+    }
+
+    /**
+     * Waits until the documents up to a position in the buffer have been processed or the timeout has elapsed. The
+     * documents added later, e.g. by other producers, are not waited for.
+     *
+     * @param target
+     *            the number of documents added to the buffer up to the last document to wait for, as returned by
+     *            {@link #add(byte[], int, int)}
+     * @param timeoutMillis
+     *            the maximum time to wait, 0 to wait without a timeout
+     * @return false if the documents were not processed, because the timeout elapsed, sending them failed and they
+     *         are sent again later, or the processor was closed
+     * @throws IOException
+     *             if the thread was interrupted while waiting
+     */
+    public synchronized boolean flush(long target, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        scheduleDrain();
+        while (completed < target && failures == 0 && !closed) {
+            long remaining = timeoutMillis > 0 ? deadline - System.currentTimeMillis() : 0;
+            if (timeoutMillis > 0 && remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing the bulk processor", e);
+            }
+        }
+        return completed >= target;
+    }
+
+    /**
+     * Sends the documents added so far and closes the buffer. The documents which were not sent before the timeout
+     * stay in a durable buffer and are sent by the next processor which opens it, otherwise they are still sent in the
+     * background and the buffer is closed, deleting its spill file, once they were sent. No documents must be added
+     * after this method was called.
+     *
+     * @param timeoutMillis
+     *            the maximum time to wait for the documents to be sent
+     */
+    public void close(long timeoutMillis) throws IOException {
+        if (!flush(timeoutMillis)) {
+            LOGGER.log(Level.WARNING, "{0} documents were not sent to Elastic Search before the bulk processor was closed, {1}",
+                    new Object[] { buffer.size(), buffer.isDurable() ? "they are kept in the spool" : "they are sent in the background" });
+        }
+        if (buffer.isDurable()) {
+            synchronized (this) {
+                // the next processor for the spool drains it
+                closed = true;
+                notifyAll();
+            }
+            buffer.close();
+        } else {
+            synchronized (this) {
+                closing = true;
+                closeBufferIfDrained();
+            }
+        }
+    }
+
+    /**
+     * Closes a buffer which is not durable after {@link #close(long)} once its last documents were sent.
+     */
+    private synchronized void closeBufferIfDrained() {
+        if (closing && !draining && failures == 0 && inFlight.isEmpty() && buffer.isEmpty()) {
+            closing = false;
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close the log buffer", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times a producer had to wait for space in the buffer
+     */
+    public long getBlockedCount() {
+        return buffer.getBlockedCount();
+    }
+
+    /**
+     * @return the number of documents dropped because the buffer was full
+     */
+    public long getDroppedNewestCount() {
+        return buffer.getDroppedNewestCount();
+    }
+
+    /**
+     * @return the number of documents removed from the full buffer to make room for new ones
+     */
+    public long getDroppedOldestCount() {
+        return buffer.getDroppedOldestCount();
+    }
+
+    /**
+     * @return the number of documents written to disk because the buffer was full
+     */
+    public long getSpilledCount() {
+        return buffer.getSpilledCount();
+    }
+
+    private synchronized void lingerExpired() {
+        lingerScheduled = false;
+        scheduleDrain();
+    }
+
+    private synchronized void scheduleDrain() {
+        if (!draining && !closed && !buffer.isEmpty()) {
+            draining = true;
+            EXECUTOR.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        if (maxRequestsInFlight > 0 && !buffer.isDurable()) {
+            drainAsync();
+            return;
+        }
+        while (true) {
+            try {
+                if (failures == 0) {
+                    payload.reset();
+                    pending = buffer.drainTo(payload, batchSize, maxBytes);
+                }
+                if (pending > 0) {
+                    CircuitBreaker breaker = circuitBreaker;
+                    if (breaker == null || breaker.allowRequest()) {
+                        push(payload, breaker);
+                    } else if (buffer.isDurable()) {
+                        retryLater(new IOException("The circuit breaker for Elastic Search is open"));
+                        return;
+                    } else {
+                        // without a durable buffer the batch is dropped while the breaker is open
+                        breaker.recordDropped(pending);
+                    }
+                }
+                buffer.commit();
+            } catch (ElasticSearchAccess.BulkItemsFailure e) {
+                if (e.getRejectedItems() > 0) {
+                    LOGGER.log(Level.SEVERE, "Elastic Search rejected " + e.getRejectedItems() + " documents, they are not sent again", e);
+                }
+                byte[] retryBody = e.getRetryBody();
+                if (retryBody != null) {
+                    // the documents which were indexed are not sent again
+                    payload.reset();
+                    payload.write(retryBody, 0, retryBody.length);
+                    pending = e.getRetryableItems();
+                    retryLater(e);
+                    return;
+                }
+                if (!commit()) {
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                retryLater(e);
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    draining = false;
+                    return;
+                }
+                if (failures > 0) {
+                    LOGGER.log(Level.INFO, "Elastic Search is reachable again after {0} failed attempts", failures);
+                    failures = 0;
+                }
+                completed = buffer.getTakeCount();
+                notifyAll();
+                if (buffer.isEmpty()) {
+                    draining = false;
+                    closeBufferIfDrained();
+                    return;
+                }
+            }
+            reportLosses();
+        }
+    }
+
+    /**
+     * Acknowledges the documents taken from the buffer, or sends them again later if that failed.
+     *
+     * @return false if the documents are sent again later
+     */
+    private boolean commit() {
+        try {
+            buffer.commit();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            retryLater(e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends a document which does not fit into the buffer with its own request on the thread of the producer. The
+     * request is not repeated, so the producer is not held up by a cluster which is overloaded.
+     */
+    private void sendDirectly(byte[] record, int len) throws IOException {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            throw new IOException("The circuit breaker for Elastic Search is open");
+        }
+        BulkPayload single = new BulkPayload();
+        single.accept(record, 0, len);
+        push(single, breaker);
+    }
+
+    private void push(BulkPayload request, @CheckForNull CircuitBreaker breaker) throws IOException {
+        try {
+            access.pushBulk(request.getBuffer(), request.size());
+        } catch (ElasticSearchAccess.BulkItemsFailure e) {
+            if (breaker != null) {
+                // the cluster is reachable
+                breaker.recordSuccess();
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            if (breaker != null) {
+                breaker.recordFailure();
+            }
+            throw e;
+        }
+        if (breaker != null) {
+            breaker.recordSuccess();
+        }
+    }
+
+    private void drainAsync() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (buffer.isEmpty() || inFlight.size() >= maxRequestsInFlight) {
+                    // the next completed request drains again
+                    draining = false;
+                    closeBufferIfDrained();
+                    return;
+                }
+                batch = freeBatches.isEmpty() ? new Batch() : freeBatches.pop();
+                // registered before taking the documents, so that flush() waits for them
+                inFlight.add(batch);
+            }
+            try {
+                batch.count = buffer.drainTo(batch.payload, batchSize, maxBytes);
+                buffer.commit();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Failed to take documents from the buffer", e);
+            }
+            synchronized (this) {
+                batch.takeCount = buffer.getTakeCount();
+            }
+            if (batch.count > 0) {
+                sendAsync(batch);
+            } else {
+                complete(batch);
+            }
+            reportLosses();
+        }
+    }
+
+    private void sendAsync(Batch batch) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            // dropped like in blocking mode
+            breaker.recordDropped(batch.count);
+            complete(batch);
+            return;
+        }
+        batch.attempts++;
+        try {
+            access.pushBulkAsync(batch.payload.getBuffer(), batch.payload.size(), new FutureCallback<Void>() {
+                @Override
+                public void completed(Void result) {
+                    if (breaker != null) {
+                        breaker.recordSuccess();
+                    }
+                    complete(batch);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (e instanceof ElasticSearchAccess.BulkItemsFailure) {
+                        if (breaker != null) {
+                            // the cluster is reachable
+                            breaker.recordSuccess();
+                        }
+                        retryItemsAsync(batch, (ElasticSearchAccess.BulkItemsFailure) e);
+                        return;
+                    }
+                    if (breaker != null) {
+                        breaker.recordFailure();
+                    }
+                    retryAsync(batch, e);
+                }
+
+                @Override
+                public void cancelled() {
+                    retryAsync(batch, new IOException("The bulk request was cancelled"));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            retryAsync(batch, e);
+        }
+    }
+
+    /**
+     * Sends the documents of a batch which Elasticsearch failed to index, but may index later, again. The documents it
+     * cannot index are dropped.
+     */
+    private void retryItemsAsync(Batch batch, ElasticSearchAccess.BulkItemsFailure failure) {
+        if (failure.getRejectedItems() > 0) {
+            LOGGER.log(Level.SEVERE, "Elastic Search rejected " + failure.getRejectedItems() + " documents, they are not sent again",
+                    failure);
+        }
+        byte[] retryBody = failure.getRetryBody();
+        if (retryBody == null) {
+            complete(batch);
+            return;
+        }
+        // the request is completed, so the payload can be replaced
+        batch.payload.reset();
+        batch.payload.write(retryBody, 0, retryBody.length);
+        batch.count = failure.getRetryableItems();
+        retryAsync(batch, failure);
+    }
+
+    /**
+     * Sends a failed batch again after a growing delay, or drops it after the last attempt.
+     */
+    private void retryAsync(Batch batch, Exception cause) {
+        if (batch.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.SEVERE, "Failed to push " + batch.count + " documents to Elastic Search after " + batch.attempts
+                    + " attempts", cause);
+            complete(batch);
+            return;
+        }
+        long delay = ElasticSearchAccess.getRetryDelay(batch.attempts, MIN_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+        LOGGER.log(Level.FINE, "Failed to push " + batch.count + " documents to Elastic Search, retrying in " + delay + "ms", cause);
+        EXECUTOR.schedule(() -> sendAsync(batch), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void complete(Batch batch) {
+        batch.done = true;
+        while (!inFlight.isEmpty() && inFlight.peek().done) {
+            Batch first = inFlight.poll();
+            completed = first.takeCount;
+            first.reset();
+            if (freeBatches.size() < maxRequestsInFlight) {
+                freeBatches.push(first);
+            }
+        }
+        if (inFlight.isEmpty()) {
+            // includes the documents dropped from the buffer since the last batch
+            completed = buffer.getTakeCount();
+        }
+        notifyAll();
+        scheduleDrain();
+        closeBufferIfDrained();
+    }
+
+    /**
+     * Sends the current batch again after a growing delay. The documents of a durable buffer are sent until they
+     * were indexed, otherwise the batch is dropped after the last attempt.
+     */
+    private void retryLater(Exception cause) {
+        long delay;
+        synchronized (this) {
+            if (closed) {
+                draining = false;
+                return;
+            }
+            failures++;
+            if (failures >= MAX_ATTEMPTS && !buffer.isDurable()) {
+                LOGGER.log(Level.SEVERE, "Failed to push " + pending + " documents to Elastic Search after " + failures
+                        + " attempts", cause);
+                failures = 0;
+                completed = buffer.getTakeCount();
+                notifyAll();
+                delay = 0;
+            } else {
+                delay = ElasticSearchAccess.getRetryDelay(failures, MIN_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+                // don't let flush() wait for an unreachable cluster
+                notifyAll();
+                if (failures == 1) {
+                    LOGGER.log(Level.WARNING, "Failed to push " + pending + " documents to Elastic Search, "
+                            + (buffer.isDurable() ? "they are kept in the spool and" : "they are") + " sent again later", cause);
+                } else {
+                    LOGGER.log(Level.FINE, "Failed to push documents to Elastic Search, retrying in " + delay + "ms", cause);
+                }
+            }
+        }
+        // the drain thread is released while waiting
+        EXECUTOR.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reportLosses() {
+        long losses = buffer.getDroppedNewestCount() + buffer.getDroppedOldestCount();
+        long now = System.currentTimeMillis();
+        if (losses > reportedLosses && now - lastReport > REPORT_INTERVAL_MILLIS) {
+            LOGGER.log(Level.WARNING, "The log buffer overflowed. Dropped lines: {0} newest, {1} oldest. Blocked: {2}, spilled: {3}",
+                    new Object[] { buffer.getDroppedNewestCount(), buffer.getDroppedOldestCount(), buffer.getBlockedCount(),
+                            buffer.getSpilledCount() });
+            reportedLosses = losses;
+            lastReport = now;
+        }
+    }
+
+    /**
+     * A batch sent with the non-blocking client.
+     */
+    private static class Batch {
+        private final BulkPayload payload = new BulkPayload();
+        private int count;
+        /** The take count of the buffer after the documents of this batch were taken */
+        private long takeCount;
+        private int attempts;
+        private boolean done;
+
+        void reset() {
+            payload.reset();
+            count = 0;
+            attempts = 0;
+            done = false;
+        }
+    }
+
+    /**
+     * The request body of a bulk request, reused for the following requests.
+     */
+    private static class BulkPayload extends ByteArrayOutputStream implements DocumentBuffer.RecordSink {
+        @Override
+        public void accept(byte[] b, int off, int len) {
+            if (b[off] != ACTION_RECORD[0]) {
+                write(BULK_INDEX_ACTION, 0, BULK_INDEX_ACTION.length);
+            }
+            write(b, off + 1, len - 1);
+            write('\n');
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+}
@@ -10,8 +10,10 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,6 +38,7 @@ import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredenti
 import com.cloudbees.plugins.credentials.matchers.IdMatcher;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
@@ -72,6 +75,73 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
 
     private String url;
 
+    @CheckForNull
+    private String additionalUrls;
+
+    private Boolean sniffNodes = false;
+
+    private Boolean bulk = false;
+
+    private Integer batchSize = 500;
+
+    private Integer batchMaxBytes = 5 * 1024 * 1024;
+
+    private Integer batchLingerMillis = 1000;
+
+    private Integer bufferCapacity = 8 * 1024 * 1024;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private Boolean writeAhead = false;
+
+    private String writeAheadDirectory;
+
+    private Long writeAheadMaxBytes = WriteAheadSpool.DEFAULT_MAX_BYTES;
+
+    private Boolean asyncRequests = false;
+
+    private Integer maxRequestsInFlight = 4;
+
+    private Integer maxConnectionsPerRoute = ElasticSearchAccess.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    private Boolean asyncGraphEvents = false;
+
+    private Boolean chunkLines = false;
+
+    private Integer chunkMaxBytes = 64 * 1024;
+
+    private Integer chunkLingerMillis = 500;
+
+    private Boolean collapseRepeatedLines = false;
+
+    private Boolean routeByRun = false;
+
+    private Boolean manageIndexTemplate = false;
+
+    private Boolean indexMessages = true;
+
+    private Boolean compressRequests = false;
+
+    private Integer compressionThreshold = ElasticSearchAccess.DEFAULT_COMPRESSION_THRESHOLD;
+
+    private Boolean circuitBreaker = false;
+
+    private Integer breakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+    private Integer breakerCooldownSeconds = CircuitBreaker.DEFAULT_COOLDOWN_SECONDS;
+
+    private Boolean limitLogs = false;
+
+    private Integer buildLinesPerSecond = 0;
+
+    private Integer buildBytesPerSecond = 0;
+
+    private Integer agentLinesPerSecond = 0;
+
+    private Integer agentBytesPerSecond = 0;
+
+    private Long maxBytesPerBuild = 0L;
+
     @DataBoundConstructor
     public ElasticSearchConfiguration(String url) throws URISyntaxException {
         this.url = url;
@@ -94,6 +164,99 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
         if (runIdProvider == null) {
             runIdProvider = new DefaultRunIdProvider("");
         }
+        if (bulk == null) {
+            bulk = false;
+        }
+        if (batchSize == null) {
+            batchSize = 500;
+        }
+        if (batchMaxBytes == null) {
+            batchMaxBytes = 5 * 1024 * 1024;
+        }
+        if (batchLingerMillis == null) {
+            batchLingerMillis = 1000;
+        }
+        if (bufferCapacity == null) {
+            bufferCapacity = 8 * 1024 * 1024;
+        }
+        if (overflowPolicy == null) {
+            overflowPolicy = OverflowPolicy.BLOCK;
+        }
+        if (writeAhead == null) {
+            writeAhead = false;
+        }
+        if (writeAheadMaxBytes == null) {
+            writeAheadMaxBytes = WriteAheadSpool.DEFAULT_MAX_BYTES;
+        }
+        if (asyncRequests == null) {
+            asyncRequests = false;
+        }
+        if (maxRequestsInFlight == null) {
+            maxRequestsInFlight = 4;
+        }
+        if (sniffNodes == null) {
+            sniffNodes = false;
+        }
+        if (maxConnectionsPerRoute == null) {
+            maxConnectionsPerRoute = ElasticSearchAccess.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        }
+        if (asyncGraphEvents == null) {
+            asyncGraphEvents = false;
+        }
+        if (chunkLines == null) {
+            chunkLines = false;
+        }
+        if (chunkMaxBytes == null) {
+            chunkMaxBytes = 64 * 1024;
+        }
+        if (chunkLingerMillis == null) {
+            chunkLingerMillis = 500;
+        }
+        if (collapseRepeatedLines == null) {
+            collapseRepeatedLines = false;
+        }
+        if (routeByRun == null) {
+            routeByRun = false;
+        }
+        if (manageIndexTemplate == null) {
+            manageIndexTemplate = false;
+        }
+        if (indexMessages == null) {
+            indexMessages = true;
+        }
+        if (compressRequests == null) {
+            compressRequests = false;
+        }
+        if (compressionThreshold == null) {
+            compressionThreshold = ElasticSearchAccess.DEFAULT_COMPRESSION_THRESHOLD;
+        }
+        if (circuitBreaker == null) {
+            circuitBreaker = false;
+        }
+        if (breakerFailureThreshold == null) {
+            breakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+        }
+        if (breakerCooldownSeconds == null) {
+            breakerCooldownSeconds = CircuitBreaker.DEFAULT_COOLDOWN_SECONDS;
+        }
+        if (limitLogs == null) {
+            limitLogs = false;
+        }
+        if (buildLinesPerSecond == null) {
+            buildLinesPerSecond = 0;
+        }
+        if (buildBytesPerSecond == null) {
+            buildBytesPerSecond = 0;
+        }
+        if (agentLinesPerSecond == null) {
+            agentLinesPerSecond = 0;
+        }
+        if (agentBytesPerSecond == null) {
+            agentBytesPerSecond = 0;
+        }
+        if (maxBytesPerBuild == null) {
+            maxBytesPerBuild = 0L;
+        }
 
         if (url == null) {
             String protocol = "http";
@@ -110,6 +273,40 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
         return url;
     }
 
+    @CheckForNull
+    public String getAdditionalUrls() {
+        return additionalUrls;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalUrls(@CheckForNull String additionalUrls) {
+        this.additionalUrls = Util.fixEmptyAndTrim(additionalUrls);
+    }
+
+    public boolean isSniffNodes() {
+        return sniffNodes;
+    }
+
+    @DataBoundSetter
+    public void setSniffNodes(boolean sniffNodes) {
+        this.sniffNodes = sniffNodes;
+    }
+
+    /**
+     * Splits the further node URLs, which are separated by whitespace or commas.
+     */
+    private static List<URI> parseUrls(@CheckForNull String urls) throws URISyntaxException {
+        List<URI> result = new ArrayList<>();
+        if (urls != null) {
+            for (String url : urls.split("[\\s,]+")) {
+                if (!url.isEmpty()) {
+                    result.add(new URI(url));
+                }
+            }
+        }
+        return result;
+    }
+
     public boolean isSaveAnnotations() {
         return saveAnnotations;
     }
@@ -128,6 +325,301 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
         this.readLogsFromElasticsearch = readLogsFromElasticsearch;
     }
 
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    @DataBoundSetter
+    public void setBulk(boolean bulk) {
+        this.bulk = bulk;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @DataBoundSetter
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    @DataBoundSetter
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public int getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    @DataBoundSetter
+    public void setBatchLingerMillis(int batchLingerMillis) {
+        this.batchLingerMillis = batchLingerMillis;
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    @DataBoundSetter
+    public void setBufferCapacity(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @DataBoundSetter
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public boolean isWriteAhead() {
+        return writeAhead;
+    }
+
+    @DataBoundSetter
+    public void setWriteAhead(boolean writeAhead) {
+        this.writeAhead = writeAhead;
+    }
+
+    public String getWriteAheadDirectory() {
+        return writeAheadDirectory;
+    }
+
+    @DataBoundSetter
+    public void setWriteAheadDirectory(String writeAheadDirectory) {
+        this.writeAheadDirectory = Util.fixEmptyAndTrim(writeAheadDirectory);
+    }
+
+    public long getWriteAheadMaxBytes() {
+        return writeAheadMaxBytes;
+    }
+
+    @DataBoundSetter
+    public void setWriteAheadMaxBytes(long writeAheadMaxBytes) {
+        this.writeAheadMaxBytes = writeAheadMaxBytes;
+    }
+
+    public boolean isAsyncRequests() {
+        return asyncRequests;
+    }
+
+    @DataBoundSetter
+    public void setAsyncRequests(boolean asyncRequests) {
+        this.asyncRequests = asyncRequests;
+    }
+
+    public int getMaxRequestsInFlight() {
+        return maxRequestsInFlight;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public boolean isAsyncGraphEvents() {
+        return asyncGraphEvents;
+    }
+
+    @DataBoundSetter
+    public void setAsyncGraphEvents(boolean asyncGraphEvents) {
+        this.asyncGraphEvents = asyncGraphEvents;
+    }
+
+    public boolean isChunkLines() {
+        return chunkLines;
+    }
+
+    @DataBoundSetter
+    public void setChunkLines(boolean chunkLines) {
+        this.chunkLines = chunkLines;
+    }
+
+    public int getChunkMaxBytes() {
+        return chunkMaxBytes;
+    }
+
+    @DataBoundSetter
+    public void setChunkMaxBytes(int chunkMaxBytes) {
+        this.chunkMaxBytes = chunkMaxBytes;
+    }
+
+    public int getChunkLingerMillis() {
+        return chunkLingerMillis;
+    }
+
+    @DataBoundSetter
+    public void setChunkLingerMillis(int chunkLingerMillis) {
+        this.chunkLingerMillis = chunkLingerMillis;
+    }
+
+    public boolean isCollapseRepeatedLines() {
+        return collapseRepeatedLines;
+    }
+
+    @DataBoundSetter
+    public void setCollapseRepeatedLines(boolean collapseRepeatedLines) {
+        this.collapseRepeatedLines = collapseRepeatedLines;
+    }
+
+    public boolean isRouteByRun() {
+        return routeByRun;
+    }
+
+    @DataBoundSetter
+    public void setRouteByRun(boolean routeByRun) {
+        this.routeByRun = routeByRun;
+    }
+
+    public boolean isManageIndexTemplate() {
+        return manageIndexTemplate;
+    }
+
+    @DataBoundSetter
+    public void setManageIndexTemplate(boolean manageIndexTemplate) {
+        this.manageIndexTemplate = manageIndexTemplate;
+    }
+
+    public boolean isIndexMessages() {
+        return indexMessages;
+    }
+
+    @DataBoundSetter
+    public void setIndexMessages(boolean indexMessages) {
+        this.indexMessages = indexMessages;
+    }
+
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    @DataBoundSetter
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @DataBoundSetter
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreaker(boolean circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    @DataBoundSetter
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+        this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    public int getBreakerCooldownSeconds() {
+        return breakerCooldownSeconds;
+    }
+
+    @DataBoundSetter
+    public void setBreakerCooldownSeconds(int breakerCooldownSeconds) {
+        this.breakerCooldownSeconds = breakerCooldownSeconds;
+    }
+
+    public boolean isLimitLogs() {
+        return limitLogs;
+    }
+
+    @DataBoundSetter
+    public void setLimitLogs(boolean limitLogs) {
+        this.limitLogs = limitLogs;
+    }
+
+    public int getBuildLinesPerSecond() {
+        return buildLinesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setBuildLinesPerSecond(int buildLinesPerSecond) {
+        this.buildLinesPerSecond = buildLinesPerSecond;
+    }
+
+    public int getBuildBytesPerSecond() {
+        return buildBytesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setBuildBytesPerSecond(int buildBytesPerSecond) {
+        this.buildBytesPerSecond = buildBytesPerSecond;
+    }
+
+    public int getAgentLinesPerSecond() {
+        return agentLinesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setAgentLinesPerSecond(int agentLinesPerSecond) {
+        this.agentLinesPerSecond = agentLinesPerSecond;
+    }
+
+    public int getAgentBytesPerSecond() {
+        return agentBytesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setAgentBytesPerSecond(int agentBytesPerSecond) {
+        this.agentBytesPerSecond = agentBytesPerSecond;
+    }
+
+    public long getMaxBytesPerBuild() {
+        return maxBytesPerBuild;
+    }
+
+    @DataBoundSetter
+    public void setMaxBytesPerBuild(long maxBytesPerBuild) {
+        this.maxBytesPerBuild = maxBytesPerBuild;
+    }
+
+    /**
+     * Returns the log limits for a run, the ones of its job if it has an {@link ElasticSearchLogLimitsProperty},
+     * otherwise the global ones if they are enabled. The limits of the agent are always the global ones.
+     */
+    @CheckForNull
+    public LogLimits getLogLimits(Run<?, ?> run) {
+        ElasticSearchLogLimitsProperty property = run.getParent().getProperty(ElasticSearchLogLimitsProperty.class);
+        if (property != null) {
+            return isLimitLogs() ? property.getLogLimits(agentLinesPerSecond, agentBytesPerSecond) : property.getLogLimits(0, 0);
+        }
+        if (isLimitLogs()) {
+            return new LogLimits(buildLinesPerSecond, buildBytesPerSecond, agentLinesPerSecond, agentBytesPerSecond, maxBytesPerBuild);
+        }
+        return null;
+    }
+
     public String getCertificateId() {
         return certificateId;
     }
@@ -235,14 +727,76 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
         }
 
         URI uri = null;
+        List<URI> additionalNodes;
         try {
             uri = new URI(url);
+            additionalNodes = parseUrls(additionalUrls);
         } catch (URISyntaxException e) {
             throw new IOException(e);
         }
 
-        return new ElasticSearchRunConfiguration(uri, username, password, getKeyStoreBytes(), isSaveAnnotations(), getUniqueRunId(run),
-                getRunIdProvider().getRunId(run), isReadLogsFromElasticsearch(), getAccessFactory());
+        ElasticSearchRunConfiguration runConfiguration = new ElasticSearchRunConfiguration(uri, username, password, getKeyStoreBytes(),
+                isSaveAnnotations(), getUniqueRunId(run), getRunIdProvider().getRunId(run), isReadLogsFromElasticsearch(),
+                getAccessFactory());
+        runConfiguration.setMaxConnectionsPerRoute(getMaxConnectionsPerRoute());
+        runConfiguration.setNodes(additionalNodes, isSniffNodes());
+        runConfiguration.setAsyncGraphEvents(isAsyncGraphEvents());
+        if (isChunkLines()) {
+            runConfiguration.setChunkOptions(getChunkMaxBytes(), getChunkLingerMillis());
+        }
+        runConfiguration.setCollapseRepeatedLines(isCollapseRepeatedLines());
+        // decided when the build started, see ElasticSearchRunListener#onInitialize
+        runConfiguration.setRouteByRun(ElasticSearchRoutingAction.isRouted(run));
+        if (isCompressRequests()) {
+            runConfiguration.setCompressionThreshold(getCompressionThreshold());
+        }
+        if (isCircuitBreaker()) {
+            runConfiguration.setCircuitBreaker(getBreakerFailureThreshold(), TimeUnit.SECONDS.toMillis(getBreakerCooldownSeconds()));
+        }
+        LogLimits logLimits = getLogLimits(run);
+        if (logLimits != null && !logLimits.isUnlimited()) {
+            runConfiguration.setLogLimits(logLimits);
+        }
+        if (isBulk()) {
+            runConfiguration.setBulkOptions(getBatchSize(), getBatchMaxBytes(), getBatchLingerMillis(), getBufferCapacity(),
+                    getOverflowPolicy());
+            if (isWriteAhead()) {
+                runConfiguration.setWriteAhead(getWriteAheadDirectory(), getWriteAheadMaxBytes());
+            } else if (isAsyncRequests()) {
+                runConfiguration.setMaxRequestsInFlight(getMaxRequestsInFlight());
+            }
+        }
+        return runConfiguration;
+    }
+
+    /**
+     * Installs the index template if the plugin manages it and it is missing or outdated.
+     *
+     * @see IndexTemplate
+     */
+    @Restricted(NoExternalUse.class)
+    public void installIndexTemplate() throws IOException {
+        if (!isManageIndexTemplate()) {
+            return;
+        }
+        ElasticSearchAccess access;
+        Supplier<ElasticSearchAccess> accessFactory = getAccessFactory();
+        if (accessFactory != null) {
+            access = accessFactory.get();
+        } else {
+            StandardUsernamePasswordCredentials credentials = getCredentials();
+            try {
+                access = new ElasticSearchAccess(new URI(url), credentials != null ? credentials.getUsername() : null,
+                        credentials != null ? Secret.toString(credentials.getPassword()) : null);
+                access.setNodes(parseUrls(additionalUrls), false);
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            if (isSsl()) {
+                access.setTrustKeyStore(getCustomKeyStore());
+            }
+        }
+        new IndexTemplate(ElasticSearchAccess.getIndex(URI.create(url)), isIndexMessages()).install(access);
     }
 
     // Can be overwritten in tests
@@ -286,6 +840,24 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
             if (StringUtils.isBlank(value)) {
                 return FormValidation.warning("URL must not be empty");
             }
+            return checkUrl(value);
+        }
+
+        public FormValidation doCheckAdditionalUrls(@QueryParameter("value") String value) {
+            try {
+                for (URI uri : parseUrls(value)) {
+                    FormValidation validation = checkUrl(uri.toString());
+                    if (validation.kind != FormValidation.Kind.OK) {
+                        return validation;
+                    }
+                }
+            } catch (URISyntaxException e) {
+                return FormValidation.error("URL is not well formed");
+            }
+            return FormValidation.ok();
+        }
+
+        private static FormValidation checkUrl(String value) {
             try {
                 URL url = new URL(value);
                 if (!url.getProtocol().equals("http") && !url.getProtocol().equals("https")) {
@@ -298,8 +870,52 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckBatchSize(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckBatchMaxBytes(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckBufferCapacity(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckMaxRequestsInFlight(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckChunkMaxBytes(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckCompressionThreshold(@QueryParameter("value") int value) {
+            if (value < 0) {
+                return FormValidation.error("Value must not be negative");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckBreakerFailureThreshold(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckMaxConnectionsPerRoute(@QueryParameter("value") int value) {
+            return checkPositive(value);
+        }
+
+        private static FormValidation checkPositive(int value) {
+            if (value <= 0) {
+                return FormValidation.error("Value must be greater than 0");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doValidateConnection(@QueryParameter(fixEmpty = true) String url,
-                @QueryParameter(fixEmpty = true) String credentialsId, @QueryParameter(fixEmpty = true) String certificateId) {
+                @QueryParameter(fixEmpty = true) String additionalUrls, @QueryParameter(fixEmpty = true) String credentialsId,
+                @QueryParameter(fixEmpty = true) String certificateId, @QueryParameter boolean manageIndexTemplate,
+                @QueryParameter boolean indexMessages) {
 
             String username = null;
             String password = null;
@@ -320,13 +936,32 @@ public class ElasticSearchConfiguration extends AbstractDescribableImpl<ElasticS
             }
 
             try {
-                ElasticSearchAccess writer = new ElasticSearchAccess(new URI(url), username, password);
-                writer.setTrustKeyStore(trustStore);
-                writer.testConnection();
+                List<URI> uris = parseUrls(additionalUrls);
+                uris.add(0, new URI(url));
+                // every node is tested on its own, otherwise a node which is down would be skipped
+                for (URI uri : uris) {
+                    ElasticSearchAccess writer = new ElasticSearchAccess(uri, username, password);
+                    writer.setTrustKeyStore(trustStore);
+                    try {
+                        writer.testConnection();
+                    } catch (IOException e) {
+                        return FormValidation.error(e, "Connection to " + uri + " failed.");
+                    }
+                }
+                if (manageIndexTemplate) {
+                    ElasticSearchAccess access = new ElasticSearchAccess(uris.get(0), username, password);
+                    access.setTrustKeyStore(trustStore);
+                    try {
+                        String problem = new IndexTemplate(ElasticSearchAccess.getIndex(uris.get(0)), indexMessages).verify(access);
+                        if (problem != null) {
+                            return FormValidation.warning(problem);
+                        }
+                    } catch (IOException e) {
+                        return FormValidation.error(e, "Checking the index template failed.");
+                    }
+                }
             } catch (URISyntaxException e) {
                 return FormValidation.error(e, "The URL could not be parsed.");
-            } catch (IOException e) {
-                return FormValidation.error(e, "Connection failed.");
             }
 
             return FormValidation.ok("Success");
@@ -1,6 +1,8 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.CheckForNull;
 
@@ -10,6 +12,8 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Run;
 import jenkins.model.GlobalConfiguration;
 import net.sf.json.JSONObject;
@@ -17,6 +21,8 @@ import net.sf.json.JSONObject;
 @Symbol("elasticSearchLogs")
 @Extension
 public class ElasticSearchGlobalConfiguration extends GlobalConfiguration {
+    private static final Logger LOGGER = Logger.getLogger(ElasticSearchGlobalConfiguration.class.getName());
+
     @CheckForNull
     private ElasticSearchConfiguration elasticSearch;
 
@@ -39,9 +45,30 @@ public class ElasticSearchGlobalConfiguration extends GlobalConfiguration {
         elasticSearch = null;
         req.bindJSON(this, json);
         save();
+        installIndexTemplate();
         return true;
     }
 
+    /**
+     * Installs the index template when Jenkins starts, so that it is in place before the first build sends its logs.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @Restricted(NoExternalUse.class)
+    public static void installIndexTemplateOnStartup() {
+        get().installIndexTemplate();
+    }
+
+    private void installIndexTemplate() {
+        if (elasticSearch == null) {
+            return;
+        }
+        try {
+            elasticSearch.installIndexTemplate();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to install the Elasticsearch index template", e);
+        }
+    }
+
     public static ElasticSearchGlobalConfiguration get() {
         return GlobalConfiguration.all().getInstance(ElasticSearchGlobalConfiguration.class);
     }
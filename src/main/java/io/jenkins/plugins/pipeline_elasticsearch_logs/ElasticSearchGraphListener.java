@@ -1,11 +1,21 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
+
 import org.jenkinsci.plugins.pipeline.StageStatus;
 import org.jenkinsci.plugins.workflow.actions.ErrorAction;
 import org.jenkinsci.plugins.workflow.actions.TimingAction;
@@ -20,8 +30,8 @@ import org.jenkinsci.plugins.workflow.graph.FlowStartNode;
 import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
 
 import hudson.model.Result;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 public class ElasticSearchGraphListener implements GraphListener.Synchronous {
     private static final String FLOW_GRAPH_ATOM_NODE_END = "flowGraph::atomNodeEnd";
@@ -48,45 +58,117 @@ public class ElasticSearchGraphListener implements GraphListener.Synchronous {
 
     static final String EVENT_TYPE = "eventType";
 
+    private static final byte[] EVENT_TYPE_NAME = JsonEncoder.name(EVENT_TYPE);
+
+    private static final byte[] PREDECESSORS_NAME = JsonEncoder.name(PREDECESSORS);
+
+    private static final byte[] ERROR_MESSAGE_NAME = JsonEncoder.name(ERROR_MESSAGE);
+
+    private static final byte[] START_ID_NAME = JsonEncoder.name(START_ID);
+
+    private static final byte[] DURATION_NAME = JsonEncoder.name(DURATION);
+
+    private static final byte[] RESULT_NAME = JsonEncoder.name(RESULT);
+
     private static final Logger LOGGER = Logger.getLogger(ElasticSearchGraphListener.class.getName());
 
-    private final ElasticSearchAccess writer;
-    private final ElasticSearchRunConfiguration config;
+    private static final long FLUSH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private final ShippingEngine engine;
+    private final EventTemplate eventTemplate;
+    private final String idPrefix;
+    @CheckForNull
+    private final String routing;
+    private final JsonEncoder encoder = new JsonEncoder();
+    private final boolean async;
+
+    private final Queue<GraphEvent> events = new ArrayDeque<>();
+    private boolean draining;
+    /** Whether the engine is flushed once the queued events have been sent */
+    private boolean flushRequested;
+    /** The position of the last event of this listener in the buffer of the engine */
+    private long lastPosition;
+
+    /** The ids of the nodes whose end event has been sent, only accessed by the thread calling {@link #onNewHead(FlowNode)} */
+    private final Set<String> endedNodes = new HashSet<>();
+    private volatile long suppressedCount;
 
     public ElasticSearchGraphListener(ElasticSearchRunConfiguration config) throws IOException {
-        writer = config.createAccess();
-        this.config = config;
+        engine = config.getShippingEngine();
+        this.eventTemplate = config.createEventTemplate(null, null);
+        this.idPrefix = config.getUid() + "-";
+        this.routing = config.getRouting();
+        this.async = config.isAsyncGraphEvents();
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "ElasticSearchGraphListener"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
     public void onNewHead(FlowNode node) {
-        try {
-            // We cannot send StepEndNodes directly since information is missing, like an ErrorAction (see example below).
-            // There might be more cases which need to be considered like this. Almost all parents change compared to their initial state
-            // when passed this method.
-            // 1st time direct: StepEndNode[8 - 'Bind credentials to variables : End', enclosing: 6, startNode: 7, error: null, actions:
-            // TimingAction]
-            // 2nd time as parent of #9: StepEndNode[8 - 'Bind credentials to variables : End', enclosing: 6, startNode: 7, error:
-            // CredentialNotFoundException, actions: TimingAction,ErrorAction]
-            for (FlowNode parent : node.getParents()) {
-                if (parent instanceof AtomNode) {
-                    sendAtomNodeEnd(parent, node);
-                } else if (parent instanceof BlockEndNode) {
-                    sendNodeEnd((BlockEndNode<?>) parent);
+        // We cannot send StepEndNodes directly since information is missing, like an ErrorAction (see example below).
+        // There might be more cases which need to be considered like this. Almost all parents change compared to their initial state
+        // when passed this method.
+        // 1st time direct: StepEndNode[8 - 'Bind credentials to variables : End', enclosing: 6, startNode: 7, error: null, actions:
+        // TimingAction]
+        // 2nd time as parent of #9: StepEndNode[8 - 'Bind credentials to variables : End', enclosing: 6, startNode: 7, error:
+        // CredentialNotFoundException, actions: TimingAction,ErrorAction]
+        // For the same reason the data of an event is captured right away, also if it is sent in the background.
+        // A node is the parent of several heads if it is followed by parallel branches or ends a branch, see markEnded.
+        for (FlowNode parent : node.getParents()) {
+            if (parent instanceof AtomNode) {
+                if (markEnded(parent)) {
+                    send(captureAtomNodeEnd(parent, node));
+                }
+            } else if (parent instanceof BlockEndNode) {
+                if (markEnded(parent)) {
+                    send(captureNodeEnd((BlockEndNode<?>) parent));
                 }
             }
+        }
 
-            if (node instanceof AtomNode || node instanceof BlockStartNode) {
-                sendNodeStart(node);
+        if (node instanceof AtomNode || node instanceof BlockStartNode) {
+            send(captureNodeStart(node));
+        }
+        if (node instanceof FlowEndNode) {
+            if (markEnded(node)) {
+                send(captureNodeEnd((FlowEndNode) node));
             }
-            if (node instanceof FlowEndNode) {
-                sendNodeEnd((FlowEndNode) node);
+            NodeInfo.forgetExecution(node.getExecution());
+            if (suppressedCount > 0) {
+                LOGGER.log(Level.FINE, "Suppressed {0} duplicate end events of {1}", new Object[] { suppressedCount, node.getExecution() });
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Failed to push data to Elastic Search", e);
+            endedNodes.clear();
+            requestFlush();
         }
     }
 
+    /**
+     * Records that the end event of a node is sent.
+     *
+     * @return <code>false</code> if the end event of the node has already been sent
+     */
+    private boolean markEnded(FlowNode node) {
+        if (endedNodes.add(node.getId())) {
+            return true;
+        }
+        suppressedCount++;
+        return false;
+    }
+
+    /**
+     * @return the number of end events which were not sent again for a node which precedes several new heads
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
     private String getEventType(FlowNode node) {
         if (node instanceof AtomNode) {
             return FLOW_GRAPH_ATOM_NODE_START;
@@ -107,61 +189,110 @@ public class ElasticSearchGraphListener implements GraphListener.Synchronous {
         return "unknown";
     }
 
-    private void sendAtomNodeEnd(FlowNode node, FlowNode successor) throws IOException {
-        Map<String, Object> data = createData(node);
-        data.put(EVENT_TYPE, FLOW_GRAPH_ATOM_NODE_END);
-        data.put(RESULT, getStatus(node));
-        data.put(DURATION, getDuration(node, successor));
-        String errorMessage = getErrorMessage(node);
-        if (errorMessage != null) {
-            data.put(ERROR_MESSAGE, errorMessage);
-        }
-
-        writer.push(JSONObject.fromObject(data).toString());
+    private GraphEvent captureAtomNodeEnd(FlowNode node, FlowNode successor) {
+        GraphEvent event = new GraphEvent(node, FLOW_GRAPH_ATOM_NODE_END);
+        event.result = getStatus(node);
+        event.duration = getDuration(node, successor);
+        event.errorMessage = getErrorMessage(node);
+        return event;
     }
 
-    private void sendNodeEnd(BlockEndNode<?> node) throws IOException {
-        Map<String, Object> data = createData(node);
-        data.put(EVENT_TYPE, getEventType(node));
+    private GraphEvent captureNodeEnd(BlockEndNode<?> node) {
+        GraphEvent event = new GraphEvent(node, getEventType(node));
         FlowNode startNode = node.getStartNode();
-        data.put(START_ID, startNode.getId());
+        event.startId = startNode.getId();
+        event.result = getStatus(node);
+        event.duration = getDuration(startNode, node);
+        event.errorMessage = getErrorMessage(node);
+        return event;
+    }
 
-        data.put(RESULT, getStatus(node));
-        data.put(DURATION, getDuration(startNode, node));
+    private GraphEvent captureNodeStart(FlowNode node) {
+        return new GraphEvent(node, getEventType(node));
+    }
 
-        String errorMessage = getErrorMessage(node);
-        if (errorMessage != null) {
-            data.put(ERROR_MESSAGE, errorMessage);
-        }
+    private long getDuration(FlowNode startNode, FlowNode endNode) {
+        return TimingAction.getStartTime(endNode) - TimingAction.getStartTime(startNode);
+    }
 
-        writer.push(JSONObject.fromObject(data).toString());
+    /**
+     * Sends the event right away or, if graph events are sent asynchronously, queues it for the background executor.
+     */
+    private void send(GraphEvent event) {
+        if (!async) {
+            synchronized (this) {
+                push(event);
+            }
+            return;
+        }
+        synchronized (this) {
+            events.add(event);
+            if (!draining) {
+                draining = true;
+                EXECUTOR.execute(this::drain);
+            }
+        }
     }
 
-    private void sendNodeStart(FlowNode node) throws IOException {
-        Map<String, Object> data = createData(node);
+    private void drain() {
+        while (true) {
+            GraphEvent event;
+            long position = 0;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null) {
+                    if (!flushRequested) {
+                        draining = false;
+                        return;
+                    }
+                    flushRequested = false;
+                    position = lastPosition;
+                }
+            }
+            if (event == null) {
+                flush(position);
+            } else {
+                // only one drain runs at a time, so the encoder is not shared
+                push(event);
+            }
+        }
+    }
 
-        data.put(EVENT_TYPE, getEventType(node));
-        writer.push(JSONObject.fromObject(data).toString());
+    private void push(GraphEvent event) {
+        try {
+            long position = engine.send(event.write(eventTemplate, encoder), event.getId(idPrefix), routing);
+            synchronized (this) {
+                lastPosition = Math.max(lastPosition, position);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to push data to Elastic Search", e);
+        }
     }
 
-    private long getDuration(FlowNode startNode, FlowNode endNode) {
-        return TimingAction.getStartTime(endNode) - TimingAction.getStartTime(startNode);
+    /**
+     * Flushes the engine on the executor once the queued events have been sent, so that the end of the flow is
+     * visible without waiting for the linger time of the engine. The thread running the flow does not wait for it.
+     */
+    private synchronized void requestFlush() {
+        flushRequested = true;
+        if (!draining) {
+            draining = true;
+            EXECUTOR.execute(this::drain);
+        }
     }
 
-    private Map<String, Object> createData(FlowNode node) throws IOException {
-        Map<String, Object> data = config.createData();
-        List<FlowNode> predecessors = node.getParents();
-        if (predecessors.size() > 0) {
-            JSONArray p = new JSONArray();
-            for (FlowNode parent : predecessors) {
-                p.add(parent.getId());
+    /**
+     * Waits until the events of this listener up to a position have been sent, but not for the documents of other
+     * builds in the same engine, and not longer than {@link #FLUSH_TIMEOUT_MILLIS}.
+     */
+    private void flush(long position) {
+        try {
+            if (!engine.flush(position, FLUSH_TIMEOUT_MILLIS)) {
+                LOGGER.log(Level.WARNING, "The flow graph events were not sent before the deadline, they are sent in the background");
             }
-            data.put(PREDECESSORS, p);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to flush flow graph events", e);
         }
-        NodeInfo nodeInfo = new NodeInfo(node);
-        nodeInfo.appendNodeInfo(data);
-
-        return data;
     }
 
     private String getErrorMessage(FlowNode node) {
@@ -199,4 +330,61 @@ public class ElasticSearchGraphListener implements GraphListener.Synchronous {
         return Result.SUCCESS.toString();
     }
 
+    /**
+     * The data of a flow graph event, captured when the event occurs.
+     */
+    private static final class GraphEvent {
+        private final long millis = System.currentTimeMillis();
+        private final String eventType;
+        private final String nodeId;
+        private final List<String> predecessors = new ArrayList<>();
+        private final NodeInfo nodeInfo;
+        private String startId;
+        private String result;
+        private Long duration;
+        private String errorMessage;
+
+        GraphEvent(FlowNode node, String eventType) {
+            this.eventType = eventType;
+            this.nodeId = node.getId();
+            for (FlowNode parent : node.getParents()) {
+                predecessors.add(parent.getId());
+            }
+            this.nodeInfo = new NodeInfo(node);
+        }
+
+        /**
+         * @return the id of the document, there is only one event of a type for a node
+         */
+        String getId(String idPrefix) {
+            return idPrefix + nodeId + "-" + eventType;
+        }
+
+        JsonEncoder write(EventTemplate eventTemplate, JsonEncoder encoder) {
+            JsonEncoder data = eventTemplate.start(encoder, millis);
+            if (predecessors.size() > 0) {
+                data.startArray(PREDECESSORS_NAME);
+                for (String predecessor : predecessors) {
+                    data.value(predecessor);
+                }
+                data.endArray();
+            }
+            nodeInfo.writeNodeInfo(data);
+            data.field(EVENT_TYPE_NAME, eventType);
+            if (startId != null) {
+                data.field(START_ID_NAME, startId);
+            }
+            if (result != null) {
+                data.field(RESULT_NAME, result);
+            }
+            if (duration != null) {
+                data.field(DURATION_NAME, duration);
+            }
+            if (errorMessage != null) {
+                data.field(ERROR_MESSAGE_NAME, errorMessage);
+            }
+            return data.endObject();
+        }
+    }
+
 }
@@ -0,0 +1,253 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Long-lived, pooled http clients shared by all {@link ElasticSearchAccess} instances of this JVM.
+ * Connections are kept alive between requests, so that a TCP connection and TLS handshake is not
+ * needed for every event. Idle connections are closed in the background.
+ * Besides the blocking clients there are non-blocking clients, which send many requests at once with a single
+ * I/O thread.
+ */
+final class ElasticSearchHttpClients {
+    private static final Logger LOGGER = Logger.getLogger(ElasticSearchHttpClients.class.getName());
+
+    private static final int TIMEOUT_MILLIS = 2000;
+
+    private static final long IDLE_CONNECTION_SECONDS = 30;
+
+    private static final int MAX_ROUTES = 8;
+
+    private static final Map<ClientKey, ClientHolder> CLIENTS = new ConcurrentHashMap<>();
+
+    private static final Map<ClientKey, AsyncClientHolder> ASYNC_CLIENTS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService EVICTOR = Executors
+            .newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "ElasticSearchIdleConnectionEvictor"));
+
+    static {
+        EVICTOR.scheduleWithFixedDelay(ElasticSearchHttpClients::evictIdleConnections, IDLE_CONNECTION_SECONDS, IDLE_CONNECTION_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    private ElasticSearchHttpClients() {
+    }
+
+    /**
+     * Returns the shared client for the given trust store and pool size.
+     *
+     * @param trustKeyStore
+     *            key store with a custom certificate to trust, may be null
+     * @param maxConnectionsPerRoute
+     *            the maximum number of connections kept open to a single Elasticsearch node
+     * @return the shared client, must not be closed by the caller
+     */
+    static CloseableHttpClient get(@CheckForNull KeyStore trustKeyStore, int maxConnectionsPerRoute) {
+        ClientKey key = createKey(trustKeyStore, maxConnectionsPerRoute);
+        return CLIENTS.computeIfAbsent(key, k -> createClient(trustKeyStore, k.maxConnectionsPerRoute)).client;
+    }
+
+    /**
+     * Returns the shared non-blocking client for the given trust store and pool size. The client is started.
+     *
+     * @param trustKeyStore
+     *            key store with a custom certificate to trust, may be null
+     * @param maxConnectionsPerRoute
+     *            the maximum number of connections kept open to a single Elasticsearch node, which is also the
+     *            maximum number of concurrent requests to it
+     * @return the shared client, must not be closed by the caller
+     * @throws IOException
+     *             if the I/O reactor of the client could not be created
+     */
+    static CloseableHttpAsyncClient getAsync(@CheckForNull KeyStore trustKeyStore, int maxConnectionsPerRoute) throws IOException {
+        ClientKey key = createKey(trustKeyStore, maxConnectionsPerRoute);
+        try {
+            return ASYNC_CLIENTS.computeIfAbsent(key, k -> {
+                try {
+                    return createAsyncClient(trustKeyStore, k.maxConnectionsPerRoute);
+                } catch (IOReactorException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).client;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static ClientKey createKey(@CheckForNull KeyStore trustKeyStore, int maxConnectionsPerRoute) {
+        X509Certificate certificate = null;
+        try {
+            certificate = SSLHelper.getCertificate(trustKeyStore);
+        } catch (KeyStoreException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read certificate for http client. Will try without.", e);
+        }
+        return new ClientKey(certificate, Math.max(1, maxConnectionsPerRoute));
+    }
+
+    private static ClientHolder createClient(@CheckForNull KeyStore trustKeyStore, int maxConnectionsPerRoute) {
+        SSLConnectionSocketFactory sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+        if (trustKeyStore != null) {
+            try {
+                SSLContext sslContext = SSLHelper.createSSLContext(trustKeyStore);
+                if (sslContext != null) {
+                    sslSocketFactory = new SSLConnectionSocketFactory(sslContext);
+                }
+            } catch (KeyManagementException | CertificateException | NoSuchAlgorithmException | KeyStoreException | IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to set SSLContext for http client. Will try without.", e);
+            }
+        }
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory).build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsPerRoute * MAX_ROUTES);
+
+        CloseableHttpClient client = HttpClientBuilder.create().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(createRequestConfig()).build();
+        return new ClientHolder(client, connectionManager);
+    }
+
+    private static AsyncClientHolder createAsyncClient(@CheckForNull KeyStore trustKeyStore, int maxConnectionsPerRoute)
+            throws IOReactorException {
+        SchemeIOSessionStrategy sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+        if (trustKeyStore != null) {
+            try {
+                SSLContext sslContext = SSLHelper.createSSLContext(trustKeyStore);
+                if (sslContext != null) {
+                    sslStrategy = new SSLIOSessionStrategy(sslContext);
+                }
+            } catch (KeyManagementException | CertificateException | NoSuchAlgorithmException | KeyStoreException | IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to set SSLContext for http client. Will try without.", e);
+            }
+        }
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy> create()
+                .register("http", NoopIOSessionStrategy.INSTANCE).register("https", sslStrategy).build();
+
+        // a single I/O thread is enough to keep the connections to the cluster busy
+        IOReactorConfig reactorConfig = IOReactorConfig.custom().setIoThreadCount(1).setConnectTimeout(TIMEOUT_MILLIS)
+                .setSoTimeout(TIMEOUT_MILLIS).build();
+        NamingThreadFactory threadFactory = new NamingThreadFactory(new DaemonThreadFactory(), "ElasticSearchAsyncClient");
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(reactorConfig, threadFactory), registry);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsPerRoute * MAX_ROUTES);
+
+        CloseableHttpAsyncClient client = HttpAsyncClientBuilder.create().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(createRequestConfig()).setThreadFactory(threadFactory).build();
+        client.start();
+        return new AsyncClientHolder(client, connectionManager);
+    }
+
+    private static RequestConfig createRequestConfig() {
+        RequestConfig.Builder requestBuilder = RequestConfig.custom();
+        requestBuilder.setConnectTimeout(TIMEOUT_MILLIS);
+        requestBuilder.setConnectionRequestTimeout(TIMEOUT_MILLIS);
+        requestBuilder.setSocketTimeout(TIMEOUT_MILLIS);
+        return requestBuilder.build();
+    }
+
+    private static void evictIdleConnections() {
+        for (ClientHolder holder : CLIENTS.values()) {
+            try {
+                holder.connectionManager.closeExpiredConnections();
+                holder.connectionManager.closeIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to evict idle connections", e);
+            }
+        }
+        for (AsyncClientHolder holder : ASYNC_CLIENTS.values()) {
+            try {
+                holder.connectionManager.closeExpiredConnections();
+                holder.connectionManager.closeIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to evict idle connections", e);
+            }
+        }
+    }
+
+    private static final class ClientHolder {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        private ClientHolder(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    private static final class AsyncClientHolder {
+        private final CloseableHttpAsyncClient client;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        private AsyncClientHolder(CloseableHttpAsyncClient client, PoolingNHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    private static final class ClientKey {
+        @CheckForNull
+        private final X509Certificate certificate;
+        private final int maxConnectionsPerRoute;
+
+        private ClientKey(@CheckForNull X509Certificate certificate, int maxConnectionsPerRoute) {
+            this.certificate = certificate;
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientKey)) return false;
+            ClientKey other = (ClientKey) o;
+            return maxConnectionsPerRoute == other.maxConnectionsPerRoute && Objects.equals(certificate, other.certificate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(certificate, maxConnectionsPerRoute);
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.elasticsearch.search.SearchHit;
+import org.kohsuke.stapler.framework.io.ByteBuffer;
+
+/**
+ * A log in Elasticsearch which is read page by page when it is written instead of being loaded into memory first.
+ * The documents before the requested offset are skipped by their <code>logBytes</code> without fetching their
+ * messages, so that polling the end of a long log only renders the new lines.
+ * Documents sent by older versions of the plugin have no <code>logBytes</code> and are rendered to be skipped.
+ * While the build runs, the end of the log is remembered in its {@link LogPositions}, so that the next poll
+ * continues after the last document instead of skipping the documents before it.
+ */
+final class ElasticSearchLogBuffer extends ByteBuffer {
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Pages which are only skipped contain the sizes of the documents only, so they can be larger.
+     */
+    private static final int SKIP_PAGE_SIZE = 9999;
+
+    private static final String[] SKIP_FIELDS = { ConsoleNotes.LOG_BYTES_KEY };
+
+    private static final Logger LOGGER = Logger.getLogger(ElasticSearchLogBuffer.class.getName());
+
+    private final ElasticSearchLogReader reader;
+
+    @CheckForNull
+    private final String nodeId;
+
+    @CheckForNull
+    private final LogPositions positions;
+
+    private long length = -1;
+
+    /**
+     * @param nodeId
+     *            the id of the step or null for the log of the build
+     * @param positions
+     *            the positions of the viewers of a log which is still written or null if the log is complete
+     */
+    ElasticSearchLogBuffer(ElasticSearchLogReader reader, @CheckForNull String nodeId, @CheckForNull LogPositions positions) {
+        this.reader = reader;
+        this.nodeId = nodeId;
+        this.positions = positions;
+    }
+
+    /**
+     * @throws UncheckedIOException
+     *             if the length cannot be read, a length of 0 would make a poll of the log start again from the
+     *             beginning
+     */
+    @Override
+    public long length() {
+        if (length < 0) {
+            try {
+                long logLength = reader.getLogLength(nodeId);
+                length = logLength >= 0 ? logLength : countLength();
+            } catch (IOException x) {
+                throw new UncheckedIOException("Could not get the length of the log", x);
+            } finally {
+                closeReader();
+            }
+        }
+        return length;
+    }
+
+    private long countLength() throws IOException {
+        long count = 0;
+        try (InputStream in = newInputStream()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                count += n;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public InputStream newInputStream() {
+        return new LogInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        try (InputStream in = newInputStream()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                os.write(buf, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        throw new UnsupportedOperationException("The log is read from Elasticsearch");
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        throw new UnsupportedOperationException("The log is read from Elasticsearch");
+    }
+
+    private void closeReader() {
+        try {
+            reader.close();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not close the log reader", x);
+        }
+    }
+
+    /**
+     * The bytes of a rendered document. The line of a repeated line document is rendered once and read as often as
+     * it was repeated, so that the memory needed does not depend on the number of repetitions.
+     */
+    private static final class RenderedDocument extends ByteArrayOutputStream {
+        private final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        private int pos;
+
+        /**
+         * The number of times the rendered bytes are read again.
+         */
+        private long repetitions;
+
+        /**
+         * Renders a document.
+         *
+         * @return the size of the whole document
+         */
+        long render(SearchHit hit) throws IOException {
+            reset();
+            pos = 0;
+            try {
+                Map<String, Object> source = hit.getSourceAsMap();
+                ConsoleNotes.writeOnce(writer, source);
+                repetitions = ConsoleNotes.getRepeatCount(source) - 1;
+            } catch (RuntimeException x) {
+                throw new IOException(x);
+            }
+            writer.flush();
+            if (count == 0) {
+                repetitions = 0;
+            }
+            return count * (repetitions + 1);
+        }
+
+        /**
+         * @return the number of bytes which can be read before the next repetition or document
+         */
+        int available() {
+            if (pos == count && repetitions > 0) {
+                repetitions--;
+                pos = 0;
+            }
+            return count - pos;
+        }
+
+        int read() {
+            return buf[pos++] & 0xff;
+        }
+
+        int read(byte[] b, int off, int len) {
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        long skip(long n) {
+            long skipped = Math.min(n, count - pos);
+            pos += skipped;
+            if (skipped < n && repetitions > 0) {
+                // whole repetitions are skipped without reading them
+                long whole = Math.min(repetitions, (n - skipped) / count);
+                repetitions -= whole;
+                skipped += whole * count;
+                if (skipped < n && repetitions > 0) {
+                    repetitions--;
+                    pos = (int) (n - skipped);
+                    skipped = n;
+                }
+            }
+            return skipped;
+        }
+    }
+
+    /**
+     * Reads the documents in the order of the log, the page after the last consumed document is fetched with its sort
+     * values.
+     */
+    private final class LogInputStream extends InputStream {
+        private final RenderedDocument document = new RenderedDocument();
+
+        @CheckForNull
+        private Object[] searchAfter;
+
+        private SearchHit[] page = new SearchHit[0];
+
+        private int index;
+
+        private boolean pageHasSource;
+
+        private boolean lastPage;
+
+        /**
+         * The offset of the end of the last consumed document.
+         */
+        private long offset;
+
+        /**
+         * @param render
+         *            whether the document is rendered, otherwise only its size is needed
+         * @return the next document or null at the end of the log
+         */
+        @CheckForNull
+        private SearchHit peek(boolean render) throws IOException {
+            if (index < page.length) {
+                if (pageHasSource || !render) {
+                    return page[index];
+                }
+                // the document was fetched to be skipped, fetch it again with its message
+                fetch(true);
+            } else if (lastPage) {
+                return end();
+            } else {
+                fetch(render);
+            }
+            return index < page.length ? page[index] : end();
+        }
+
+        @CheckForNull
+        private SearchHit end() {
+            if (positions != null && searchAfter != null) {
+                positions.put(offset, searchAfter);
+            }
+            return null;
+        }
+
+        private void fetch(boolean render) throws IOException {
+            int size = render ? PAGE_SIZE : SKIP_PAGE_SIZE;
+            page = reader.readPage(nodeId, searchAfter, size, render ? ConsoleNotes.SOURCE_FIELDS : SKIP_FIELDS);
+            index = 0;
+            pageHasSource = render;
+            lastPage = page.length < size;
+        }
+
+        private void consume(long bytes) {
+            searchAfter = page[index].getSortValues();
+            index++;
+            offset += bytes;
+        }
+
+        /**
+         * @return whether a document was rendered, otherwise the end of the log is reached
+         */
+        private boolean renderNext() throws IOException {
+            while (document.available() == 0) {
+                SearchHit hit = peek(true);
+                if (hit == null) {
+                    return false;
+                }
+                consume(document.render(hit));
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return renderNext() ? document.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return renderNext() ? document.read(b, off, len) : -1;
+        }
+
+        /**
+         * Continues after the document which ends at the offset if a viewer read the log up to it before, otherwise
+         * skips whole documents by their size and renders the document the offset falls into.
+         *
+         * @return the number of bytes to skip even if the end of the log is reached before, because
+         *         {@link org.kohsuke.stapler.framework.io.LargeText} skips until the offset is reached
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            Object[] position = positions != null && searchAfter == null && n > 0 ? positions.get(n) : null;
+            if (position != null) {
+                searchAfter = position;
+                offset = n;
+                return n;
+            }
+            long skipped = document.skip(n);
+            while (skipped < n) {
+                SearchHit hit = peek(false);
+                if (hit == null) {
+                    return n;
+                }
+                Map<String, Object> source = hit.getSourceAsMap();
+                Object logBytes = source != null ? source.get(ConsoleNotes.LOG_BYTES_KEY) : null;
+                if (logBytes instanceof Number && skipped + ((Number) logBytes).longValue() <= n) {
+                    skipped += ((Number) logBytes).longValue();
+                    consume(((Number) logBytes).longValue());
+                } else if (renderNext()) {
+                    skipped += document.skip(n - skipped);
+                }
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return document.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+}
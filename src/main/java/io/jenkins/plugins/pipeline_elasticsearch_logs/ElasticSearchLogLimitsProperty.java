@@ -0,0 +1,89 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import javax.annotation.CheckForNull;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import net.sf.json.JSONObject;
+
+/**
+ * Overrides the log limits of the global configuration for the builds of a job. A value of 0 means no limit.
+ * The limits of an agent are shared by the builds of all jobs, so they are only configured globally.
+ *
+ * @see ElasticSearchConfiguration#getLogLimits(hudson.model.Run)
+ */
+public class ElasticSearchLogLimitsProperty extends JobProperty<Job<?, ?>> {
+
+    private long buildLinesPerSecond;
+
+    private long buildBytesPerSecond;
+
+    private long maxBytesPerBuild;
+
+    @DataBoundConstructor
+    public ElasticSearchLogLimitsProperty() {
+    }
+
+    public long getBuildLinesPerSecond() {
+        return buildLinesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setBuildLinesPerSecond(long buildLinesPerSecond) {
+        this.buildLinesPerSecond = buildLinesPerSecond;
+    }
+
+    public long getBuildBytesPerSecond() {
+        return buildBytesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setBuildBytesPerSecond(long buildBytesPerSecond) {
+        this.buildBytesPerSecond = buildBytesPerSecond;
+    }
+
+    public long getMaxBytesPerBuild() {
+        return maxBytesPerBuild;
+    }
+
+    @DataBoundSetter
+    public void setMaxBytesPerBuild(long maxBytesPerBuild) {
+        this.maxBytesPerBuild = maxBytesPerBuild;
+    }
+
+    /**
+     * Returns the limits of this job combined with the limits of the agent from the global configuration.
+     */
+    public LogLimits getLogLimits(long agentLinesPerSecond, long agentBytesPerSecond) {
+        return new LogLimits(buildLinesPerSecond, buildBytesPerSecond, agentLinesPerSecond, agentBytesPerSecond, maxBytesPerBuild);
+    }
+
+    @Extension
+    @Symbol("elasticsearchLogLimits")
+    public static class DescriptorImpl extends JobPropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Elasticsearch log limits";
+        }
+
+        @Override
+        @CheckForNull
+        public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            // the property only exists if the limits are overridden
+            JSONObject limits = formData.optJSONObject("overrideLogLimits");
+            if (limits == null) {
+                return null;
+            }
+            return req.bindJSON(ElasticSearchLogLimitsProperty.class, limits);
+        }
+    }
+
+}
@@ -2,45 +2,46 @@ package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import static java.lang.String.format;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.CheckForNull;
 
-import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.search.ClearScrollRequest;
-import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.missing.Missing;
+import org.elasticsearch.search.aggregations.metrics.Sum;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner.Executable;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
-import org.kohsuke.stapler.framework.io.ByteBuffer;
 
 import hudson.console.AnnotatedLargeText;
-import net.sf.json.JSONArray;
 
-public class ElasticSearchLogReader {
+/**
+ * Reads the logs of a build from Elasticsearch. The logs are not read when they are requested, but streamed page by
+ * page when they are written, see {@link ElasticSearchLogBuffer}.
+ */
+public class ElasticSearchLogReader implements Closeable {
 
-    private final static int QUERY_SIZE = 9999;
-    private static final TimeValue SCROLL_TIME_VALUE = TimeValue.timeValueSeconds(60);
+    private static final String TIMESTAMP_MILLIS = "timestampMillis";
+    private static final String STREAM_ID = "streamId";
+    private static final String SEQ = "seq";
+
+    private static final String WITHOUT_LOG_BYTES = "withoutLogBytes";
 
     private static final Logger LOGGER = Logger.getLogger(ElasticSearchLogReader.class.getName());
 
@@ -48,6 +49,9 @@ public class ElasticSearchLogReader {
     private final String uid;
     private final ElasticSearchRunConfiguration config;
 
+    @CheckForNull
+    private RestHighLevelClient client;
+
     public ElasticSearchLogReader(ElasticSearchRunConfiguration config) throws IOException {
         access = config.createAccess();
         this.config = config;
@@ -55,128 +59,124 @@ public class ElasticSearchLogReader {
     }
 
     AnnotatedLargeText<FlowNode> stepLog(FlowNode node, boolean completed) throws IOException {
-        ByteBuffer buf = new ByteBuffer();
-        readFromElasticsearch(buf, node.getId());
-        return new AnnotatedLargeText<>(buf, StandardCharsets.UTF_8, completed, node);
+        return new AnnotatedLargeText<>(new ElasticSearchLogBuffer(this, node.getId(), positions(node.getId(), completed)),
+                StandardCharsets.UTF_8, completed, node);
     }
 
     AnnotatedLargeText<Executable> overallLog(Executable build, boolean complete) throws IOException {
-        ByteBuffer buf = new ByteBuffer();
-        readFromElasticsearch(buf, null);
-        return new AnnotatedLargeText<FlowExecutionOwner.Executable>(buf, StandardCharsets.UTF_8, complete, build);
+        return new AnnotatedLargeText<FlowExecutionOwner.Executable>(new ElasticSearchLogBuffer(this, null, positions(null, complete)),
+                StandardCharsets.UTF_8, complete, build);
     }
 
-    private void readFromElasticsearch(OutputStream os, @CheckForNull String nodeId) throws IOException {
-        try (Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
-            queryElasticSearch(w, nodeId, null);
-            w.flush();
-        } catch (RuntimeException x) {
-            throw new IOException(x);
+    /**
+     * Only the logs of running builds are polled for new lines.
+     */
+    @CheckForNull
+    private LogPositions positions(@CheckForNull String nodeId, boolean complete) {
+        if (complete) {
+            LogPositions.forget(uid, nodeId);
+            return null;
         }
+        return LogPositions.of(uid, nodeId);
     }
 
-    private void queryElasticSearch(Writer writer, @CheckForNull String nodeId, @CheckForNull JSONArray searchAfter) throws IOException {
-        BoolQueryBuilder qb = QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("uid", uid))
-                .must(QueryBuilders.matchQuery("eventType", "nodeMessage buildMessage"));
-        if (nodeId != null) qb.must(QueryBuilders.matchQuery("flowNodeId", nodeId));
-
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder().size(QUERY_SIZE).sort("timestampMillis", SortOrder.ASC)
-                .query(qb);
-        SearchRequest searchRequest = new SearchRequest().indices(config.getIndices()).source(searchSourceBuilder)
-                .scroll(SCROLL_TIME_VALUE);
+    private QueryBuilder createQuery(@CheckForNull String nodeId) {
+        // filters are not scored and their results are cached by Elasticsearch
+        BoolQueryBuilder qb = QueryBuilders.boolQuery().filter(exactValue("uid", uid))
+                .filter(exactValue("eventType", "nodeMessage", "buildMessage"));
+        if (nodeId != null) qb.filter(exactValue("flowNodeId", nodeId));
+        return qb;
+    }
 
-        RestHighLevelClient client = access.createNewRestClient();
-        String reqId = UUID.randomUUID().toString();
-        LOGGER.log(Level.FINE, format("SearchRequest[%s] - %s: %s", reqId, config.getUri(), searchRequest.toString()));
-        SearchResponse scrollResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-        LOGGER.log(Level.FINER, format("SearchResponse[%s] hits: %s", reqId, scrollResponse.getHits().getTotalHits()));
-        try (ScrollingEntryIterable entryIterable = new ScrollingEntryIterable(client, scrollResponse, reqId)) {
-            for (SearchHit hit : entryIterable) {
-                ConsoleNotes.write(writer, hit.getSourceAsMap());
-            }
+    /**
+     * Sums up the sizes of the message documents of the log.
+     *
+     * @param nodeId
+     *            the id of the step or null for the log of the build
+     * @return the size of the log in bytes or -1 if documents without {@value ConsoleNotes#LOG_BYTES_KEY} were sent by
+     *         an older version of the plugin
+     */
+    long getLogLength(@CheckForNull String nodeId) throws IOException {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder().size(0).trackTotalHits(false).query(createQuery(nodeId))
+                .aggregation(AggregationBuilders.sum(ConsoleNotes.LOG_BYTES_KEY).field(ConsoleNotes.LOG_BYTES_KEY))
+                .aggregation(AggregationBuilders.missing(WITHOUT_LOG_BYTES).field(ConsoleNotes.LOG_BYTES_KEY));
+        SearchResponse searchResponse = search(searchSourceBuilder);
+        Missing withoutLogBytes = searchResponse.getAggregations().get(WITHOUT_LOG_BYTES);
+        if (withoutLogBytes.getDocCount() > 0) {
+            return -1;
         }
+        Sum logBytes = searchResponse.getAggregations().get(ConsoleNotes.LOG_BYTES_KEY);
+        return (long) logBytes.getValue();
     }
 
-    private static class ScrollingEntryIterable implements Iterable<SearchHit>, AutoCloseable {
-
-        private SearchResponse scrollResponse;
-        private final RestHighLevelClient client;
-        private final String reqId;
-
-        public ScrollingEntryIterable(RestHighLevelClient client, SearchResponse scrollResponse, String reqId) {
-            this.client = client;
-            this.scrollResponse = scrollResponse;
-            this.reqId = reqId;
+    /**
+     * Reads a page of message documents in the order of the log.
+     *
+     * @param nodeId
+     *            the id of the step or null for the log of the build
+     * @param searchAfter
+     *            the sort values of the last document of the previous page or null for the first page
+     * @param size
+     *            the maximum number of documents
+     * @param fields
+     *            the fields of the documents to read
+     */
+    SearchHit[] readPage(@CheckForNull String nodeId, @CheckForNull Object[] searchAfter, int size, String[] fields) throws IOException {
+        // (timestampMillis, streamId, seq) is unique, so paging with search_after neither skips nor repeats lines
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder().size(size).fetchSource(fields, null)
+                .trackTotalHits(false).trackScores(false)
+                .sort(SortBuilders.fieldSort(TIMESTAMP_MILLIS).order(SortOrder.ASC))
+                .sort(SortBuilders.fieldSort(STREAM_ID).order(SortOrder.ASC).unmappedType("long"))
+                .sort(SortBuilders.fieldSort(SEQ).order(SortOrder.ASC).unmappedType("long")).query(createQuery(nodeId));
+        if (searchAfter != null) {
+            searchSourceBuilder.searchAfter(searchAfter);
         }
+        return search(searchSourceBuilder).getHits().getHits();
+    }
 
-        @Override
-        public Iterator<SearchHit> iterator() {
-            return new Iterator<SearchHit>() {
-                private int currentIndex = 0;
-
-                @Override
-                public boolean hasNext() {
-                    // An empty SearchHits array means that there are no more elements.
-                    // This condition occurs after the next() methods returned the last entry.
-                    return scrollResponse.getHits().getHits().length != 0;
-                }
-
-                @Override
-                // This method reloads new entries after returning the last one from the current
-                // batch.
-                public SearchHit next() {
-                    SearchHit[] hits = scrollResponse.getHits().getHits();
-                    if (currentIndex < hits.length) {
-                        SearchHit searchHit = hits[currentIndex++];
-                        if (currentIndex == hits.length) {
-                            try {
-                                // Preemptively request next SearchScroll batch.
-                                requestNextSearchScrollBatch();
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        return searchHit;
-                    } else {
-                        throw new NoSuchElementException();
-                    }
-                }
-
-                private void requestNextSearchScrollBatch() throws IOException {
-                    LOGGER.log(Level.FINE,
-                            format("SearchRequest[%s]: Preemptive scroll search with id '%s'", reqId, scrollResponse.getScrollId()));
-                    SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollResponse.getScrollId()).scroll(SCROLL_TIME_VALUE);
-                    scrollResponse = client.scroll(scrollRequest, RequestOptions.DEFAULT);
-                    LOGGER.log(Level.FINER, format("SearchResponse[%s] scroll hits: %s", reqId, scrollResponse.getHits().getTotalHits()));
-                    currentIndex = 0;
-                }
-
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-            };
+    private SearchResponse search(SearchSourceBuilder searchSourceBuilder) throws IOException {
+        SearchRequest searchRequest = new SearchRequest().indices(config.getIndices()).source(searchSourceBuilder);
+        if (config.getRouting() != null) {
+            // all documents of the build are in the shard selected by its uid
+            searchRequest.routing(config.getRouting());
         }
 
-        @Override
-        public void close() {
-            LOGGER.finer(String.format("Request to clear scroll search with id '%s'", scrollResponse.getScrollId()));
-
-            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-            clearScrollRequest.addScrollId(scrollResponse.getScrollId());
+        String reqId = UUID.randomUUID().toString();
+        LOGGER.log(Level.FINE, format("SearchRequest[%s] - %s: %s", reqId, config.getUri(), searchRequest.toString()));
+        try {
+            SearchResponse searchResponse = getClient().search(searchRequest, RequestOptions.DEFAULT);
+            LOGGER.log(Level.FINER, format("SearchResponse[%s] hits: %s", reqId, searchResponse.getHits().getHits().length));
+            return searchResponse;
+        } catch (RuntimeException x) {
+            throw new IOException(x);
+        }
+    }
 
-            client.clearScrollAsync(clearScrollRequest, RequestOptions.DEFAULT, new ActionListener<ClearScrollResponse>() {
-                @Override
-                public void onResponse(ClearScrollResponse response) {
-                    // noop
-                }
+    private synchronized RestHighLevelClient getClient() {
+        if (client == null) {
+            client = access.createNewRestClient();
+        }
+        return client;
+    }
 
-                @Override
-                public void onFailure(Exception e) {
-                    // noop
-                }
-            });
+    /**
+     * Closes the client of the reader. It is opened again if the log is read again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (client != null) {
+            client.close();
+            client = null;
         }
     }
 
+    /**
+     * Matches the documents whose field has one of the values. The field is a keyword field if the index was created
+     * with the {@link IndexTemplate}, otherwise dynamic mapping made it a text field with a keyword sub-field.
+     */
+    private static QueryBuilder exactValue(String field, String... values) {
+        return QueryBuilders.boolQuery().should(QueryBuilders.termsQuery(field, values))
+                .should(QueryBuilders.termsQuery(field + ".keyword", values)).minimumShouldMatch(1);
+    }
+
 }
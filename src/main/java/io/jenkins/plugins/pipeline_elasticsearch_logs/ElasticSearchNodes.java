@@ -0,0 +1,222 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHost;
+
+import net.sf.json.JSONObject;
+
+/**
+ * The nodes of an Elasticsearch cluster which requests are spread across. A request goes to the live node with the
+ * fewest outstanding requests, among equally busy nodes in round-robin order. A node which fails is marked dead and
+ * only used again after a backoff, which doubles with every further failure. If all nodes are dead, the node which
+ * is due to be retried first is used.
+ * The nodes are the configured ones or, if sniffing is enabled, the http nodes the cluster reports, see
+ * {@link #update(List)}. The state of the nodes is shared by all {@link ElasticSearchAccess} instances of this JVM
+ * with the same configured nodes.
+ */
+final class ElasticSearchNodes {
+    private static final Logger LOGGER = Logger.getLogger(ElasticSearchNodes.class.getName());
+
+    static final long SNIFF_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long MIN_DEAD_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long MAX_DEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<String, ElasticSearchNodes> NODES = new ConcurrentHashMap<>();
+
+    private final boolean sniff;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong nextSniffMillis = new AtomicLong();
+    private volatile List<Node> nodes;
+
+    private ElasticSearchNodes(List<HttpHost> hosts, boolean sniff) {
+        this.sniff = sniff;
+        this.nodes = createNodes(hosts, Collections.emptyMap());
+    }
+
+    /**
+     * Returns the shared nodes for the given configured nodes.
+     *
+     * @param hosts
+     *            the configured nodes, not empty
+     * @param sniff
+     *            whether the nodes are replaced by the http nodes the cluster reports
+     */
+    static ElasticSearchNodes get(List<HttpHost> hosts, boolean sniff) {
+        return NODES.computeIfAbsent(hosts + "|" + sniff, k -> new ElasticSearchNodes(hosts, sniff));
+    }
+
+    private static List<Node> createNodes(List<HttpHost> hosts, Map<HttpHost, Node> known) {
+        List<Node> result = new ArrayList<>(hosts.size());
+        for (HttpHost host : hosts) {
+            Node node = known.get(host);
+            result.add(node != null ? node : new Node(host));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    List<HttpHost> getHosts() {
+        List<HttpHost> hosts = new ArrayList<>();
+        for (Node node : nodes) {
+            hosts.add(node.host);
+        }
+        return hosts;
+    }
+
+    /**
+     * Selects the node for the next request.
+     */
+    Node select() {
+        List<Node> current = nodes;
+        long now = System.currentTimeMillis();
+        List<Node> alive = new ArrayList<>(current.size());
+        Node firstToRetry = null;
+        for (Node node : current) {
+            if (node.isAlive(now)) {
+                alive.add(node);
+            } else if (firstToRetry == null || node.deadUntil < firstToRetry.deadUntil) {
+                firstToRetry = node;
+            }
+        }
+        if (alive.isEmpty()) {
+            return firstToRetry;
+        }
+        // rotate over the live nodes only, otherwise the node after a dead one would get its share as well
+        int start = Math.floorMod(next.getAndIncrement(), alive.size());
+        Node best = null;
+        for (int i = 0; i < alive.size(); i++) {
+            Node node = alive.get((start + i) % alive.size());
+            if (best == null || node.outstanding.get() < best.outstanding.get()) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return <code>true</code> if sniffing is enabled and due, the caller is then expected to sniff and call
+     *         {@link #update(List)}
+     */
+    boolean claimSniff() {
+        if (!sniff) {
+            return false;
+        }
+        long due = nextSniffMillis.get();
+        long now = System.currentTimeMillis();
+        return now >= due && nextSniffMillis.compareAndSet(due, now + SNIFF_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Replaces the nodes with the sniffed ones. Nodes which are known already keep their state.
+     *
+     * @param hosts
+     *            the http nodes of the cluster, ignored if empty
+     */
+    synchronized void update(List<HttpHost> hosts) {
+        if (hosts.isEmpty()) {
+            return;
+        }
+        Map<HttpHost, Node> known = new HashMap<>();
+        for (Node node : nodes) {
+            known.put(node.host, node);
+        }
+        nodes = createNodes(hosts, known);
+        LOGGER.log(Level.FINE, "Sniffed Elasticsearch nodes: {0}", hosts);
+    }
+
+    /**
+     * Reads the publish addresses of the nodes from the response of <code>_nodes/http</code>. An address is either
+     * <code>ip:port</code> or <code>hostname/ip:port</code>, the host name is preferred so that it matches the
+     * certificate.
+     */
+    static List<HttpHost> parseHttpNodes(JSONObject result, String scheme) {
+        List<HttpHost> hosts = new ArrayList<>();
+        JSONObject nodes = result.optJSONObject("nodes");
+        if (nodes == null) {
+            return hosts;
+        }
+        for (Iterator<?> it = nodes.keys(); it.hasNext();) {
+            JSONObject http = nodes.getJSONObject((String) it.next()).optJSONObject("http");
+            String address = http != null ? http.optString("publish_address", null) : null;
+            if (StringUtils.isBlank(address)) {
+                continue;
+            }
+            int portStart = address.lastIndexOf(':');
+            int hostEnd = address.indexOf('/');
+            String host = address.substring(0, hostEnd > 0 ? hostEnd : portStart);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            hosts.add(new HttpHost(host, Integer.parseInt(address.substring(portStart + 1)), scheme));
+        }
+        return hosts;
+    }
+
+    static final class Node {
+        private final HttpHost host;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long deadUntil;
+        private int failures;
+
+        private Node(HttpHost host) {
+            this.host = host;
+        }
+
+        HttpHost getHost() {
+            return host;
+        }
+
+        private boolean isAlive(long now) {
+            return deadUntil <= now;
+        }
+
+        void begin() {
+            outstanding.incrementAndGet();
+        }
+
+        void end() {
+            outstanding.decrementAndGet();
+        }
+
+        synchronized void markDead() {
+            failures++;
+            long backoff = Math.min(MAX_DEAD_MILLIS, MIN_DEAD_MILLIS << Math.min(failures - 1, 16));
+            deadUntil = System.currentTimeMillis() + backoff;
+            if (failures == 1) {
+                LOGGER.log(Level.WARNING, "Elasticsearch node {0} failed, retrying it in {1} ms", new Object[] { host, backoff });
+            }
+        }
+
+        void markAlive() {
+            if (deadUntil == 0) {
+                return;
+            }
+            synchronized (this) {
+                if (failures > 0) {
+                    LOGGER.log(Level.INFO, "Elasticsearch node {0} is available again", host);
+                }
+                failures = 0;
+                deadUntil = 0;
+            }
+        }
+    }
+
+}
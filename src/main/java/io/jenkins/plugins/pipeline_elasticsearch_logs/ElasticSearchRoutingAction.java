@@ -0,0 +1,34 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * Marks a build whose documents are routed by its uid. It is added when the build starts with the option enabled and
+ * stored with the build, so that the log of the build is read the way it was written even if the option changes later.
+ *
+ * @see ElasticSearchConfiguration#isRouteByRun()
+ */
+@Restricted(NoExternalUse.class)
+public class ElasticSearchRoutingAction extends InvisibleAction {
+
+    /**
+     * Records whether the documents of a build which is starting are routed by its uid.
+     */
+    static void record(Run<?, ?> run, boolean routeByRun) {
+        if (routeByRun && !isRouted(run)) {
+            run.addAction(new ElasticSearchRoutingAction());
+        }
+    }
+
+    /**
+     * @return whether the documents of the build were written with routing
+     */
+    static boolean isRouted(Run<?, ?> run) {
+        return run.getAction(ElasticSearchRoutingAction.class) != null;
+    }
+
+}
@@ -1,27 +1,38 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+
 /**
  * A serializable representation of the plugin configuration with credentials resolved.
  * Reason: on remote side credentials cannot be accessed by credentialsId, same for keystore.
@@ -33,16 +44,27 @@ public class ElasticSearchRunConfiguration implements Serializable {
 
     private static final String RUN_ID = "runId";
 
-    private static final String TIMESTAMP_MILLIS = "timestampMillis";
+    static final String TIMESTAMP_MILLIS = "timestampMillis";
 
-    private static final String TIMESTAMP = "timestamp";
+    static final String TIMESTAMP = "timestamp";
 
     private static final Logger LOGGER = Logger.getLogger(ElasticSearchRunConfiguration.class.getName());
 
-    private static final DateTimeFormatter UTC_MILLIS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final byte[] RUN_ID_NAME = JsonEncoder.name(RUN_ID);
+
+    private static final byte[] UID_NAME = JsonEncoder.name(UID);
+
+    private static final byte[] EVENT_TYPE_NAME = JsonEncoder.name(ElasticSearchGraphListener.EVENT_TYPE);
 
     private static final long serialVersionUID = 1L;
 
+    private static final File SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "elasticsearch-logs");
+
+    /**
+     * The engines by cluster and user, guarded by the map itself.
+     */
+    private static final Map<String, SharedEngine> SHIPPING_ENGINES = new HashMap<>();
+
     private final String username;
 
     private final String password;
@@ -62,6 +84,61 @@ public class ElasticSearchRunConfiguration implements Serializable {
 
     private final boolean readLogsFromElasticsearch;
 
+    private int maxConnectionsPerRoute = ElasticSearchAccess.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    private List<URI> additionalNodes = Collections.emptyList();
+
+    private boolean sniffNodes;
+
+    private int compressionThreshold = -1;
+
+    private boolean asyncGraphEvents;
+
+    private boolean chunked;
+
+    private int chunkMaxBytes;
+
+    private long chunkLingerMillis;
+
+    private boolean collapseRepeatedLines;
+
+    private boolean routeByRun;
+
+    private boolean bulk;
+
+    private int batchSize;
+
+    private int batchMaxBytes;
+
+    private long batchLingerMillis;
+
+    private int bufferCapacity;
+
+    private OverflowPolicy overflowPolicy;
+
+    private boolean writeAhead;
+
+    private String writeAheadDirectory;
+
+    private long writeAheadMaxBytes = Long.MAX_VALUE;
+
+    private int maxRequestsInFlight;
+
+    private boolean circuitBreaker;
+
+    @CheckForNull
+    private LogLimits logLimits;
+
+    private int breakerFailureThreshold;
+
+    private long breakerCooldownMillis;
+
+    /**
+     * When the configuration was created on the controller, the engine of a newer configuration replaces the engine of
+     * an older one if their options differ.
+     */
+    private final long createdMillis = System.currentTimeMillis();
+
     public ElasticSearchRunConfiguration(URI uri, String username, String password, byte[] keyStoreBytes, boolean saveAnnotations,
             String uid, JSONObject runId, boolean readLogsFromElasticsearch, Supplier<ElasticSearchAccess> accessFactory) {
         super();
@@ -92,6 +169,179 @@ public class ElasticSearchRunConfiguration implements Serializable {
         return readLogsFromElasticsearch;
     }
 
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @param additionalNodes
+     *            further nodes of the cluster to spread the requests across
+     * @param sniffNodes
+     *            whether to use the http nodes the cluster reports instead of the configured ones
+     * @see ElasticSearchAccess#setNodes(List, boolean)
+     */
+    public void setNodes(List<URI> additionalNodes, boolean sniffNodes) {
+        this.additionalNodes = new ArrayList<>(additionalNodes);
+        this.sniffNodes = sniffNodes;
+    }
+
+    /**
+     * @param compressionThreshold
+     *            the minimum size of a request body in bytes to compress it with gzip, a negative value disables compression
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param asyncGraphEvents
+     *            whether the events of the flow graph are sent in the background instead of on the thread running the pipeline
+     */
+    public void setAsyncGraphEvents(boolean asyncGraphEvents) {
+        this.asyncGraphEvents = asyncGraphEvents;
+    }
+
+    public boolean isAsyncGraphEvents() {
+        return asyncGraphEvents;
+    }
+
+    /**
+     * Enables collecting consecutive lines of a step or the build in one document.
+     *
+     * @param chunkMaxBytes
+     *            the size of the lines in bytes at which a document is sent
+     * @param chunkLingerMillis
+     *            the maximum time the first line of a document waits for more lines
+     */
+    public void setChunkOptions(int chunkMaxBytes, long chunkLingerMillis) {
+        this.chunked = true;
+        this.chunkMaxBytes = chunkMaxBytes;
+        this.chunkLingerMillis = chunkLingerMillis;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public int getChunkMaxBytes() {
+        return chunkMaxBytes;
+    }
+
+    public long getChunkLingerMillis() {
+        return chunkLingerMillis;
+    }
+
+    /**
+     * Enables sending consecutive identical lines in one document and removing the text overwritten by carriage
+     * returns from lines.
+     *
+     * @see RepeatedLine
+     */
+    public void setCollapseRepeatedLines(boolean collapseRepeatedLines) {
+        this.collapseRepeatedLines = collapseRepeatedLines;
+    }
+
+    public boolean isCollapseRepeatedLines() {
+        return collapseRepeatedLines;
+    }
+
+    /**
+     * Enables routing all documents of the build by its uid, so that they are stored in one shard and the log of
+     * the build is read from that shard only.
+     */
+    public void setRouteByRun(boolean routeByRun) {
+        this.routeByRun = routeByRun;
+    }
+
+    /**
+     * @return the routing value of the documents of the build, null if they are routed by their ids
+     */
+    @CheckForNull
+    public String getRouting() {
+        return routeByRun ? uid : null;
+    }
+
+    /**
+     * Enables sending events with the <code>_bulk</code> API.
+     *
+     * @param batchSize
+     *            the maximum number of events per request
+     * @param batchMaxBytes
+     *            the maximum size of the events per request
+     * @param batchLingerMillis
+     *            the maximum time an event waits for the batch to fill up
+     * @param bufferCapacity
+     *            the size of the buffer for events waiting to be sent in bytes
+     * @param overflowPolicy
+     *            what happens with events when the buffer is full
+     */
+    public void setBulkOptions(int batchSize, int batchMaxBytes, long batchLingerMillis, int bufferCapacity,
+            OverflowPolicy overflowPolicy) {
+        this.bulk = true;
+        this.batchSize = batchSize;
+        this.batchMaxBytes = batchMaxBytes;
+        this.batchLingerMillis = batchLingerMillis;
+        this.bufferCapacity = bufferCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Writes all events of bulk mode to segment files on the local disk first. They are sent from there and only
+     * deleted once Elasticsearch has acknowledged them, so they survive outages of Elasticsearch and restarts.
+     *
+     * @param writeAheadDirectory
+     *            the directory for the segment files, a temporary directory if blank
+     * @param writeAheadMaxBytes
+     *            the maximum size of the events in the segment files, when it is reached the overflow policy of
+     *            {@link #setBulkOptions(int, int, long, int, OverflowPolicy)} decides whether an event waits or is dropped
+     */
+    public void setWriteAhead(String writeAheadDirectory, long writeAheadMaxBytes) {
+        this.writeAhead = true;
+        this.writeAheadDirectory = writeAheadDirectory;
+        this.writeAheadMaxBytes = writeAheadMaxBytes;
+    }
+
+    /**
+     * Sends the batches of bulk mode with the non-blocking client, several at once. Not used with write-ahead.
+     *
+     * @param maxRequestsInFlight
+     *            the maximum number of concurrent bulk requests
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    /**
+     * Enables the {@link CircuitBreaker}.
+     *
+     * @param failureThreshold
+     *            the number of consecutive failed requests after which the breaker opens
+     * @param cooldownMillis
+     *            the time the breaker stays open before it probes the cluster
+     */
+    public void setCircuitBreaker(int failureThreshold, long cooldownMillis) {
+        this.circuitBreaker = true;
+        this.breakerFailureThreshold = failureThreshold;
+        this.breakerCooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * @param logLimits
+     *            the limits for the log lines of the build, null for no limits
+     */
+    public void setLogLimits(@CheckForNull LogLimits logLimits) {
+        this.logLimits = logLimits;
+    }
+
+    @CheckForNull
+    public LogLimits getLogLimits() {
+        return logLimits;
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
     public URI getUri() {
         return uri;
     }
@@ -116,14 +366,27 @@ public class ElasticSearchRunConfiguration implements Serializable {
         return trustKeyStore;
     }
 
-    public Map<String, Object> createData() {
-        Map<String, Object> data = new LinkedHashMap<>();
-        Date date = new Date();
-        data.put(TIMESTAMP, ZonedDateTime.now(ZoneOffset.UTC).format(UTC_MILLIS));
-        data.put(TIMESTAMP_MILLIS, date.getTime());
-        data.put(RUN_ID, JSONObject.fromObject(runIdJsonString));
-        data.put(UID, uid);
-        return data;
+    /**
+     * Compiles the constant part of the documents of a producer: the run id and the uid, and optionally the event
+     * type and the node info.
+     *
+     * @param eventType
+     *            the event type of all documents or null if it differs between the documents
+     * @param nodeInfo
+     *            the node of all documents or null
+     * @return the template to start the documents with
+     */
+    EventTemplate createEventTemplate(@CheckForNull String eventType, @CheckForNull NodeInfo nodeInfo) {
+        JsonEncoder encoder = new JsonEncoder();
+        encoder.rawField(RUN_ID_NAME, runIdJsonString.getBytes(StandardCharsets.UTF_8));
+        encoder.field(UID_NAME, uid);
+        if (eventType != null) {
+            encoder.field(EVENT_TYPE_NAME, eventType);
+        }
+        if (nodeInfo != null) {
+            nodeInfo.writeNodeInfo(encoder);
+        }
+        return new EventTemplate(encoder.toByteArray());
     }
 
     public ElasticSearchAccess createAccess() {
@@ -134,16 +397,128 @@ public class ElasticSearchRunConfiguration implements Serializable {
             if (getTrustKeyStore() != null) {
                 writer.setTrustKeyStore(getTrustKeyStore());
             }
+            writer.setMaxConnectionsPerRoute(maxConnectionsPerRoute);
+            writer.setNodes(additionalNodes, sniffNodes);
+            writer.setCompressionThreshold(compressionThreshold);
             return writer;
         }
     }
 
+    /**
+     * Returns the engine which sends the documents for this configuration. All producers in a JVM using the same
+     * Elasticsearch cluster and user share one engine, in bulk mode including its bulk processor and buffer.
+     * If the configuration is newer than the one the engine was created for and its options differ, the engine is
+     * closed and replaced. The options of an older configuration don't replace the engine, so that builds which
+     * were started before the options changed use the current engine, too.
+     */
+    ShippingEngine getShippingEngine() throws IOException {
+        if (accessFactory != null) {
+            return createShippingEngine();
+        }
+        String key = uri + "|" + username;
+        String options = getOptionsHash();
+        ShippingEngine replaced = null;
+        SharedEngine shared;
+        synchronized (SHIPPING_ENGINES) {
+            shared = SHIPPING_ENGINES.get(key);
+            if (shared == null) {
+                shared = new SharedEngine(createShippingEngine(), options, createdMillis);
+                SHIPPING_ENGINES.put(key, shared);
+            } else if (!shared.options.equals(options) && createdMillis > shared.createdMillis) {
+                LOGGER.log(Level.INFO, "The options for Elastic Search at {0} changed, replacing the shipping engine", uri);
+                replaced = shared.engine;
+                shared = new SharedEngine(createShippingEngine(), options, createdMillis);
+                SHIPPING_ENGINES.put(key, shared);
+            }
+        }
+        // the producers of the replaced engine are not blocked by the lock of all engines meanwhile
+        if (replaced != null) {
+            replaced.replaceWith(shared.engine);
+        }
+        return shared.engine;
+    }
+
+    /**
+     * Hashes the options of the engine, so that the credentials are not kept in memory longer than the configuration.
+     */
+    private String getOptionsHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (Object option : new Object[] { uri, additionalNodes, sniffNodes, username, Arrays.hashCode(keyStoreBytes),
+                maxConnectionsPerRoute, compressionThreshold, bulk, batchSize, batchMaxBytes, batchLingerMillis, bufferCapacity,
+                overflowPolicy, writeAhead, writeAheadDirectory, writeAheadMaxBytes, maxRequestsInFlight, circuitBreaker,
+                breakerFailureThreshold, breakerCooldownMillis }) {
+            update(digest, String.valueOf(option));
+        }
+        // the password is hashed without copying it into another string
+        if (password != null) {
+            CharBuffer chars = CharBuffer.wrap(password);
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(chars);
+            digest.update(bytes);
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte) 0);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String option) {
+        digest.update(option.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '|');
+    }
+
+    private ShippingEngine createShippingEngine() throws IOException {
+        ElasticSearchAccess access = createAccess();
+        CircuitBreaker breaker = circuitBreaker ? new CircuitBreaker(access, breakerFailureThreshold, breakerCooldownMillis) : null;
+        return new ShippingEngine(access, bulk ? createBulkProcessor(access) : null, breaker);
+    }
+
+    private ElasticSearchBulkProcessor createBulkProcessor(ElasticSearchAccess access) throws IOException {
+        if (writeAhead) {
+            File directory = StringUtils.isBlank(writeAheadDirectory) ? getDefaultWriteAheadDirectory() : new File(writeAheadDirectory);
+            // documents spooled for the same cluster and user are sent again after a restart
+            String name = Integer.toHexString((uri + "|" + username).hashCode());
+            WriteAheadSpool spool = WriteAheadSpool.open(directory, name, WriteAheadSpool.DEFAULT_SEGMENT_SIZE, writeAheadMaxBytes,
+                    overflowPolicy);
+            return new ElasticSearchBulkProcessor(access, batchSize, batchMaxBytes, batchLingerMillis, spool);
+        }
+        ElasticSearchBulkProcessor processor = new ElasticSearchBulkProcessor(access, batchSize, batchMaxBytes, batchLingerMillis,
+                bufferCapacity, overflowPolicy, SPILL_DIRECTORY);
+        processor.setMaxRequestsInFlight(maxRequestsInFlight);
+        return processor;
+    }
+
+    /**
+     * Returns the spool directory in the root directory of the controller, which survives a restart of the machine.
+     * An agent does not know its root directory here, it uses the temporary directory, which survives a restart of the
+     * agent process, but may be cleaned when the machine restarts.
+     */
+    private static File getDefaultWriteAheadDirectory() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return new File(jenkins != null ? new File(jenkins.getRootDir(), "elasticsearch-logs") : SPILL_DIRECTORY, "spool");
+    }
+
     public String[] getIndices() {
-        String path = uri.getPath();
-        while (path.startsWith("/"))
-            path = path.substring(1);
-        String[] splitPath = path.split("/");
-        return new String[] { splitPath[0] };
+        return new String[] { ElasticSearchAccess.getIndex(uri) };
+    }
+
+    /**
+     * An engine in {@link #SHIPPING_ENGINES} with the options it was created for.
+     */
+    private static final class SharedEngine {
+        private final ShippingEngine engine;
+        private final String options;
+        private final long createdMillis;
+
+        SharedEngine(ShippingEngine engine, String options, long createdMillis) {
+            this.engine = engine;
+            this.options = options;
+            this.createdMillis = createdMillis;
+        }
     }
 
 }
@@ -4,15 +4,20 @@ import hudson.Extension;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.listeners.RunListener;
-import net.sf.json.JSONObject;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Extension
 public class ElasticSearchRunListener extends RunListener<Run<?, ?>> {
+    private static final String EVENT_TYPE_BUILD_START = "buildStart";
+
+    private static final String EVENT_TYPE_BUILD_END = "buildEnd";
+
+    private static final byte[] RESULT_NAME = JsonEncoder.name("result");
+
+    private static final byte[] DURATION_NAME = JsonEncoder.name("duration");
 
     @Override
     public void onFinalized(Run<?, ?> run) {
@@ -22,19 +27,20 @@ public class ElasticSearchRunListener extends RunListener<Run<?, ?>> {
                 return;
             }
 
-            ElasticSearchAccess writer = config.createAccess();
-            Map<String, Object> data = config.createData();
+            ShippingEngine engine = config.getShippingEngine();
+            JsonEncoder data = config.createEventTemplate(EVENT_TYPE_BUILD_END, null).start(new JsonEncoder());
 
-            data.put("eventType", "buildEnd");
             Result result = run.getResult();
             if (result != null) {
-                data.put("result", result.toString());
+                data.field(RESULT_NAME, result.toString());
             }
             long duration = run.getDuration();
             if (duration > 0) {
-                data.put("duration", run.getDuration());
+                data.field(DURATION_NAME, run.getDuration());
             }
-            writer.push(JSONObject.fromObject(data).toString());
+            engine.send(data.endObject(), config.getUid() + "-" + EVENT_TYPE_BUILD_END, config.getRouting());
+            // the build sends no more lines from the controller
+            LogLimiter.remove(config.getUid());
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to get Executable of FlowExecution.");
         }
@@ -46,17 +52,18 @@ public class ElasticSearchRunListener extends RunListener<Run<?, ?>> {
     public void onInitialize(Run<?, ?> run) {
 
         try {
-            ElasticSearchRunConfiguration config = ElasticSearchGlobalConfiguration.getRunConfiguration(run);
-
-            if (config == null) {
+            ElasticSearchConfiguration elasticSearch = ElasticSearchGlobalConfiguration.get().getElasticSearch();
+            if (elasticSearch == null) {
                 return;
             }
+            // before the first configuration of the build is created, the log is not written yet
+            ElasticSearchRoutingAction.record(run, elasticSearch.isRouteByRun());
+            ElasticSearchRunConfiguration config = elasticSearch.getRunConfiguration(run);
 
-            ElasticSearchAccess writer = config.createAccess();
-            Map<String, Object> data = config.createData();
+            ShippingEngine engine = config.getShippingEngine();
+            JsonEncoder data = config.createEventTemplate(EVENT_TYPE_BUILD_START, null).start(new JsonEncoder());
 
-            data.put("eventType", "buildStart");
-            writer.push(JSONObject.fromObject(data).toString());
+            engine.send(data.endObject(), config.getUid() + "-" + EVENT_TYPE_BUILD_START, config.getRouting());
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to get Executable of FlowExecution.", e);
         }
@@ -2,7 +2,6 @@ package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import hudson.console.LineTransformationOutputStream;
 import hudson.model.BuildListener;
-import net.sf.json.JSONObject;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -11,7 +10,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,14 +21,41 @@ public class ElasticSearchSender implements BuildListener, Closeable {
 
     private static final String EVENT_PREFIX_NODE = "node";
 
+    private static final String EVENT_TYPE_MESSAGE = "Message";
+
+    private static final byte[] STREAM_ID_NAME = JsonEncoder.name("streamId");
+
+    private static final byte[] SEQ_NAME = JsonEncoder.name("seq");
+
+    private static final byte[] SUPPRESSED_LINES_NAME = JsonEncoder.name("suppressedLines");
+
+    /**
+     * Stream ids are kept below 2^53 so that they can be represented exactly by JSON parsers using doubles.
+     */
+    private static final long STREAM_ID_BOUND = 1L << 53;
+
     private static final Logger LOGGER = Logger.getLogger(ElasticSearchSender.class.getName());
 
+    /**
+     * The maximum time repetitions of a line wait before they are sent.
+     */
+    private static final long REPEAT_LINGER_MILLIS = 1000;
+
+    /**
+     * The maximum time closing a stream waits for its documents to be sent, they are still sent in the background
+     * afterwards.
+     */
+    private static final long FLUSH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
     private static final long serialVersionUID = 1;
 
     private transient @CheckForNull PrintStream logger;
     private final @CheckForNull NodeInfo nodeInfo;
 
-    protected transient ElasticSearchAccess writer;
+    private transient ShippingEngine engine;
+    /** The position of the last document sent by the streams of this sender in the buffer of the engine */
+    private transient long lastPosition;
+    private transient EventTemplate eventTemplate;
     protected final ElasticSearchRunConfiguration config;
     protected String eventPrefix;
 
@@ -60,19 +88,75 @@ public class ElasticSearchSender implements BuildListener, Closeable {
     @Override
     public void close() throws IOException {
         logger = null;
-        writer = null;
+        if (engine != null) {
+            flush(lastPosition);
+            engine = null;
+        }
     }
 
-    private ElasticSearchAccess getElasticSearchWriter() throws IOException {
-        if (writer == null) {
-            writer = config.createAccess();
+    /**
+     * Waits for the documents of this sender up to a position, but not for the documents of other builds and steps
+     * in the same engine.
+     */
+    private void flush(long position) throws IOException {
+        if (!engine.flush(position, FLUSH_TIMEOUT_MILLIS)) {
+            LOGGER.log(Level.FINE, "The log lines of {0} were not sent within {1}ms, they are sent in the background",
+                    new Object[] { config.getUid(), FLUSH_TIMEOUT_MILLIS });
         }
-        return writer;
+    }
+
+    private EventTemplate getEventTemplate() {
+        if (eventTemplate == null) {
+            eventTemplate = config.createEventTemplate(eventPrefix + EVENT_TYPE_MESSAGE, nodeInfo);
+        }
+        return eventTemplate;
+    }
+
+    private ShippingEngine getShippingEngine() throws IOException {
+        if (engine == null) {
+            engine = config.getShippingEngine();
+        }
+        return engine;
+    }
+
+    /**
+     * @return the position of the document in the buffer of the engine
+     */
+    private long push(JsonEncoder data, String id) throws IOException {
+        long position = getShippingEngine().send(data, id, config.getRouting());
+        synchronized (this) {
+            lastPosition = Math.max(lastPosition, position);
+        }
+        return position;
     }
 
     private class ElasticSearchOutputStream extends LineTransformationOutputStream {
-        private static final String EVENT_TYPE_MESSAGE = "Message";
         private @CheckForNull OutputStream forwardingLogger;
+        private final JsonEncoder encoder = new JsonEncoder();
+        /**
+         * Identifies the lines of this stream. Together with the sequence number it orders lines with the same timestamp.
+         */
+        private final long streamIdValue = ThreadLocalRandom.current().nextLong(STREAM_ID_BOUND);
+        private final byte[] streamId = new JsonEncoder().field(STREAM_ID_NAME, streamIdValue).toByteArray();
+        /**
+         * The id of a document is this prefix and its sequence number, so a document sent again is not indexed twice.
+         */
+        private final String idPrefix = config.getUid() + "-" + streamIdValue + "-";
+        private long seq;
+        private final @CheckForNull LineChunk chunk = config.isChunked() ? new LineChunk(config.isSaveAnnotations()) : null;
+        private final @CheckForNull LogLimiter limiter = config.getLogLimits() != null
+                ? LogLimiter.get(config.getUid(), config.getLogLimits())
+                : null;
+        private final @CheckForNull RepeatedLine repeated = config.isCollapseRepeatedLines()
+                ? new RepeatedLine(config.isSaveAnnotations())
+                : null;
+        /** Identifies the current repetitions of a line, it is increased when they are sent */
+        private long repeatRun;
+        /** The lines dropped because of a rate limit since the last line which was sent */
+        private long rateLimitedLines;
+        private long maxBytesLines;
+        /** The position of the last document of this stream in the buffer of the engine */
+        private volatile long lastPosition;
 
         public ElasticSearchOutputStream(@CheckForNull OutputStream logger) {
             this.forwardingLogger = logger;
@@ -86,16 +170,294 @@ public class ElasticSearchSender implements BuildListener, Closeable {
             if (forwardingLogger != null) {
                 forwardingLogger.write(b, 0, len);
             }
-            Map<String, Object> data = config.createData();
+            if (repeated != null) {
+                collapseLine(b, len);
+                return;
+            }
+            sendLine(b, len, 0);
+        }
+
+        /**
+         * @return false if the line was dropped because of the {@link LogLimits}
+         */
+        private boolean sendLine(byte[] b, int len, int rewrites) throws IOException {
+            if (limiter != null && !checkLimits(len)) {
+                return false;
+            }
+            if (chunk != null) {
+                addToChunk(b, len);
+                return true;
+            }
+            long lineSeq = seq++;
+            getEventTemplate().start(encoder).fields(streamId).field(SEQ_NAME, lineSeq);
+            int logLength = ConsoleNotes.parse(b, len, encoder, config.isSaveAnnotations());
+            encoder.field(ConsoleNotes.LOG_BYTES_NAME, logLength);
+            if (rewrites > 0) {
+                RepeatedLine.writeRewrites(encoder, rewrites);
+            }
+            encoder.endObject();
+
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "Sending data: {0}", encoder.toString());
+            }
+            sent(push(encoder, idPrefix + lineSeq));
+            return true;
+        }
+
+        /**
+         * Sends a line unless it repeats the last line which was sent. Text overwritten by carriage returns is removed
+         * first, so that the final state of a progress bar is sent instead of all its updates. Repetitions are counted
+         * and sent in one document as soon as another line is written or their linger time expires.
+         */
+        private synchronized void collapseLine(byte[] b, int len) throws IOException {
+            int rewrites = RepeatedLine.countRewrites(b, len);
+            if (rewrites > 0) {
+                // the buffer of the stream is reset after the line, so it can be changed
+                len = RepeatedLine.removeRewrites(b, len);
+            }
+            if (repeated.addIfRepeated(b, len, System.currentTimeMillis())) {
+                if (repeated.getCount() == 1) {
+                    long run = repeatRun;
+                    ElasticSearchBulkProcessor.getExecutor().schedule(() -> repeatLingerExpired(run), REPEAT_LINGER_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            if (repeated.getCount() > 0) {
+                pushRepeated();
+            }
+            if (sendLine(b, len, rewrites)) {
+                repeated.remember(b, len);
+            } else {
+                repeated.forget();
+            }
+        }
+
+        /**
+         * The document is taken from the stream while holding its monitor, but sent after releasing it, so that the
+         * thread writing the log does not wait while the document is sent.
+         */
+        private void repeatLingerExpired(long run) {
+            JsonEncoder chunkDocument = null;
+            String chunkId = null;
+            JsonEncoder document = new JsonEncoder();
+            String id;
+            long lines;
+            synchronized (this) {
+                if (repeated.getCount() == 0 || repeatRun != run) {
+                    // already sent because another line was written
+                    return;
+                }
+                lines = repeated.getCount();
+                if (chunk != null && !chunk.isEmpty()) {
+                    // the lines of the chunk were written before the repetitions
+                    chunkDocument = new JsonEncoder();
+                    chunkId = encodeChunk(chunkDocument);
+                }
+                id = acquireRepeated() ? encodeRepeated(document) : null;
+            }
+            try {
+                if (chunkDocument != null) {
+                    sent(push(chunkDocument, chunkId));
+                }
+                if (id != null) {
+                    sent(push(document, id));
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to push " + lines + " repeated lines to Elastic Search", e);
+            }
+        }
+
+        /**
+         * Sends the repetitions of the last line in one document. The sequence number of the document is the one of
+         * the first repetition, the following numbers are skipped for the other repetitions.
+         */
+        private void pushRepeated() throws IOException {
+            if (chunk != null && !chunk.isEmpty()) {
+                pushChunk();
+            }
+            if (acquireRepeated()) {
+                sent(push(encoder, encodeRepeated(encoder)));
+            }
+        }
+
+        /**
+         * Charges the repetitions against the {@link LogLimits} like the lines they stand for, otherwise a repeated
+         * line would bypass the rate limits and the maximum size of the build.
+         *
+         * @return false if the repetitions were dropped
+         */
+        private boolean acquireRepeated() {
+            if (limiter == null) {
+                return true;
+            }
+            long lines = repeated.getCount();
+            switch (limiter.acquire(lines, lines * repeated.getLength())) {
+            case ACCEPTED:
+                return true;
+            case RATE_LIMITED:
+                rateLimitedLines += lines;
+                break;
+            default:
+                maxBytesLines += lines;
+                break;
+            }
+            repeated.drop();
+            repeatRun++;
+            return false;
+        }
+
+        /**
+         * @return the id of the document
+         */
+        private String encodeRepeated(JsonEncoder document) {
+            long firstSeq = seq;
+            getEventTemplate().start(document, repeated.getFirstMillis()).fields(streamId).field(SEQ_NAME, firstSeq);
+            seq += repeated.getCount();
+            repeatRun++;
+            repeated.writeTo(document);
+            document.endObject();
 
-            ConsoleNotes.parse(b, len, data, config.isSaveAnnotations());
-            data.put(ElasticSearchGraphListener.EVENT_TYPE, eventPrefix + EVENT_TYPE_MESSAGE);
-            if (nodeInfo != null) {
-                nodeInfo.appendNodeInfo(data);
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "Sending data: {0}", document.toString());
             }
+            return idPrefix + firstSeq;
+        }
 
-            LOGGER.log(Level.FINEST, "Sending data: {0}", JSONObject.fromObject(data).toString());
-            getElasticSearchWriter().push(JSONObject.fromObject(data).toString());
+        /**
+         * Remembers the position of a document which was sent. Documents whose linger time expired are sent without
+         * holding the monitor of the stream, so they may be sent after documents which were taken later.
+         */
+        private synchronized void sent(long position) {
+            lastPosition = Math.max(lastPosition, position);
+        }
+
+        private boolean checkLimits(int len) throws IOException {
+            switch (limiter.acquire(len)) {
+            case ACCEPTED:
+                if (rateLimitedLines > 0) {
+                    pushSuppressed(rateLimitedLines, "the log rate limit was exceeded");
+                    rateLimitedLines = 0;
+                }
+                return true;
+            case RATE_LIMITED:
+                rateLimitedLines++;
+                return false;
+            default:
+                maxBytesLines++;
+                return false;
+            }
+        }
+
+        /**
+         * Sends a message in place of the lines which were dropped because of the {@link LogLimits}.
+         */
+        private synchronized void pushSuppressed(long lines, String reason) throws IOException {
+            if (repeated != null) {
+                if (repeated.getCount() > 0) {
+                    pushRepeated();
+                }
+                // a line after the message is no repetition
+                repeated.forget();
+            }
+            if (chunk != null && !chunk.isEmpty()) {
+                pushChunk();
+            }
+            long messageSeq = seq++;
+            getEventTemplate().start(encoder).fields(streamId).field(SEQ_NAME, messageSeq);
+            String message = "[Elasticsearch] " + lines + " lines suppressed, " + reason;
+            encoder.field(ConsoleNotes.MESSAGE_NAME, message);
+            encoder.field(ConsoleNotes.LOG_BYTES_NAME, message.getBytes(StandardCharsets.UTF_8).length + 1);
+            encoder.field(SUPPRESSED_LINES_NAME, lines);
+            sent(push(encoder.endObject(), idPrefix + messageSeq));
+        }
+
+        private synchronized void addToChunk(byte[] b, int len) throws IOException {
+            boolean first = chunk.isEmpty();
+            chunk.add(b, len, System.currentTimeMillis());
+            if (chunk.size() >= config.getChunkMaxBytes()) {
+                pushChunk();
+            } else if (first) {
+                // the sequence number identifies the chunk, it is increased when the chunk is sent
+                long chunkSeq = seq;
+                ElasticSearchBulkProcessor.getExecutor().schedule(() -> lingerExpired(chunkSeq), config.getChunkLingerMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Like {@link #repeatLingerExpired(long)}, the chunk is sent without holding the monitor of the stream.
+         */
+        private void lingerExpired(long chunkSeq) {
+            JsonEncoder document = new JsonEncoder();
+            String id;
+            int lines;
+            synchronized (this) {
+                if (chunk.isEmpty() || seq != chunkSeq) {
+                    // already sent because it was full
+                    return;
+                }
+                lines = chunk.getLineCount();
+                id = encodeChunk(document);
+            }
+            try {
+                sent(push(document, id));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to push " + lines + " lines to Elastic Search", e);
+            }
+        }
+
+        /**
+         * Sends the collected lines in one document. The sequence number of the document is the one of its first line.
+         */
+        private void pushChunk() throws IOException {
+            sent(push(encoder, encodeChunk(encoder)));
+        }
+
+        /**
+         * @return the id of the document
+         */
+        private String encodeChunk(JsonEncoder document) {
+            long firstSeq = seq;
+            getEventTemplate().start(document, chunk.getStartMillis()).fields(streamId).field(SEQ_NAME, firstSeq);
+            seq += chunk.getLineCount();
+            chunk.writeTo(document);
+            document.endObject();
+
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "Sending data: {0}", document.toString());
+            }
+            return idPrefix + firstSeq;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (repeated != null) {
+                synchronized (this) {
+                    if (repeated.getCount() > 0) {
+                        pushRepeated();
+                    }
+                }
+            }
+            if (rateLimitedLines > 0) {
+                pushSuppressed(rateLimitedLines, "the log rate limit was exceeded");
+                rateLimitedLines = 0;
+            }
+            if (maxBytesLines > 0) {
+                pushSuppressed(maxBytesLines, "the build reached the log size limit of " + limiter.getMaxBytesPerBuild() + " bytes");
+                maxBytesLines = 0;
+            }
+            if (chunk != null) {
+                synchronized (this) {
+                    if (!chunk.isEmpty()) {
+                        pushChunk();
+                    }
+                }
+            }
+            if (engine != null) {
+                ElasticSearchSender.this.flush(lastPosition);
+            }
         }
     }
 }
@@ -0,0 +1,43 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+/**
+ * The constant part of the documents of one producer, serialized once. Writing a document with the template only
+ * adds the timestamp and the fields which differ from event to event.
+ *
+ * @see ElasticSearchRunConfiguration#createEventTemplate(String, NodeInfo)
+ */
+final class EventTemplate {
+    private static final byte[] TIMESTAMP_NAME = JsonEncoder.name(ElasticSearchRunConfiguration.TIMESTAMP);
+
+    private static final byte[] TIMESTAMP_MILLIS_NAME = JsonEncoder.name(ElasticSearchRunConfiguration.TIMESTAMP_MILLIS);
+
+    private final byte[] constantFields;
+
+    EventTemplate(byte[] constantFields) {
+        this.constantFields = constantFields;
+    }
+
+    /**
+     * Resets the encoder and starts a new document with the current time and the constant fields.
+     * The caller adds the remaining fields and ends the document.
+     *
+     * @param encoder
+     *            the encoder to write to
+     * @return the encoder
+     */
+    JsonEncoder start(JsonEncoder encoder) {
+        return start(encoder, System.currentTimeMillis());
+    }
+
+    /**
+     * Like {@link #start(JsonEncoder)}, but with the given time.
+     */
+    JsonEncoder start(JsonEncoder encoder, long millis) {
+        encoder.reset().startObject();
+        encoder.timestampField(TIMESTAMP_NAME, millis);
+        encoder.field(TIMESTAMP_MILLIS_NAME, millis);
+        encoder.fields(constantFields);
+        return encoder;
+    }
+
+}
@@ -0,0 +1,151 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * The index template for the index of the plugin. It maps the fields the log reader filters and sorts by as
+ * <code>keyword</code> and <code>long</code> fields, so that they are matched exactly instead of by full text search,
+ * and sorts the index by <code>uid</code> and <code>timestampMillis</code>, so that the documents of a build are
+ * stored next to each other in their order.
+ * The template only applies to indices which are created after it was installed.
+ */
+final class IndexTemplate {
+    /**
+     * Increased when the template changes, so that an older template is replaced.
+     */
+    static final int VERSION = 2;
+
+    private static final String[] KEYWORD_FIELDS = { "uid", "flowNodeId", "eventType", "stageId", "agent" };
+
+    private static final String[] LONG_FIELDS = { ElasticSearchRunConfiguration.TIMESTAMP_MILLIS, "streamId", "seq",
+            ConsoleNotes.LOG_BYTES_KEY };
+
+    private static final String INDEX_MESSAGES = "indexMessages";
+
+    private static final Logger LOGGER = Logger.getLogger(IndexTemplate.class.getName());
+
+    private final String index;
+
+    private final boolean indexMessages;
+
+    /**
+     * @param index
+     *            the name of the index, the template also applies to indices starting with the name and a hyphen
+     * @param indexMessages
+     *            whether the <code>message</code> field can be searched, otherwise it is only stored
+     */
+    IndexTemplate(String index, boolean indexMessages) {
+        this.index = index;
+        this.indexMessages = indexMessages;
+    }
+
+    String getName() {
+        return "pipeline-logs-" + index;
+    }
+
+    private String getPath() {
+        return "/_template/" + getName();
+    }
+
+    JSONObject toJson() {
+        JSONObject properties = new JSONObject();
+        for (String field : KEYWORD_FIELDS) {
+            properties.put(field, new JSONObject().element("type", "keyword"));
+        }
+        for (String field : LONG_FIELDS) {
+            properties.put(field, new JSONObject().element("type", "long").element("doc_values", true));
+        }
+        properties.put(ElasticSearchRunConfiguration.TIMESTAMP, new JSONObject().element("type", "date"));
+        // log lines are filtered, not ranked, so norms would only take space
+        JSONObject message = new JSONObject().element("type", "text").element("norms", false);
+        if (!indexMessages) {
+            message.put("index", false);
+        }
+        properties.put(ConsoleNotes.MESSAGE_KEY, message);
+
+        JSONObject mappings = new JSONObject();
+        mappings.put("_meta", new JSONObject().element(INDEX_MESSAGES, indexMessages));
+        mappings.put("properties", properties);
+
+        JSONObject settings = new JSONObject();
+        settings.put("index.sort.field", JSONArray.fromObject(new String[] { "uid", ElasticSearchRunConfiguration.TIMESTAMP_MILLIS }));
+        settings.put("index.sort.order", JSONArray.fromObject(new String[] { "asc", "asc" }));
+
+        JSONObject template = new JSONObject();
+        template.put("index_patterns", JSONArray.fromObject(new String[] { index, index + "-*" }));
+        template.put("version", VERSION);
+        template.put("settings", settings);
+        template.put("mappings", mappings);
+        return template;
+    }
+
+    /**
+     * Installs the template unless the same version is installed already.
+     */
+    void install(ElasticSearchAccess access) throws IOException {
+        if (isInstalled(access.getJson(getPath()))) {
+            return;
+        }
+        access.putJson(getPath(), toJson());
+        LOGGER.log(Level.INFO, "Installed the Elasticsearch index template {0}", getName());
+        String problem = checkIndexMapping(access);
+        if (problem != null) {
+            LOGGER.log(Level.WARNING, problem);
+        }
+    }
+
+    /**
+     * Checks the template and the mapping of the index if it exists already.
+     *
+     * @return a description of the problem or null if the template is installed and the index uses it
+     */
+    @CheckForNull
+    String verify(ElasticSearchAccess access) throws IOException {
+        if (!isInstalled(access.getJson(getPath()))) {
+            return "The index template " + getName()
+                    + " is missing or outdated, it is installed when Jenkins starts and when the configuration is saved.";
+        }
+        return checkIndexMapping(access);
+    }
+
+    private boolean isInstalled(@CheckForNull JSONObject response) {
+        JSONObject installed = response != null ? response.optJSONObject(getName()) : null;
+        if (installed == null || installed.optInt("version") != VERSION) {
+            return false;
+        }
+        JSONObject mappings = installed.optJSONObject("mappings");
+        JSONObject meta = mappings != null ? mappings.optJSONObject("_meta") : null;
+        return meta != null && meta.optBoolean(INDEX_MESSAGES) == indexMessages;
+    }
+
+    /**
+     * An index which was created before the template was installed keeps its dynamic mapping.
+     */
+    @CheckForNull
+    private String checkIndexMapping(ElasticSearchAccess access) throws IOException {
+        JSONObject response = access.getJson("/" + index + "/_mapping/field/uid");
+        if (response == null) {
+            // the index is created with the template
+            return null;
+        }
+        for (Object name : response.keySet()) {
+            JSONObject mappings = response.getJSONObject((String) name).optJSONObject("mappings");
+            JSONObject uid = mappings != null ? mappings.optJSONObject("uid") : null;
+            JSONObject mapping = uid != null ? uid.optJSONObject("mapping") : null;
+            JSONObject field = mapping != null ? mapping.optJSONObject("uid") : null;
+            if (field != null && !"keyword".equals(field.optString("type"))) {
+                return "The index " + name + " was created without the index template " + getName()
+                        + ", the template applies to the indices created from now on.";
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,467 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes JSON documents directly into a reusable UTF-8 byte buffer.
+ * Field names are passed as precomputed bytes (see {@link #name(String)}) and strings are escaped while they
+ * are encoded, so that writing a document does not create any objects once the buffer is large enough.
+ * An instance is not thread safe and is meant to be reused for all documents of one producer.
+ */
+final class JsonEncoder {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] REPLACEMENT_CHARACTER = { (byte) 0xef, (byte) 0xbf, (byte) 0xbd };
+
+    private byte[] buffer = new byte[1024];
+    private int size;
+    private boolean first = true;
+    private long textLength;
+
+    /**
+     * Precomputes the bytes of a field name including the quotes and the colon.
+     *
+     * @param field
+     *            the name of the field
+     * @return the bytes to pass to the field methods
+     */
+    static byte[] name(String field) {
+        JsonEncoder encoder = new JsonEncoder();
+        encoder.string(field);
+        encoder.write((byte) ':');
+        return encoder.toByteArray();
+    }
+
+    JsonEncoder reset() {
+        size = 0;
+        first = true;
+        textLength = 0;
+        return this;
+    }
+
+    JsonEncoder startObject() {
+        separator();
+        write((byte) '{');
+        first = true;
+        return this;
+    }
+
+    JsonEncoder startObject(byte[] name) {
+        separator();
+        write(name);
+        write((byte) '{');
+        first = true;
+        return this;
+    }
+
+    JsonEncoder endObject() {
+        write((byte) '}');
+        first = false;
+        return this;
+    }
+
+    JsonEncoder startArray(byte[] name) {
+        separator();
+        write(name);
+        write((byte) '[');
+        first = true;
+        return this;
+    }
+
+    JsonEncoder endArray() {
+        write((byte) ']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes already serialized fields, e.g. <code>"a":1,"b":"c"</code>.
+     */
+    JsonEncoder fields(byte[] serializedFields) {
+        if (serializedFields.length > 0) {
+            separator();
+            write(serializedFields);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a field with an already serialized JSON value.
+     */
+    JsonEncoder rawField(byte[] name, byte[] serializedValue) {
+        separator();
+        write(name);
+        write(serializedValue);
+        return this;
+    }
+
+    JsonEncoder field(byte[] name, String value) {
+        separator();
+        write(name);
+        if (value == null) {
+            write(NULL);
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a string element of an array.
+     */
+    JsonEncoder value(String value) {
+        separator();
+        if (value == null) {
+            write(NULL);
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a number element of an array.
+     */
+    JsonEncoder value(long value) {
+        separator();
+        number(value);
+        return this;
+    }
+
+    JsonEncoder field(byte[] name, long value) {
+        separator();
+        write(name);
+        number(value);
+        return this;
+    }
+
+    /**
+     * Writes a string field from UTF-8 encoded bytes. Malformed sequences are replaced by U+FFFD.
+     */
+    JsonEncoder field(byte[] name, byte[] utf8, int off, int len) {
+        startString(name);
+        appendUtf8(utf8, off, len);
+        return endString();
+    }
+
+    /**
+     * Starts a string field whose value is appended in pieces with {@link #appendUtf8(byte[], int, int)}.
+     */
+    JsonEncoder startString(byte[] name) {
+        separator();
+        write(name);
+        write((byte) '"');
+        return this;
+    }
+
+    JsonEncoder endString() {
+        write((byte) '"');
+        return this;
+    }
+
+    /**
+     * Appends UTF-8 encoded bytes to the string started with {@link #startString(byte[])}.
+     * Malformed sequences are replaced by U+FFFD.
+     *
+     * @return the number of UTF-16 chars of the appended text
+     */
+    int appendUtf8(byte[] b, int off, int len) {
+        // worst case is 6 bytes for escaped control characters, replacement characters need at most 3 bytes per byte
+        ensureCapacity(len * 6);
+        byte[] buffer = this.buffer;
+        int size = this.size;
+        int chars = 0;
+        int text = 0;
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            int c = b[i] & 0xff;
+            chars++;
+            if (c < 0x80) {
+                size = escapeAscii(buffer, size, c);
+                text++;
+                i++;
+                continue;
+            }
+            int valid = validSequenceLength(b, i, end);
+            if (valid > 0) {
+                System.arraycopy(b, i, buffer, size, valid);
+                size += valid;
+                text += valid;
+                i += valid;
+                if (valid == 4) {
+                    // supplementary characters are a surrogate pair
+                    chars++;
+                }
+            } else {
+                System.arraycopy(REPLACEMENT_CHARACTER, 0, buffer, size, REPLACEMENT_CHARACTER.length);
+                size += REPLACEMENT_CHARACTER.length;
+                text += REPLACEMENT_CHARACTER.length;
+                i += -valid;
+            }
+        }
+        this.size = size;
+        textLength += text;
+        return chars;
+    }
+
+    /**
+     * Returns the number of bytes of the text appended with {@link #appendUtf8(byte[], int, int)} since the encoder
+     * was reset, as UTF-8 without the JSON escapes and with the replacement characters, i.e. the size of the text a
+     * reader of the document decodes.
+     */
+    long textLength() {
+        return textLength;
+    }
+
+    /**
+     * Appends the content of another encoder, e.g. array elements or string content which were collected separately.
+     */
+    JsonEncoder append(JsonEncoder other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.buffer, 0, buffer, size, other.size);
+        if (other.size > 0) {
+            size += other.size;
+            first = false;
+        }
+        return this;
+    }
+
+    /**
+     * Appends bytes as they are, e.g. a line break between the documents of a bulk request.
+     */
+    JsonEncoder raw(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, size, len);
+        size += len;
+        return this;
+    }
+
+    /**
+     * Writes a timestamp in UTC with millisecond precision, e.g. <code>"2019-08-01T10:15:30.123Z"</code>.
+     */
+    JsonEncoder timestampField(byte[] name, long millis) {
+        separator();
+        write(name);
+        long days = Math.floorDiv(millis, 86400000L);
+        int millisOfDay = (int) Math.floorMod(millis, 86400000L);
+        // civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        ensureCapacity(26);
+        buffer[size++] = '"';
+        digits(year, 4);
+        buffer[size++] = '-';
+        digits(month, 2);
+        buffer[size++] = '-';
+        digits(day, 2);
+        buffer[size++] = 'T';
+        digits(millisOfDay / 3600000, 2);
+        buffer[size++] = ':';
+        digits(millisOfDay / 60000 % 60, 2);
+        buffer[size++] = ':';
+        digits(millisOfDay / 1000 % 60, 2);
+        buffer[size++] = '.';
+        digits(millisOfDay % 1000, 3);
+        buffer[size++] = 'Z';
+        buffer[size++] = '"';
+        return this;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void separator() {
+        if (first) {
+            first = false;
+        } else {
+            write((byte) ',');
+        }
+    }
+
+    private void string(String value) {
+        int length = value.length();
+        // worst case is 6 bytes per char for escaped control characters
+        ensureCapacity(length * 6 + 2);
+        byte[] buffer = this.buffer;
+        int size = this.size;
+        buffer[size++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size = escapeAscii(buffer, size, c);
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?';
+            } else {
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buffer[size++] = '"';
+        this.size = size;
+    }
+
+    /**
+     * Validates the UTF-8 sequence starting with a non ASCII byte.
+     *
+     * @return the length of the valid sequence or the negative number of bytes to replace by a single
+     *         replacement character
+     */
+    private static int validSequenceLength(byte[] b, int i, int end) {
+        int c = b[i] & 0xff;
+        int length;
+        int min = 0x80;
+        int max = 0xbf;
+        if (c >= 0xc2 && c <= 0xdf) {
+            length = 2;
+        } else if (c >= 0xe0 && c <= 0xef) {
+            length = 3;
+            if (c == 0xe0) {
+                // overlong
+                min = 0xa0;
+            } else if (c == 0xed) {
+                // surrogates
+                max = 0x9f;
+            }
+        } else if (c >= 0xf0 && c <= 0xf4) {
+            length = 4;
+            if (c == 0xf0) {
+                min = 0x90;
+            } else if (c == 0xf4) {
+                max = 0x8f;
+            }
+        } else {
+            return -1;
+        }
+        for (int j = 1; j < length; j++) {
+            if (i + j >= end) {
+                return -j;
+            }
+            int cont = b[i + j] & 0xff;
+            if (c == 0xed && j == 1 && cont >= 0xa0 && cont <= 0xbf) {
+                // an encoded surrogate is replaced as a whole, like the decoder of the JDK does
+                return i + 2 < end && (b[i + 2] & 0xc0) == 0x80 ? -3 : -2;
+            }
+            if (cont < min || cont > max) {
+                return -j;
+            }
+            min = 0x80;
+            max = 0xbf;
+        }
+        return length;
+    }
+
+    private static int escapeAscii(byte[] buffer, int size, int c) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+            buffer[size++] = (byte) c;
+            return size;
+        }
+        buffer[size++] = '\\';
+        switch (c) {
+        case '"':
+        case '\\':
+            buffer[size++] = (byte) c;
+            break;
+        case '\n':
+            buffer[size++] = 'n';
+            break;
+        case '\r':
+            buffer[size++] = 'r';
+            break;
+        case '\t':
+            buffer[size++] = 't';
+            break;
+        case '\b':
+            buffer[size++] = 'b';
+            break;
+        case '\f':
+            buffer[size++] = 'f';
+            break;
+        default:
+            buffer[size++] = 'u';
+            buffer[size++] = '0';
+            buffer[size++] = '0';
+            buffer[size++] = HEX[c >> 4];
+            buffer[size++] = HEX[c & 0xf];
+            break;
+        }
+        return size;
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            length++;
+        }
+        digits(value, length);
+    }
+
+    private void digits(long value, int length) {
+        for (int i = size + length - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += length;
+    }
+
+    private void write(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void write(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buffer, size, b.length);
+        size += b.length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.Arrays;
+
+/**
+ * Collects consecutive console lines of one stream for a single message document.
+ * The lines are joined with line breaks in the <code>message</code> field. The document additionally contains
+ * <code>lineOffsets</code>, the UTF-16 offset of every line in the message, and <code>lineTimestampOffsets</code>,
+ * the time every line was written in milliseconds after the <code>timestampMillis</code> of the document and
+ * <code>logBytes</code>, the size of the lines in the log.
+ * Annotations are stored like for single lines, their positions are offsets into the whole message.
+ *
+ * @see ConsoleNotes#write(java.io.Writer, java.util.Map)
+ */
+final class LineChunk {
+    private static final byte[] LINE_OFFSETS_NAME = JsonEncoder.name(ConsoleNotes.LINE_OFFSETS_KEY);
+
+    private static final byte[] LINE_TIMESTAMP_OFFSETS_NAME = JsonEncoder.name("lineTimestampOffsets");
+
+    private static final byte[] LINE_BREAK = { '\n' };
+
+    private final JsonEncoder message = new JsonEncoder();
+    private final JsonEncoder annotations = new JsonEncoder();
+    private final boolean saveAnnotations;
+
+    private int[] lineOffsets = new int[64];
+    private long[] timestamps = new long[64];
+    private int lines;
+    private int length;
+    private long logBytes;
+
+    LineChunk(boolean saveAnnotations) {
+        this.saveAnnotations = saveAnnotations;
+    }
+
+    boolean isEmpty() {
+        return lines == 0;
+    }
+
+    int getLineCount() {
+        return lines;
+    }
+
+    /**
+     * @return the time the first line was added
+     */
+    long getStartMillis() {
+        return timestamps[0];
+    }
+
+    /**
+     * @return the approximate size of the document fields collected so far in bytes
+     */
+    int size() {
+        return message.size() + annotations.size() + lines * 8;
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     * @param millis
+     *            the time the line was written
+     */
+    void add(byte[] b, int len, long millis) {
+        if (lines == lineOffsets.length) {
+            lineOffsets = Arrays.copyOf(lineOffsets, lines * 2);
+            timestamps = Arrays.copyOf(timestamps, lines * 2);
+        }
+        if (lines > 0) {
+            length += message.appendUtf8(LINE_BREAK, 0, 1);
+        }
+        lineOffsets[lines] = length;
+        timestamps[lines] = millis;
+        lines++;
+        long text = message.textLength() + annotations.textLength();
+        length += ConsoleNotes.appendLine(b, len, message, length, saveAnnotations ? annotations : null);
+        // the line break is written after every line when the chunk is read
+        logBytes += message.textLength() + annotations.textLength() - text + 1;
+        if (saveAnnotations) {
+            logBytes += ConsoleNotes.markersLength(b, len);
+        }
+    }
+
+    /**
+     * Writes the fields of the chunk to a document and clears the chunk.
+     *
+     * @param encoder
+     *            the encoder of a started document
+     */
+    void writeTo(JsonEncoder encoder) {
+        encoder.startString(ConsoleNotes.MESSAGE_NAME).append(message).endString();
+        if (annotations.size() > 0) {
+            encoder.startArray(ConsoleNotes.ANNOTATIONS_NAME).append(annotations).endArray();
+        }
+        encoder.startArray(LINE_OFFSETS_NAME);
+        for (int i = 0; i < lines; i++) {
+            encoder.value(lineOffsets[i]);
+        }
+        encoder.endArray();
+        encoder.startArray(LINE_TIMESTAMP_OFFSETS_NAME);
+        for (int i = 0; i < lines; i++) {
+            encoder.value(timestamps[i] - timestamps[0]);
+        }
+        encoder.endArray();
+        encoder.field(ConsoleNotes.LOG_BYTES_NAME, logBytes);
+        clear();
+    }
+
+    void clear() {
+        message.reset();
+        annotations.reset();
+        lines = 0;
+        length = 0;
+        logBytes = 0;
+    }
+
+}
@@ -0,0 +1,220 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Enforces the {@link LogLimits} of a build with token buckets. Every bucket holds the tokens for one second, so
+ * short bursts pass unchanged.
+ * The state of a build is shared by all its log streams in this JVM and dropped when the build is finalized, see
+ * {@link #remove(String)}. Agents do not see the end of a build, there it is dropped after it has not been used for an
+ * hour, or for a day if the build has a maximum size, so that its byte count survives pauses of the build. The buckets for all builds are shared by all builds in this JVM, which is the agent. Their rate is the one of
+ * the global configuration, jobs cannot override it.
+ */
+final class LogLimiter {
+    private static final long IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long MAX_BYTES_IDLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Map<String, BuildQuota> BUILDS = new ConcurrentHashMap<>();
+
+    private static final Map<String, TokenBucket> AGENT_BUCKETS = new ConcurrentHashMap<>();
+
+    enum Decision {
+        ACCEPTED,
+        /**
+         * A rate limit is exceeded at the moment.
+         */
+        RATE_LIMITED,
+        /**
+         * The build has sent the maximum number of bytes. No more lines are accepted.
+         */
+        MAX_BYTES_REACHED
+    }
+
+    private final LogLimits limits;
+    private final BuildQuota build;
+    @CheckForNull
+    private final TokenBucket agentLines;
+    @CheckForNull
+    private final TokenBucket agentBytes;
+
+    private LogLimiter(LogLimits limits, BuildQuota build) {
+        this.limits = limits;
+        this.build = build;
+        this.agentLines = getAgentBucket("lines", limits.getAgentLinesPerSecond());
+        this.agentBytes = getAgentBucket("bytes", limits.getAgentBytesPerSecond());
+    }
+
+    /**
+     * Returns the limiter for a log stream of a build.
+     *
+     * @param uid
+     *            the unique id of the build
+     */
+    static LogLimiter get(String uid, LogLimits limits) {
+        long now = System.currentTimeMillis();
+        BuildQuota build = BUILDS.get(uid);
+        if (build == null) {
+            removeIdleBuilds(now);
+            build = BUILDS.computeIfAbsent(uid, k -> new BuildQuota(limits));
+        }
+        build.lastUsed = now;
+        return new LogLimiter(limits, build);
+    }
+
+    /**
+     * Drops the state of a build which has ended.
+     *
+     * @param uid
+     *            the unique id of the build
+     */
+    static void remove(String uid) {
+        BUILDS.remove(uid);
+    }
+
+    private static void removeIdleBuilds(long now) {
+        for (Iterator<BuildQuota> it = BUILDS.values().iterator(); it.hasNext();) {
+            BuildQuota build = it.next();
+            if (now - build.lastUsed > (build.maxBytes > 0 ? MAX_BYTES_IDLE_MILLIS : IDLE_MILLIS)) {
+                it.remove();
+            }
+        }
+    }
+
+    @CheckForNull
+    private static TokenBucket getAgentBucket(String unit, long ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            return null;
+        }
+        TokenBucket bucket = AGENT_BUCKETS.computeIfAbsent(unit, k -> new TokenBucket(ratePerSecond));
+        bucket.setRatePerSecond(ratePerSecond);
+        return bucket;
+    }
+
+    long getMaxBytesPerBuild() {
+        return limits.getMaxBytesPerBuild();
+    }
+
+    /**
+     * Decides whether a line is sent. An accepted line takes its tokens from all buckets.
+     *
+     * @param bytes
+     *            the size of the line
+     */
+    Decision acquire(int bytes) {
+        return acquire(1, bytes);
+    }
+
+    /**
+     * Decides whether lines which are sent in one document, like the repetitions of a line, are sent.
+     *
+     * @param lines
+     *            the number of lines
+     * @param bytes
+     *            the size of all lines
+     */
+    Decision acquire(long lines, long bytes) {
+        build.lastUsed = System.currentTimeMillis();
+        if (build.maxBytesReached) {
+            return Decision.MAX_BYTES_REACHED;
+        }
+        long maxBytes = limits.getMaxBytesPerBuild();
+        if (maxBytes > 0 && build.totalBytes.get() + bytes > maxBytes) {
+            build.maxBytesReached = true;
+            return Decision.MAX_BYTES_REACHED;
+        }
+        if (!TokenBucket.tryAcquire(build.lines, lines)) {
+            return Decision.RATE_LIMITED;
+        }
+        if (!TokenBucket.tryAcquire(build.bytes, bytes)) {
+            TokenBucket.release(build.lines, lines);
+            return Decision.RATE_LIMITED;
+        }
+        if (!TokenBucket.tryAcquire(agentLines, lines)) {
+            TokenBucket.release(build.lines, lines);
+            TokenBucket.release(build.bytes, bytes);
+            return Decision.RATE_LIMITED;
+        }
+        if (!TokenBucket.tryAcquire(agentBytes, bytes)) {
+            TokenBucket.release(build.lines, lines);
+            TokenBucket.release(build.bytes, bytes);
+            TokenBucket.release(agentLines, lines);
+            return Decision.RATE_LIMITED;
+        }
+        // only the lines which are sent count, concurrent streams may exceed the maximum by a line each
+        build.totalBytes.addAndGet(bytes);
+        return Decision.ACCEPTED;
+    }
+
+    private static final class BuildQuota {
+        @CheckForNull
+        private final TokenBucket lines;
+        @CheckForNull
+        private final TokenBucket bytes;
+        private final long maxBytes;
+        private final AtomicLong totalBytes = new AtomicLong();
+        private volatile boolean maxBytesReached;
+        private volatile long lastUsed;
+
+        private BuildQuota(LogLimits limits) {
+            maxBytes = limits.getMaxBytesPerBuild();
+            lines = limits.getBuildLinesPerSecond() > 0 ? new TokenBucket(limits.getBuildLinesPerSecond()) : null;
+            bytes = limits.getBuildBytesPerSecond() > 0 ? new TokenBucket(limits.getBuildBytesPerSecond()) : null;
+        }
+    }
+
+    static final class TokenBucket {
+        private long ratePerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+            this.tokens = ratePerSecond;
+        }
+
+        /**
+         * Takes tokens if there are enough. A request larger than the bucket is granted when the bucket is full and
+         * leaves a debt, so that a single long line does not block the stream forever.
+         */
+        synchronized boolean tryAcquire(long count) {
+            long now = System.nanoTime();
+            tokens = Math.min(ratePerSecond, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+            lastRefill = now;
+            if (tokens < Math.min(count, ratePerSecond)) {
+                return false;
+            }
+            tokens -= count;
+            return true;
+        }
+
+        /**
+         * Changes the rate, the tokens in the bucket are kept up to the new size.
+         */
+        synchronized void setRatePerSecond(long ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+            tokens = Math.min(ratePerSecond, tokens);
+        }
+
+        synchronized void release(long count) {
+            tokens = Math.min(ratePerSecond, tokens + count);
+        }
+
+        private static boolean tryAcquire(@CheckForNull TokenBucket bucket, long count) {
+            return bucket == null || bucket.tryAcquire(count);
+        }
+
+        private static void release(@CheckForNull TokenBucket bucket, long count) {
+            if (bucket != null) {
+                bucket.release(count);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.Serializable;
+
+/**
+ * The limits for the log lines a build sends to Elasticsearch. A value of 0 or less means no limit.
+ * The rates are enforced in every JVM on its own, per build and for all builds together, see {@link LogLimiter}.
+ */
+public final class LogLimits implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    private final long buildLinesPerSecond;
+    private final long buildBytesPerSecond;
+    private final long agentLinesPerSecond;
+    private final long agentBytesPerSecond;
+    private final long maxBytesPerBuild;
+
+    public LogLimits(long buildLinesPerSecond, long buildBytesPerSecond, long agentLinesPerSecond, long agentBytesPerSecond,
+            long maxBytesPerBuild) {
+        this.buildLinesPerSecond = buildLinesPerSecond;
+        this.buildBytesPerSecond = buildBytesPerSecond;
+        this.agentLinesPerSecond = agentLinesPerSecond;
+        this.agentBytesPerSecond = agentBytesPerSecond;
+        this.maxBytesPerBuild = maxBytesPerBuild;
+    }
+
+    public long getBuildLinesPerSecond() {
+        return buildLinesPerSecond;
+    }
+
+    public long getBuildBytesPerSecond() {
+        return buildBytesPerSecond;
+    }
+
+    public long getAgentLinesPerSecond() {
+        return agentLinesPerSecond;
+    }
+
+    public long getAgentBytesPerSecond() {
+        return agentBytesPerSecond;
+    }
+
+    public long getMaxBytesPerBuild() {
+        return maxBytesPerBuild;
+    }
+
+    public boolean isUnlimited() {
+        return buildLinesPerSecond <= 0 && buildBytesPerSecond <= 0 && agentLinesPerSecond <= 0 && agentBytesPerSecond <= 0
+                && maxBytesPerBuild <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LogLimits[build: " + buildLinesPerSecond + " lines/s, " + buildBytesPerSecond + " bytes/s, agent: " + agentLinesPerSecond
+                + " lines/s, " + agentBytesPerSecond + " bytes/s, max. " + maxBytesPerBuild + " bytes per build]";
+    }
+
+}
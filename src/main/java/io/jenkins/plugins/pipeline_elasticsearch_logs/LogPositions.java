@@ -0,0 +1,90 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Remembers where the viewers of a running build's log stopped reading: the offset the log was read up to and the
+ * sort values of the last document before it. When the log is polled for the lines after the offset, the query
+ * continues after that document instead of skipping the whole log again.
+ * A line which reaches Elasticsearch after lines written later and was not read yet is not shown until the log is
+ * read from the start again.
+ */
+final class LogPositions {
+    /**
+     * The number of logs whose positions are remembered, the least recently read ones are forgotten.
+     */
+    private static final int MAX_LOGS = 1000;
+
+    /**
+     * The number of positions remembered per log, e.g. for several viewers of a build.
+     */
+    private static final int MAX_POSITIONS = 16;
+
+    private static final Map<String, LogPositions> LOGS = Collections.synchronizedMap(new LruMap<String, LogPositions>(MAX_LOGS));
+
+    private final Map<Long, Object[]> positions = new LruMap<>(MAX_POSITIONS);
+
+    private LogPositions() {
+    }
+
+    /**
+     * @param uid
+     *            the uid of the build
+     * @param nodeId
+     *            the id of the step or null for the log of the build
+     */
+    static LogPositions of(String uid, @CheckForNull String nodeId) {
+        return LOGS.computeIfAbsent(key(uid, nodeId), k -> new LogPositions());
+    }
+
+    /**
+     * Forgets the positions in a log which is complete.
+     */
+    static void forget(String uid, @CheckForNull String nodeId) {
+        LOGS.remove(key(uid, nodeId));
+    }
+
+    private static String key(String uid, @CheckForNull String nodeId) {
+        return nodeId != null ? uid + "/" + nodeId : uid;
+    }
+
+    /**
+     * @return the sort values of the last document before the offset or null if the offset is unknown
+     */
+    @CheckForNull
+    synchronized Object[] get(long offset) {
+        return positions.get(offset);
+    }
+
+    /**
+     * Remembers the end of a document.
+     *
+     * @param offset
+     *            the offset of the end of the document in the log
+     * @param sortValues
+     *            the sort values of the document
+     */
+    synchronized void put(long offset, Object[] sortValues) {
+        positions.put(offset, sortValues);
+    }
+
+    @SuppressWarnings("serial")
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A bounded buffer of records, preallocated as a single byte array.
+ * Records are stored contiguously as a 4 byte length followed by the record bytes. A record which does not
+ * fit at the end of the array is written to the start, the remaining bytes at the end are skipped.
+ * When the buffer is full the {@link OverflowPolicy} decides what happens to a new record.
+ */
+class LogRingBuffer implements DocumentBuffer {
+    private static final int HEADER_SIZE = 4;
+
+    private static final int PADDING = -1;
+
+    private final byte[] buffer;
+    private final OverflowPolicy policy;
+    private final DiskSpool spool;
+
+    private int head;
+    private int tail;
+    private int used;
+    private int count;
+
+    private long putCount;
+    private long takeCount;
+
+    private long blockedCount;
+    private long droppedNewestCount;
+    private long droppedOldestCount;
+    private long spilledCount;
+
+    LogRingBuffer(int capacity, OverflowPolicy policy, File spoolDirectory) {
+        this.buffer = new byte[Math.max(capacity, 1024)];
+        this.policy = policy;
+        this.spool = new DiskSpool(spoolDirectory);
+    }
+
+    /**
+     * A record larger than the whole buffer is spilled under {@link OverflowPolicy#SPILL}, dropped under the drop
+     * policies and rejected under {@link OverflowPolicy#BLOCK} because no space will ever become free for it.
+     */
+    @Override
+    public boolean isTooLarge(int len) {
+        return policy == OverflowPolicy.BLOCK && HEADER_SIZE + len > buffer.length;
+    }
+
+    /**
+     * Adds a record to the buffer, applying the overflow policy if there is not enough space.
+     *
+     * @throws IOException
+     *             if the thread was interrupted while blocked or the record is too large, see {@link #isTooLarge(int)}
+     */
+    @Override
+    public synchronized void put(byte[] b, int off, int len) throws IOException {
+        if (isTooLarge(len)) {
+            throw new IOException("A record of " + len + " bytes does not fit into the log buffer of " + buffer.length + " bytes");
+        }
+        if (!spool.isEmpty() || policy == OverflowPolicy.SPILL && HEADER_SIZE + len > buffer.length) {
+            // Keep the order: as long as there are spilled records new ones are spilled, too
+            spill(b, off, len);
+            return;
+        }
+        int position = reserve(HEADER_SIZE + len);
+        if (position < 0 && HEADER_SIZE + len <= buffer.length) {
+            switch (policy) {
+            case BLOCK:
+                blockedCount++;
+                while ((position = reserve(HEADER_SIZE + len)) < 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for space in the log buffer", e);
+                    }
+                }
+                break;
+            case DROP_OLDEST:
+                while ((position = reserve(HEADER_SIZE + len)) < 0) {
+                    skip();
+                    takeCount++;
+                    droppedOldestCount++;
+                }
+                break;
+            case SPILL:
+                spill(b, off, len);
+                return;
+            default:
+                break;
+            }
+        }
+        if (position < 0) {
+            droppedNewestCount++;
+            return;
+        }
+        writeInt(position, len);
+        System.arraycopy(b, off, buffer, position + HEADER_SIZE, len);
+        tail = position + HEADER_SIZE + len;
+        if (tail == buffer.length) {
+            tail = 0;
+        }
+        used += HEADER_SIZE + len;
+        count++;
+        putCount++;
+    }
+
+    /**
+     * Takes records from the buffer and passes them to the sink. Spilled records are taken once
+     * the buffer is empty.
+     */
+    @Override
+    public synchronized int drainTo(RecordSink sink, int maxRecords, long maxBytes) throws IOException {
+        int taken = 0;
+        long bytes = 0;
+        try {
+            while (taken < maxRecords && count > 0) {
+                skipPadding();
+                int len = readInt(head);
+                if (taken > 0 && bytes + len > maxBytes) {
+                    break;
+                }
+                sink.accept(buffer, head + HEADER_SIZE, len);
+                skip();
+                bytes += len;
+                taken++;
+            }
+            while (taken < maxRecords && count == 0 && !spool.isEmpty()) {
+                if (taken > 0 && bytes + spool.peekLength() > maxBytes) {
+                    break;
+                }
+                byte[] record = spool.next();
+                sink.accept(record, 0, record.length);
+                bytes += record.length;
+                taken++;
+            }
+        } finally {
+            takeCount += taken;
+            if (taken > 0) {
+                notifyAll();
+            }
+        }
+        return taken;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return count == 0 && spool.isEmpty();
+    }
+
+    @Override
+    public synchronized int size() {
+        return count + (int) Math.min(Integer.MAX_VALUE, spool.size());
+    }
+
+    @Override
+    public synchronized long usedBytes() {
+        return used;
+    }
+
+    /**
+     * @return the number of records added to the buffer or the spool
+     */
+    @Override
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return the number of records taken from the buffer or the spool, including dropped ones
+     */
+    @Override
+    public synchronized long getTakeCount() {
+        return takeCount;
+    }
+
+    @Override
+    public synchronized long getBlockedCount() {
+        return blockedCount;
+    }
+
+    @Override
+    public synchronized long getDroppedNewestCount() {
+        return droppedNewestCount;
+    }
+
+    @Override
+    public synchronized long getDroppedOldestCount() {
+        return droppedOldestCount;
+    }
+
+    @Override
+    public synchronized long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Deletes the spill file. The records which were not taken are lost.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        spool.close();
+    }
+
+    private void spill(byte[] b, int off, int len) throws IOException {
+        spool.append(b, off, len);
+        spilledCount++;
+        putCount++;
+    }
+
+    /**
+     * @return the position to write a record of the given size to or -1 if there is not enough space
+     */
+    private int reserve(int size) {
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            used = 0;
+        }
+        if (size > buffer.length - used) {
+            return -1;
+        }
+        if (tail >= head) {
+            if (size <= buffer.length - tail) {
+                return tail;
+            }
+            if (size <= head) {
+                // skip the end of the array
+                if (buffer.length - tail >= HEADER_SIZE) {
+                    writeInt(tail, PADDING);
+                }
+                used += buffer.length - tail;
+                tail = 0;
+                return 0;
+            }
+            return -1;
+        }
+        return size <= head - tail ? tail : -1;
+    }
+
+    private void skipPadding() {
+        if (buffer.length - head < HEADER_SIZE || readInt(head) == PADDING) {
+            used -= buffer.length - head;
+            head = 0;
+        }
+    }
+
+    private void skip() {
+        skipPadding();
+        int size = HEADER_SIZE + readInt(head);
+        head += size;
+        if (head == buffer.length) {
+            head = 0;
+        }
+        used -= size;
+        count--;
+    }
+
+    private void writeInt(int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    private int readInt(int position) {
+        return ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16) | ((buffer[position + 2] & 0xff) << 8)
+                | (buffer[position + 3] & 0xff);
+    }
+
+}
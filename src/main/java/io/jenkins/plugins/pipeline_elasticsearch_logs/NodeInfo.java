@@ -1,7 +1,11 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.CheckForNull;
 
@@ -9,6 +13,7 @@ import org.jenkinsci.plugins.workflow.actions.LabelAction;
 import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
 import org.jenkinsci.plugins.workflow.actions.WorkspaceAction;
 import org.jenkinsci.plugins.workflow.cps.steps.ParallelStep;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.graph.StepNode;
@@ -23,6 +28,20 @@ import org.jenkinsci.plugins.workflow.support.steps.StageStep;
 public class NodeInfo implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    private static final byte[] FLOW_NODE_ID_NAME = JsonEncoder.name("flowNodeId");
+    private static final byte[] STEP_NAME = JsonEncoder.name("step");
+    private static final byte[] STAGE_NAME_NAME = JsonEncoder.name("stageName");
+    private static final byte[] STAGE_ID_NAME = JsonEncoder.name("stageId");
+    private static final byte[] PARALLEL_BRANCH_NAME_NAME = JsonEncoder.name("parallelBranchName");
+    private static final byte[] PARALLEL_BRANCH_ID_NAME = JsonEncoder.name("parallelBranchId");
+    private static final byte[] AGENT_NAME = JsonEncoder.name("agent");
+    private static final byte[] DISPLAY_NAME_NAME = JsonEncoder.name("displayName");
+
+    /**
+     * The contexts of the blocks of the running flows by the ids of their BlockStartNodes.
+     */
+    private static final Map<FlowExecution, Map<String, BlockContext>> BLOCK_CONTEXTS = new WeakHashMap<>();
+
     protected final String nodeId;
     protected final String stepName;
     protected final String stageName;
@@ -33,32 +52,23 @@ public class NodeInfo implements Serializable {
     protected final String displayName;
 
     public NodeInfo(FlowNode node) {
+        BlockContext context = getEnclosingContext(node);
+        String stageName = context.stageName;
+        String stageId = context.stageId;
+        String parallelBranchName = context.parallelBranchName;
+        String parallelBranchId = context.parallelBranchId;
 
-        FlowNode stage = getStage(node);
-        FlowNode parallelBranch = getParallelBranch(node);
-        String stageName = null;
-        String stageId = null;
-        String parallelBranchName = null;
-        String parallelBranchId = null;
-
-        if (stage != null) {
-            stageId = stage.getId();
-            LabelAction labelAction = stage.getAction(LabelAction.class);
-            if (labelAction != null) {
-                stageName = labelAction.getDisplayName();
-            }
+        if (isStageNode(node)) {
+            stageId = node.getId();
+            stageName = node.getAction(LabelAction.class).getDisplayName();
         }
-
-        if (parallelBranch != null) {
-            parallelBranchId = parallelBranch.getId();
-            ThreadNameAction labelAction = parallelBranch.getAction(ThreadNameAction.class);
-            if (labelAction != null) {
-                parallelBranchName = labelAction.getThreadName();
-            }
+        if (isParallelBranchNode(node)) {
+            parallelBranchId = node.getId();
+            parallelBranchName = node.getAction(ThreadNameAction.class).getThreadName();
         }
 
         this.stepName = getStepName(node);
-        this.agentName = getAgentName(node);
+        this.agentName = context.agentName;
         this.nodeId = node.getId();
         this.stageName = stageName;
         this.stageId = stageId;
@@ -100,27 +110,100 @@ public class NodeInfo implements Serializable {
     }
 
     /**
-     * Returns the FlowNode of a stage step that encloses the given FlowNode or the current FlowNode if it is a stage.
+     * Writes the same fields as {@link #appendNodeInfo(Map)} to the encoder.
+     *
+     * @param encoder
+     *            The encoder to receive the node info
+     */
+    void writeNodeInfo(JsonEncoder encoder) {
+        encoder.field(FLOW_NODE_ID_NAME, nodeId);
+        if (stepName != null) {
+            encoder.field(STEP_NAME, stepName);
+        }
+        if (stageName != null) {
+            encoder.field(STAGE_NAME_NAME, stageName);
+        }
+        if (stageId != null) {
+            encoder.field(STAGE_ID_NAME, stageId);
+        }
+        if (parallelBranchName != null) {
+            encoder.field(PARALLEL_BRANCH_NAME_NAME, parallelBranchName);
+        }
+        if (parallelBranchId != null) {
+            encoder.field(PARALLEL_BRANCH_ID_NAME, parallelBranchId);
+        }
+        if (agentName != null) {
+            encoder.field(AGENT_NAME, agentName);
+        }
+        if (displayName != null) {
+            encoder.field(DISPLAY_NAME_NAME, displayName);
+        }
+    }
+
+    /**
+     * Drops the cached contexts of the blocks of a flow execution, e.g. when the flow has ended.
+     *
+     * @param execution
+     *            the flow execution
+     */
+    static void forgetExecution(FlowExecution execution) {
+        synchronized (BLOCK_CONTEXTS) {
+            BLOCK_CONTEXTS.remove(execution);
+        }
+    }
+
+    /**
+     * @return whether the context of a block of a flow execution is cached
+     */
+    static boolean isCached(FlowExecution execution, String blockId) {
+        synchronized (BLOCK_CONTEXTS) {
+            Map<String, BlockContext> cache = BLOCK_CONTEXTS.get(execution);
+            return cache != null && cache.containsKey(blockId);
+        }
+    }
+
+    /**
+     * Returns the stage, parallel branch and agent of the innermost block enclosing the given node.
+     * The context of a block is resolved from the context of its own enclosing block and cached per flow execution,
+     * so that usually only the innermost block of a new node has to be looked at.
+     * A block has children only once its step has started, so the actions of the enclosing blocks don't change
+     * anymore when they are cached.
      *
      * @param node
      *            The FlowNode to check.
-     * @return The BlockStartNode representing the start of the stage step or null if not inside a
-     *         stage.
+     * @return The context of the enclosing block, {@link BlockContext#ROOT} if the node is not inside a block.
      */
-    private @CheckForNull FlowNode getStage(FlowNode node) {
-        if (isStageNode(node)) {
-            return node;
+    private static BlockContext getEnclosingContext(FlowNode node) {
+        FlowExecution execution = node.getExecution();
+        Map<String, BlockContext> cache = null;
+        if (execution != null) {
+            synchronized (BLOCK_CONTEXTS) {
+                cache = BLOCK_CONTEXTS.computeIfAbsent(execution, e -> new ConcurrentHashMap<>());
+            }
         }
 
+        Deque<BlockStartNode> uncached = new ArrayDeque<>();
+        BlockContext context = BlockContext.ROOT;
         for (BlockStartNode bsn : node.iterateEnclosingBlocks()) {
-            if (isStageNode(bsn)) {
-                return bsn;
+            BlockContext cached = cache != null ? cache.get(bsn.getId()) : null;
+            if (cached != null) {
+                context = cached;
+                break;
             }
+            uncached.push(bsn);
         }
-        return null;
+        // from the outermost to the innermost block
+        while (!uncached.isEmpty()) {
+            BlockStartNode bsn = uncached.pop();
+            context = context.enter(bsn);
+            if (cache != null) {
+                cache.put(bsn.getId(), context);
+            }
+        }
+        return context;
     }
 
-    private boolean isStageNode(FlowNode node) {
+    private static boolean isStageNode(FlowNode node) {
         if (node instanceof StepNode) {
             StepDescriptor descriptor = ((StepNode) node).getDescriptor();
             if (descriptor instanceof StageStep.DescriptorImpl) {
@@ -134,29 +217,7 @@ public class NodeInfo implements Serializable {
         return false;
     }
 
-    /**
-     * Returns the FlowNode of a parallel branch step that encloses the given FlowNode.
-     *
-     * @param node
-     *            The FlowNode to check.
-     * @return The BlockStartNode representing the start of the parallel branch step or null if not
-     *         inside a parallel branch.
-     */
-    private @CheckForNull FlowNode getParallelBranch(FlowNode node) {
-
-        if (isParallelBranchNode(node)) {
-            return node;
-        }
-        for (BlockStartNode bsn : node.iterateEnclosingBlocks()) {
-            if (isParallelBranchNode(node)) {
-                return bsn;
-            }
-        }
-
-        return null;
-    }
-
-    private boolean isParallelBranchNode(FlowNode node) {
+    private static boolean isParallelBranchNode(FlowNode node) {
         if (node instanceof StepNode) {
             StepDescriptor descriptor = ((StepNode) node).getDescriptor();
             if (descriptor instanceof ParallelStep.DescriptorImpl) {
@@ -171,21 +232,19 @@ public class NodeInfo implements Serializable {
     }
 
     /**
-     * Returns the name of the agent this FlowNode is running on.
+     * Returns the name of the agent of an executor step block.
      *
      * @param node
      *            The FlowNode to check
-     * @return The name of the agent or null if not running on an agent.
+     * @return The name of the agent or null if the node is no executor step block or has no workspace yet.
      */
-    private String getAgentName(FlowNode node) {
-        for (BlockStartNode bsn : node.iterateEnclosingBlocks()) {
-            if (bsn instanceof StepNode) {
-                StepDescriptor descriptor = ((StepNode) bsn).getDescriptor();
-                if (descriptor instanceof ExecutorStep.DescriptorImpl) {
-                    WorkspaceAction workspaceAction = bsn.getAction(WorkspaceAction.class);
-                    if (workspaceAction != null) {
-                        return workspaceAction.getNode();
-                    }
+    private static @CheckForNull String getAgentName(BlockStartNode node) {
+        if (node instanceof StepNode) {
+            StepDescriptor descriptor = ((StepNode) node).getDescriptor();
+            if (descriptor instanceof ExecutorStep.DescriptorImpl) {
+                WorkspaceAction workspaceAction = node.getAction(WorkspaceAction.class);
+                if (workspaceAction != null) {
+                    return workspaceAction.getNode();
                 }
             }
         }
@@ -193,7 +252,7 @@ public class NodeInfo implements Serializable {
         return null;
     }
 
-    private String getStepName(FlowNode node) {
+    private static String getStepName(FlowNode node) {
         String stepName = null;
         if (node instanceof StepNode) {
             StepDescriptor descriptor = ((StepNode) node).getDescriptor();
@@ -209,4 +268,44 @@ public class NodeInfo implements Serializable {
         return String.format("Node: %s, Step: %s, Stage: %s (%s), Agent: %s", nodeId, stepName, stageName, stageId, agentName);
     }
 
+    /**
+     * The innermost stage, parallel branch and agent of the nodes inside a block.
+     */
+    private static final class BlockContext {
+        static final BlockContext ROOT = new BlockContext(null, null, null, null, null);
+
+        final String stageName;
+        final String stageId;
+        final String parallelBranchName;
+        final String parallelBranchId;
+        final String agentName;
+
+        private BlockContext(String stageName, String stageId, String parallelBranchName, String parallelBranchId, String agentName) {
+            this.stageName = stageName;
+            this.stageId = stageId;
+            this.parallelBranchName = parallelBranchName;
+            this.parallelBranchId = parallelBranchId;
+            this.agentName = agentName;
+        }
+
+        /**
+         * @return the context of the nodes inside the given block, which is enclosed by the block of this context
+         */
+        BlockContext enter(BlockStartNode bsn) {
+            if (isStageNode(bsn)) {
+                return new BlockContext(bsn.getAction(LabelAction.class).getDisplayName(), bsn.getId(), parallelBranchName,
+                        parallelBranchId, agentName);
+            }
+            if (isParallelBranchNode(bsn)) {
+                return new BlockContext(stageName, stageId, bsn.getAction(ThreadNameAction.class).getThreadName(), bsn.getId(),
+                        agentName);
+            }
+            String agent = getAgentName(bsn);
+            if (agent != null) {
+                return new BlockContext(stageName, stageId, parallelBranchName, parallelBranchId, agent);
+            }
+            return this;
+        }
+    }
+
 }
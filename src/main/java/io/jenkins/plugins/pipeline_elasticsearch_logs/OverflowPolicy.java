@@ -0,0 +1,33 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+/**
+ * Defines what happens to a log line when the buffer between the build and Elasticsearch is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * The build waits until there is space in the buffer again. No line is lost.
+     */
+    BLOCK("Block the build until there is space"),
+    /**
+     * The new line is dropped. The build never waits.
+     */
+    DROP_NEWEST("Drop the newest lines"),
+    /**
+     * The oldest lines are removed from the buffer to make room for the new line. The build never waits.
+     */
+    DROP_OLDEST("Drop the oldest lines"),
+    /**
+     * The line is written to a file on the local disk and sent once the buffer has been drained.
+     */
+    SPILL("Spill to disk");
+
+    private final String displayName;
+
+    OverflowPolicy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,184 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last console line of a stream which was sent and counts the identical lines following it.
+ * The repetitions are sent in one document with the line as <code>message</code>, the number of lines as
+ * <code>repeatCount</code>, the time of the first repetition as <code>timestampMillis</code> and the time of the
+ * last one as <code>lastTimestampMillis</code>.
+ *
+ * @see ConsoleNotes#write(java.io.Writer, java.util.Map)
+ */
+final class RepeatedLine {
+    static final String REPEAT_COUNT_KEY = "repeatCount";
+
+    private static final byte[] REPEAT_COUNT_NAME = JsonEncoder.name(REPEAT_COUNT_KEY);
+
+    private static final byte[] LAST_TIMESTAMP_MILLIS_NAME = JsonEncoder.name("lastTimestampMillis");
+
+    private static final byte[] REWRITES_NAME = JsonEncoder.name("rewrites");
+
+    private final boolean saveAnnotations;
+
+    private byte[] line = new byte[256];
+    private int length = -1;
+    private long count;
+    private long firstMillis;
+    private long lastMillis;
+
+    RepeatedLine(boolean saveAnnotations) {
+        this.saveAnnotations = saveAnnotations;
+    }
+
+    /**
+     * @return the number of repetitions which were not sent yet
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes of the remembered line
+     */
+    int getLength() {
+        return length;
+    }
+
+    long getFirstMillis() {
+        return firstMillis;
+    }
+
+    /**
+     * Counts the line if it is identical to the remembered one.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     * @param millis
+     *            the time the line was written
+     * @return whether the line is a repetition
+     */
+    boolean addIfRepeated(byte[] b, int len, long millis) {
+        if (len != length || !equals(b, len)) {
+            return false;
+        }
+        if (count == 0) {
+            firstMillis = millis;
+        }
+        count++;
+        lastMillis = millis;
+        return true;
+    }
+
+    private boolean equals(byte[] b, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (b[i] != line[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers a line which was sent.
+     */
+    void remember(byte[] b, int len) {
+        if (line.length < len) {
+            line = Arrays.copyOf(line, Math.max(len, line.length * 2));
+        }
+        System.arraycopy(b, 0, line, 0, len);
+        length = len;
+        count = 0;
+    }
+
+    /**
+     * Forgets the remembered line, e.g. because another message was sent after it.
+     */
+    void forget() {
+        length = -1;
+        count = 0;
+    }
+
+    /**
+     * Drops the repetitions which were not sent, the line is still remembered.
+     */
+    void drop() {
+        count = 0;
+    }
+
+    /**
+     * Writes the fields of the repetitions to a document and resets the count.
+     *
+     * @param encoder
+     *            the encoder of a started document
+     */
+    void writeTo(JsonEncoder encoder) {
+        int logLength = ConsoleNotes.parse(line, length, encoder, saveAnnotations);
+        encoder.field(REPEAT_COUNT_NAME, count);
+        encoder.field(ConsoleNotes.LOG_BYTES_NAME, count * logLength);
+        encoder.field(LAST_TIMESTAMP_MILLIS_NAME, lastMillis);
+        count = 0;
+    }
+
+    /**
+     * Writes the number of carriage return rewrites which were removed from a line.
+     *
+     * @see #removeRewrites(byte[], int)
+     */
+    static void writeRewrites(JsonEncoder encoder, int rewrites) {
+        encoder.field(REWRITES_NAME, rewrites);
+    }
+
+    /**
+     * Counts the text overwritten by carriage returns in a line, like the output of progress bars.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break
+     * @param len
+     *            the number of bytes of the line
+     * @return the number of carriage returns in the line, not counting the line break
+     */
+    static int countRewrites(byte[] b, int len) {
+        int rewrites = 0;
+        for (int i = contentEnd(b, len) - 1; i >= 0; i--) {
+            if (b[i] == '\r') {
+                rewrites++;
+            }
+        }
+        return rewrites;
+    }
+
+    /**
+     * Removes the text overwritten by carriage returns from a line, so that only the text after the last carriage
+     * return remains, as it is shown by a terminal.
+     *
+     * @param b
+     *            the UTF-8 encoded line, possibly terminated by a line break, it is changed in place
+     * @param len
+     *            the number of bytes of the line
+     * @return the new number of bytes of the line
+     */
+    static int removeRewrites(byte[] b, int len) {
+        int end = contentEnd(b, len);
+        int start = end;
+        while (start > 0 && b[start - 1] != '\r') {
+            start--;
+        }
+        if (start == 0) {
+            return len;
+        }
+        System.arraycopy(b, start, b, 0, len - start);
+        return len - start;
+    }
+
+    private static int contentEnd(byte[] b, int len) {
+        int end = len;
+        while (end > 0 && (b[end - 1] == '\n' || b[end - 1] == '\r')) {
+            end--;
+        }
+        return end;
+    }
+
+}
@@ -46,10 +46,25 @@ public class SSLHelper {
 
     public static void setClientBuilderSSLContext(HttpClientBuilder clientBuilder, KeyStore customKeyStore)
             throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException, KeyManagementException {
-        if (customKeyStore == null) return;
+        SSLContext sslContext = createSSLContext(customKeyStore);
+        if (sslContext != null) clientBuilder.setSSLContext(sslContext);
+    }
+
+    /**
+     * @return an SSLContext trusting the first certificate of the given key store in addition to the
+     *         default trust store, or null if there is no such certificate
+     */
+    public static SSLContext createSSLContext(KeyStore customKeyStore)
+            throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException, KeyManagementException {
+        X509Certificate certificate = getCertificate(customKeyStore);
+        if (certificate == null) return null;
+        return createSSLContext(customKeyStore.aliases().nextElement(), certificate);
+    }
+
+    public static X509Certificate getCertificate(KeyStore customKeyStore) throws KeyStoreException {
+        if (customKeyStore == null) return null;
         String alias = customKeyStore.aliases().nextElement();
-        X509Certificate certificate = (X509Certificate) customKeyStore.getCertificate(alias);
-        if (certificate != null) clientBuilder.setSSLContext(createSSLContext(alias, certificate));
+        return (X509Certificate) customKeyStore.getCertificate(alias);
     }
 
     private static SSLContext createSSLContext(String alias, X509Certificate certificate)
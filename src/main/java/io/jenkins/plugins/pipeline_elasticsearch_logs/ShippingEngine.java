@@ -0,0 +1,220 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Sends the documents of all producers of a JVM, the senders of the console logs as well as the listeners for the
+ * flow graph and the builds, to one Elasticsearch cluster.
+ * There is one engine per cluster and user in a JVM, see {@link ElasticSearchRunConfiguration#getShippingEngine()}.
+ * In bulk mode the documents of all concurrent steps and builds fill the same batches. The http connections are
+ * pooled by {@link ElasticSearchHttpClients}, so their number stays bounded however many producers there are.
+ * If the engine has a {@link CircuitBreaker}, documents which are sent directly are dropped while it is open, the
+ * drops are logged by the breaker.
+ * Documents with an id are indexed only once, even if a request which Elasticsearch processed is sent again.
+ * Documents with a routing value, e.g. the uid of their build, are stored in the shard selected by the value.
+ * When the options for the cluster change, the engine is closed and the documents which producers still send to it
+ * are forwarded to its successor, see {@link #replaceWith(ShippingEngine)}.
+ */
+final class ShippingEngine {
+
+    /**
+     * The maximum time a replaced engine waits for its buffered documents to be sent.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Logger LOGGER = Logger.getLogger(ShippingEngine.class.getName());
+
+    private final ElasticSearchAccess access;
+
+    @CheckForNull
+    private final ElasticSearchBulkProcessor bulkProcessor;
+
+    @CheckForNull
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Sending holds the read lock, so that no document is added to the bulk processor after it was closed.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean closed;
+
+    @CheckForNull
+    private ShippingEngine successor;
+
+    /**
+     * The number of documents added to the buffer of this engine before it was closed. The positions of the documents
+     * forwarded to the successor follow it, so that a producer can wait for them like for the documents of this engine.
+     */
+    private long forwardOffset;
+
+    ShippingEngine(ElasticSearchAccess access, @CheckForNull ElasticSearchBulkProcessor bulkProcessor,
+            @CheckForNull CircuitBreaker circuitBreaker) {
+        this.access = access;
+        this.bulkProcessor = bulkProcessor;
+        this.circuitBreaker = circuitBreaker;
+        if (bulkProcessor != null) {
+            bulkProcessor.setCircuitBreaker(circuitBreaker);
+        }
+    }
+
+    /**
+     * Sends a document, in bulk mode asynchronously. Otherwise the document is dropped while the circuit breaker is open.
+     *
+     * @param document
+     *            the encoder of the complete document, it can be reused when this method returns
+     * @return the position of the document in the buffer to wait for it with {@link #flush(long, long)} of this
+     *         engine, also if it was forwarded to the successor, 0 if it was sent directly
+     * @throws IOException
+     *             if the document could not be sent or buffered
+     */
+    long send(JsonEncoder document) throws IOException {
+        return send(document, null, null);
+    }
+
+    /**
+     * Sends a document with an id, see {@link #send(JsonEncoder)}.
+     *
+     * @param id
+     *            the id of the document, derived from the data of the build, or null to let Elasticsearch generate one
+     * @param routing
+     *            the routing value of the document, see {@link ElasticSearchRunConfiguration#getRouting()}
+     */
+    long send(JsonEncoder document, @CheckForNull String id, @CheckForNull String routing) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                return doSend(document, id, routing);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long position = getSuccessor().send(document, id, routing);
+        return position > 0 ? forwardOffset + position : 0;
+    }
+
+    private long doSend(JsonEncoder document, @CheckForNull String id, @CheckForNull String routing) throws IOException {
+        if (bulkProcessor != null) {
+            return bulkProcessor.add(document.getBuffer(), 0, document.size(), id, routing);
+        } else if (circuitBreaker == null) {
+            access.push(document.toString(), id, routing);
+        } else if (circuitBreaker.allowRequest()) {
+            try {
+                access.push(document.toString(), id, routing);
+            } catch (IOException | RuntimeException e) {
+                circuitBreaker.recordFailure();
+                throw e;
+            }
+            circuitBreaker.recordSuccess();
+        } else {
+            circuitBreaker.recordDropped(1);
+        }
+        return 0;
+    }
+
+    @CheckForNull
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Waits until the documents sent so far have been processed.
+     *
+     * @see ElasticSearchBulkProcessor#flush()
+     */
+    void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                if (bulkProcessor != null) {
+                    bulkProcessor.flush();
+                }
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        getSuccessor().flush();
+    }
+
+    /**
+     * Waits until the documents of one producer have been processed or the timeout has elapsed. The documents of
+     * other producers which were sent later are not waited for.
+     *
+     * @param position
+     *            the position of the last document of the producer, as returned by {@link #send(JsonEncoder)}, or
+     *            a negative value to wait for all documents sent so far
+     * @return false if the documents were not processed within the timeout
+     * @see ElasticSearchBulkProcessor#flush(long, long)
+     */
+    boolean flush(long position, long timeoutMillis) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                if (bulkProcessor == null) {
+                    return true;
+                }
+                return position < 0 ? bulkProcessor.flush(timeoutMillis) : bulkProcessor.flush(position, timeoutMillis);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (position < 0) {
+            return getSuccessor().flush(-1, timeoutMillis);
+        }
+        if (position > forwardOffset) {
+            return getSuccessor().flush(position - forwardOffset, timeoutMillis);
+        }
+        // the document was added before this engine was closed, it is sent by the closing bulk processor
+        return bulkProcessor == null || bulkProcessor.flush(position, timeoutMillis);
+    }
+
+    /**
+     * Closes this engine and forwards the documents which producers still send to it to its successor.
+     * The documents buffered by this engine are sent in the background for a limited time, the caller does not wait
+     * for them. A write-ahead spool is released afterwards, the successor uses another directory meanwhile, which is
+     * merged when the spool is opened again.
+     */
+    void replaceWith(ShippingEngine successor) {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            this.successor = successor;
+            forwardOffset = bulkProcessor != null ? bulkProcessor.getPutCount() : 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (bulkProcessor != null) {
+            ElasticSearchBulkProcessor.getExecutor().execute(() -> {
+                try {
+                    bulkProcessor.close(CLOSE_TIMEOUT_MILLIS);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close the bulk processor of a replaced engine", e);
+                }
+            });
+        }
+    }
+
+    private ShippingEngine getSuccessor() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (successor == null) {
+                throw new IOException("The engine for Elastic Search was closed");
+            }
+            return successor;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,497 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * A durable {@link DocumentBuffer} backed by append-only segment files in a directory.
+ * Records are written to the newest segment as a 4 byte length followed by the record bytes. Taken records stay
+ * on disk until they are committed, a segment is deleted once all its records have been committed.
+ * The committed position is stored in the lock file of the directory, so that the records left over by a previous
+ * JVM are picked up again when the spool is opened. The records left over in numbered sibling directories, which were
+ * used while the directory was locked, are moved into the opened spool.
+ * A segment and the committed position are forced to the disk when the segment is full and when records are
+ * committed, the records of the newest segment in between survive a crash of the JVM, but not of the operating system.
+ * The records which are not committed yet may take up a maximum number of bytes. When the spool is full, a new record
+ * waits for space if the {@link OverflowPolicy} is {@link OverflowPolicy#BLOCK}, otherwise it is dropped.
+ */
+class WriteAheadSpool implements DocumentBuffer {
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadSpool.class.getName());
+
+    static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String LOCK_FILE = "spool.lock";
+
+    private static final int CHECKPOINT_SIZE = 16;
+
+    private static final int HEADER_SIZE = 4;
+
+    private static final int MAX_DIRECTORIES = 16;
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSegmentNumber;
+
+    private long committedPosition;
+    private int readSegment;
+    private long readPosition;
+    private int readCount;
+    private long readBytes;
+
+    private long putCount;
+    private long takeCount;
+    private long usedBytes;
+
+    private long blockedCount;
+    private long droppedNewestCount;
+    private boolean closed;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE);
+    private byte[] record = new byte[8192];
+
+    private WriteAheadSpool(File directory, long segmentSize, long maxBytes, OverflowPolicy policy, FileChannel lockChannel,
+            FileLock lock) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens a spool without a maximum size, see {@link #open(File, String, long, long, OverflowPolicy)}.
+     */
+    static WriteAheadSpool open(File root, String name, long segmentSize) throws IOException {
+        return open(root, name, segmentSize, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Opens the spool in the directory <code>name</code> below <code>root</code>. If that directory is in use
+     * by another spool, a numbered sibling directory is used instead. The records left over in the other directories
+     * which are not in use are moved into the opened spool.
+     *
+     * @param root
+     *            the directory containing the spools
+     * @param name
+     *            the name of the spool directory
+     * @param segmentSize
+     *            the size after which a new segment file is started
+     * @param maxBytes
+     *            the maximum size of the records which are not committed yet
+     * @param policy
+     *            whether a record waits for space when the spool is full, otherwise it is dropped
+     * @return the spool with the records of the previous spool in the directory
+     * @throws IOException
+     *             if no directory could be locked or the segments could not be read
+     */
+    static WriteAheadSpool open(File root, String name, long segmentSize, long maxBytes, OverflowPolicy policy) throws IOException {
+        for (int i = 0; i < MAX_DIRECTORIES; i++) {
+            File directory = new File(root, directoryName(name, i));
+            Files.createDirectories(directory.toPath());
+            WriteAheadSpool spool = tryOpen(directory, segmentSize, maxBytes, policy);
+            if (spool != null) {
+                spool.mergeSiblings(root, name, i);
+                return spool;
+            }
+        }
+        throw new IOException("All spool directories for " + name + " in " + root + " are in use");
+    }
+
+    private static String directoryName(String name, int i) {
+        return i == 0 ? name : name + "-" + i;
+    }
+
+    /**
+     * @return the spool in the directory or null if it is in use
+     */
+    @CheckForNull
+    private static WriteAheadSpool tryOpen(File directory, long segmentSize, long maxBytes, OverflowPolicy policy) throws IOException {
+        FileChannel lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            return null;
+        }
+        WriteAheadSpool spool = new WriteAheadSpool(directory, segmentSize, maxBytes, policy, lockChannel, lock);
+        try {
+            spool.recover();
+        } catch (IOException e) {
+            spool.close();
+            throw e;
+        }
+        return spool;
+    }
+
+    /**
+     * Moves the records of the sibling directories which are not in use into this spool, so that records spooled
+     * while this directory was in use are sent after a restart, too. The records are committed in the sibling once
+     * they are written here, the records of a sibling which was not merged completely are sent again.
+     */
+    private void mergeSiblings(File root, String name, int index) {
+        for (int i = 0; i < MAX_DIRECTORIES; i++) {
+            File sibling = new File(root, directoryName(name, i));
+            if (i == index || !sibling.isDirectory()) {
+                continue;
+            }
+            try {
+                WriteAheadSpool other = tryOpen(sibling, segmentSize, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+                if (other == null) {
+                    continue;
+                }
+                try {
+                    long records = other.size();
+                    while (other.drainTo(this::append, Integer.MAX_VALUE, segmentSize) > 0) {
+                        other.commit();
+                    }
+                    if (records > 0) {
+                        LOGGER.log(Level.INFO, "Moved {0} spooled documents from {1} to {2}", new Object[] { records, sibling, directory });
+                    }
+                } finally {
+                    other.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to move the spooled documents from " + sibling + " to " + directory, e);
+            }
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Adds a record, applying the overflow policy if the spool is full.
+     *
+     * @throws IOException
+     *             if the record could not be written or the thread was interrupted while blocked
+     */
+    @Override
+    public synchronized void put(byte[] b, int off, int len) throws IOException {
+        if (isFull(len)) {
+            if (policy != OverflowPolicy.BLOCK) {
+                droppedNewestCount++;
+                return;
+            }
+            blockedCount++;
+            while (isFull(len) && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for space in the spool", e);
+                }
+            }
+        }
+        if (closed) {
+            throw new IOException("The spool in " + directory + " is closed");
+        }
+        append(b, off, len);
+    }
+
+    /**
+     * A record larger than the maximum size is accepted by an empty spool.
+     */
+    private boolean isFull(int len) {
+        return usedBytes > 0 && usedBytes + HEADER_SIZE + len > maxBytes;
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.size >= segmentSize) {
+            if (segment != null) {
+                // a full segment is not written again, it survives a crash of the operating system from now on
+                segment.channel.force(false);
+            }
+            segment = createSegment();
+        }
+        header.clear();
+        header.putInt(len).flip();
+        ByteBuffer[] buffers = { header, ByteBuffer.wrap(b, off, len) };
+        long remaining = HEADER_SIZE + len;
+        while (remaining > 0) {
+            remaining -= segment.channel.write(buffers);
+        }
+        segment.size += HEADER_SIZE + len;
+        usedBytes += HEADER_SIZE + len;
+        putCount++;
+    }
+
+    /**
+     * Takes records without removing them from disk. They are removed by {@link #commit()} or taken again
+     * after {@link #rollback()}.
+     */
+    @Override
+    public synchronized int drainTo(RecordSink sink, int maxRecords, long maxBytes) throws IOException {
+        int taken = 0;
+        long bytes = 0;
+        while (taken < maxRecords && readSegment < segments.size()) {
+            Segment segment = segments.get(readSegment);
+            if (readPosition >= segment.size) {
+                if (readSegment == segments.size() - 1) {
+                    break;
+                }
+                readSegment++;
+                readPosition = 0;
+                continue;
+            }
+            int len = readLength(segment.channel, readPosition);
+            if (taken > 0 && bytes + len > maxBytes) {
+                break;
+            }
+            if (record.length < len) {
+                record = new byte[Math.max(len, record.length * 2)];
+            }
+            readFully(segment.channel, ByteBuffer.wrap(record, 0, len), readPosition + HEADER_SIZE);
+            sink.accept(record, 0, len);
+            readPosition += HEADER_SIZE + len;
+            readBytes += HEADER_SIZE + len;
+            readCount++;
+            bytes += len;
+            taken++;
+        }
+        return taken;
+    }
+
+    @Override
+    public synchronized void commit() throws IOException {
+        takeCount += readCount;
+        usedBytes -= readBytes;
+        readCount = 0;
+        readBytes = 0;
+        while (readSegment > 0) {
+            segments.remove(0).delete();
+            readSegment--;
+        }
+        if (!segments.isEmpty() && readPosition >= segments.get(0).size) {
+            if (segments.size() == 1) {
+                // everything has been sent, reuse the segment
+                segments.get(0).truncate();
+            } else {
+                segments.remove(0).delete();
+            }
+            readPosition = 0;
+        }
+        committedPosition = readPosition;
+        writeCheckpoint();
+        // producers may wait for space
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void rollback() {
+        readSegment = 0;
+        readPosition = committedPosition;
+        readCount = 0;
+        readBytes = 0;
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return putCount == takeCount;
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, putCount - takeCount);
+    }
+
+    @Override
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    @Override
+    public synchronized long getTakeCount() {
+        return takeCount;
+    }
+
+    @Override
+    public synchronized long getBlockedCount() {
+        return blockedCount;
+    }
+
+    @Override
+    public synchronized long getDroppedNewestCount() {
+        return droppedNewestCount;
+    }
+
+    /**
+     * Closes the segment files and releases the directory. The segments are kept on disk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        for (Segment segment : segments) {
+            segment.channel.force(false);
+            segment.channel.close();
+        }
+        segments.clear();
+        lock.release();
+        lockChannel.close();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("Could not list spool directory " + directory);
+        }
+        Arrays.sort(files);
+        long checkpointSegment = -1;
+        long checkpointPosition = 0;
+        if (lockChannel.size() >= CHECKPOINT_SIZE) {
+            checkpoint.clear();
+            readFully(lockChannel, checkpoint, 0);
+            checkpoint.flip();
+            checkpointSegment = checkpoint.getLong();
+            checkpointPosition = checkpoint.getLong();
+        }
+        long records = 0;
+        for (File file : files) {
+            String name = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+            long number = Long.parseLong(name);
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+            Segment segment = new Segment(file, number);
+            long length = segment.channel.size();
+            long position = 0;
+            while (position + HEADER_SIZE <= length) {
+                int len = readLength(segment.channel, position);
+                if (len < 0 || position + HEADER_SIZE + len > length) {
+                    break;
+                }
+                position += HEADER_SIZE + len;
+                if (number == checkpointSegment && position <= checkpointPosition) {
+                    // already sent before the restart
+                    usedBytes -= HEADER_SIZE + len;
+                    committedPosition = position;
+                    continue;
+                }
+                records++;
+            }
+            if (position < length) {
+                LOGGER.log(Level.WARNING, "Discarding incomplete record at the end of spool segment {0}", file);
+                segment.channel.truncate(position);
+            }
+            if (position == 0 || number < checkpointSegment) {
+                segment.delete();
+                continue;
+            }
+            segment.size = position;
+            segment.channel.position(position);
+            usedBytes += position;
+            segments.add(segment);
+        }
+        if (segments.isEmpty() || segments.get(0).number != checkpointSegment) {
+            committedPosition = 0;
+        }
+        readPosition = committedPosition;
+        putCount = records;
+        if (records > 0) {
+            LOGGER.log(Level.INFO, "Recovered {0} spooled documents from {1}", new Object[] { records, directory });
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        long number = nextSegmentNumber++;
+        File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, number);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        checkpoint.clear();
+        checkpoint.putLong(segments.isEmpty() ? -1 : segments.get(0).number).putLong(committedPosition).flip();
+        while (checkpoint.hasRemaining()) {
+            lockChannel.write(checkpoint, CHECKPOINT_SIZE - checkpoint.remaining());
+        }
+        lockChannel.force(false);
+    }
+
+    private int readLength(FileChannel channel, long position) throws IOException {
+        header.clear();
+        readFully(channel, header, position);
+        header.flip();
+        return header.getInt();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool segment " + channel);
+            }
+            position += read;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long number;
+        private final FileChannel channel;
+        private long size;
+
+        Segment(File file, long number) throws IOException {
+            this.file = file;
+            this.number = number;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void truncate() throws IOException {
+            channel.truncate(0);
+            size = 0;
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+}
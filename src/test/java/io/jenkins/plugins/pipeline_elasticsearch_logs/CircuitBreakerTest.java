@@ -0,0 +1,120 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private boolean reachable;
+
+    private int probes;
+
+    private final ElasticSearchAccess access = new ElasticSearchAccess(null, null, null) {
+        @Override
+        String testConnection() throws IOException {
+            probes++;
+            if (!reachable) {
+                throw new IOException("unavailable");
+            }
+            return "";
+        }
+    };
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(access, 3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejectedCount());
+        assertEquals(1, breaker.getOpenedCount());
+        assertEquals(0, probes);
+    }
+
+    @Test
+    public void testFailedProbeKeepsBreakerOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(access, 1, 0);
+        breaker.recordFailure();
+
+        assertFalse(breaker.allowRequest());
+
+        assertEquals(1, probes);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    @Test
+    public void testProbeClosesBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(access, 1, 0);
+        breaker.recordFailure();
+        reachable = true;
+
+        assertTrue(breaker.allowRequest());
+
+        assertEquals(1, probes);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(1, probes);
+    }
+
+    @Test
+    public void testBulkProcessorDropsBatchesWhileOpen() throws Exception {
+        int[] requests = new int[1];
+        ElasticSearchAccess failing = new ElasticSearchAccess(null, null, null) {
+            @Override
+            public void pushBulk(byte[] body, int length) throws IOException {
+                requests[0]++;
+                throw new IOException("unavailable");
+            }
+
+            @Override
+            String testConnection() throws IOException {
+                throw new IOException("unavailable");
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker(failing, 2, 60000);
+        ElasticSearchBulkProcessor processor = new ElasticSearchBulkProcessor(failing, 1, 1024, 60000, 1024 * 1024,
+                OverflowPolicy.BLOCK, null);
+        processor.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 5; i++) {
+            processor.add("{\"a\":" + i + "}");
+        }
+        processor.flush();
+        // the first batch is sent again after a delay, which opens the breaker
+        for (int i = 0; i < 500 && breaker.getDroppedCount() < 5; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, requests[0]);
+        assertEquals(5, breaker.getRejectedCount());
+        assertEquals(5, breaker.getDroppedCount());
+    }
+
+    @Test
+    public void testEngineCountsDroppedDocuments() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(access, 1, 60000);
+        ShippingEngine engine = new ShippingEngine(access, null, breaker);
+        breaker.recordFailure();
+
+        engine.send(new JsonEncoder().startObject().field(JsonEncoder.name("a"), 1).endObject());
+        engine.send(new JsonEncoder().startObject().field(JsonEncoder.name("a"), 2).endObject());
+
+        assertEquals(2, breaker.getDroppedCount());
+    }
+
+}
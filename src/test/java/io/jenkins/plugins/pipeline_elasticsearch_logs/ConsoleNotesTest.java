@@ -1,15 +1,19 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.Test;
 
+import net.sf.json.JSONObject;
+
 public class ConsoleNotesTest {
 
     @Test
@@ -48,4 +52,110 @@ public class ConsoleNotesTest {
                 writer.getBuffer().toString());
     }
 
+    @Test
+    public void testParseWithoutNotes() {
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        byte[] line = "Hello \"world\"\r\n".getBytes(StandardCharsets.UTF_8);
+
+        ConsoleNotes.parse(line, line.length, encoder, true);
+
+        assertEquals("{\"message\":\"Hello \\\"world\\\"\"}", encoder.endObject().toString());
+    }
+
+    @Test
+    public void testParseWithNotes() {
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        // the positions count UTF-16 chars, so the supplementary character counts twice
+        byte[] line = "\u00fc\ud83d\ude00 \u001B[8mha:AAA=\u001B[0madmin \u001B[8mha:BBB=\u001B[0m!\n".getBytes(StandardCharsets.UTF_8);
+
+        ConsoleNotes.parse(line, line.length, encoder, true);
+
+        assertEquals("{\"message\":\"\u00fc\ud83d\ude00 admin !\",\"annotations\":[{\"position\":4,\"note\":\"AAA=\"},"
+                + "{\"position\":10,\"note\":\"BBB=\"}]}", encoder.endObject().toString());
+    }
+
+    @Test
+    public void testParseWithoutAnnotations() {
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        byte[] line = "a\u001B[8mha:AAA=\u001B[0mb\u001B[8mha:unterminated\n".getBytes(StandardCharsets.UTF_8);
+
+        ConsoleNotes.parse(line, line.length, encoder, false);
+
+        assertEquals("{\"message\":\"ab\u001B[8mha:unterminated\"}".replace("\u001B", "\\u001b"), encoder.endObject().toString());
+    }
+
+    @Test
+    public void testWriteChunk() throws IOException {
+        LineChunk chunk = new LineChunk(true);
+        addLine(chunk, "first\n", 1000);
+        addLine(chunk, "a \u001B[8mha:AAA=\u001B[0mb\n", 1001);
+        addLine(chunk, "\u001B[8mha:BBB=\u001B[0m\r\n", 1005);
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        chunk.writeTo(encoder);
+        JSONObject source = JSONObject.fromObject(encoder.endObject().toString());
+        StringWriter writer = new StringWriter();
+
+        ConsoleNotes.write(writer, source);
+
+        assertEquals("first\na \u001B[8mha:AAA=\u001B[0mb\n\u001B[8mha:BBB=\u001B[0m\n", writer.toString());
+        assertEquals("[0,6,10]", source.get("lineOffsets").toString().replace(".0", "").replace(" ", ""));
+        assertEquals("[0,1,5]", source.get("lineTimestampOffsets").toString().replace(".0", "").replace(" ", ""));
+        assertEquals(writer.toString().getBytes(StandardCharsets.UTF_8).length, ((Number) source.get("logBytes")).intValue());
+        assertTrue(chunk.isEmpty());
+    }
+
+    @Test
+    public void testLogLength() throws IOException {
+        byte[] line = "\u00fc \u001B[8mha:AAA=\u001B[0madmin \u001B[8mha:unterminated\r\n".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(line.length - 1, ConsoleNotes.parse(line, line.length, new JsonEncoder().startObject(), true));
+        assertEquals(rendered(line, false), ConsoleNotes.parse(line, line.length, new JsonEncoder().startObject(), false));
+    }
+
+    @Test
+    public void testLogLengthOfInvalidUtf8() throws IOException {
+        // a cp1252 encoded line, each malformed byte is replaced by the 3 bytes of U+FFFD
+        byte[] line = { 'c', 'a', 'f', (byte) 0xe9, ' ', 0x1b, '[', '8', 'm', 'h', 'a', ':', (byte) 0xe9, 0x1b, '[', '0', 'm', '\n' };
+
+        assertEquals(rendered(line, true), ConsoleNotes.parse(line, line.length, new JsonEncoder().startObject(), true));
+        assertEquals(rendered(line, false), ConsoleNotes.parse(line, line.length, new JsonEncoder().startObject(), false));
+        assertEquals("caf\ufffd \n", render(line, false));
+
+        LineChunk chunk = new LineChunk(true);
+        chunk.add(line, line.length, 1000);
+        chunk.add(line, line.length, 1001);
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        chunk.writeTo(encoder);
+        JSONObject source = JSONObject.fromObject(encoder.endObject().toString());
+        StringWriter writer = new StringWriter();
+        ConsoleNotes.write(writer, source);
+        assertEquals(writer.toString().getBytes(StandardCharsets.UTF_8).length, ((Number) source.get("logBytes")).intValue());
+
+        RepeatedLine repeated = new RepeatedLine(false);
+        repeated.remember(line, line.length);
+        repeated.addIfRepeated(line, line.length, 1000);
+        repeated.addIfRepeated(line, line.length, 1001);
+        encoder = new JsonEncoder().startObject();
+        repeated.writeTo(encoder);
+        source = JSONObject.fromObject(encoder.endObject().toString());
+        assertEquals(2 * rendered(line, false), ((Number) source.get("logBytes")).intValue());
+    }
+
+    private static String render(byte[] line, boolean saveAnnotations) throws IOException {
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        ConsoleNotes.parse(line, line.length, encoder, saveAnnotations);
+        StringWriter writer = new StringWriter();
+        ConsoleNotes.write(writer, JSONObject.fromObject(encoder.endObject().toString()));
+        return writer.toString();
+    }
+
+    private static int rendered(byte[] line, boolean saveAnnotations) throws IOException {
+        return render(line, saveAnnotations).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void addLine(LineChunk chunk, String line, long millis) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        chunk.add(bytes, bytes.length, millis);
+    }
+
 }
@@ -9,7 +9,7 @@ import java.security.KeyStore;
 import java.util.ArrayList;
 
 /**
- * This class mocks an ElasticSearchAccess and overrides the {@link ElasticSearchAccess#push(String)} method.
+ * This class mocks an ElasticSearchAccess and overrides the {@link ElasticSearchAccess#push(String, String, String)} method.
  * The data the plugin tries to send to Elasticsearch are collected and can be retrieved via {@link #getEntries()}.
  */
 public class ElasticSearchAccessMock extends ElasticSearchAccess {
@@ -32,10 +32,13 @@ public class ElasticSearchAccessMock extends ElasticSearchAccess {
     }
 
     @Override
-    public void push(String data) throws IOException {
+    public void push(String data, String id, String routing) throws IOException {
         data = prettyPrint(data);
         if (printToLog) System.out.println(data);
-        entries.add(data);
+        // events may be sent in the background, readers which run at the same time lock the list
+        synchronized (entries) {
+            entries.add(data);
+        }
     }
 
     /**
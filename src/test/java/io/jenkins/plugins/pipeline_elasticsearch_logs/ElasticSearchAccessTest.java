@@ -0,0 +1,121 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class ElasticSearchAccessTest {
+
+    private HttpServer server;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /** The status of the responses */
+    private volatile int status = 429;
+
+    private volatile String contentEncoding;
+
+    private volatile byte[] received;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            received = IOUtils.toByteArray(exchange.getRequestBody());
+            byte[] body = (status == 429 ? "{\"error\":\"too many requests\"}" : "{}").getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    private ElasticSearchAccess createAccess() throws URISyntaxException {
+        return new ElasticSearchAccess(new URI("http://localhost:" + server.getAddress().getPort() + "/index1/_doc"), null, null);
+    }
+
+    private static String createDocument(int length) {
+        return "{\"a\":\"" + String.format("%0" + length + "d", 0) + "\"}";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testPushFailsFast() throws URISyntaxException {
+        ElasticSearchAccess access = createAccess();
+        try {
+            access.push("{\"a\":1}", "id1", null);
+            fail("the document must not be accepted");
+        } catch (IOException e) {
+            // not wrapped into another IOException
+            assertNull(e.getCause());
+            assertTrue(e.getMessage(), e.getMessage().contains("429"));
+        }
+        // the thread writing the log does not wait to send it again
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testSmallBodyIsNotCompressed() throws Exception {
+        status = 201;
+        ElasticSearchAccess access = createAccess();
+        access.setCompressionThreshold(1024);
+        String document = createDocument(100);
+        access.push(document, "id1", null);
+
+        assertNull(contentEncoding);
+        assertEquals(document, new String(received, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeBodyIsCompressed() throws Exception {
+        status = 201;
+        ElasticSearchAccess access = createAccess();
+        access.setCompressionThreshold(1024);
+        String document = createDocument(5000);
+        access.push(document, "id1", null);
+
+        assertEquals("gzip", contentEncoding);
+        assertTrue(received.length < 5000);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(received))) {
+            assertEquals(document, IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testNegativeThresholdDisablesCompression() throws Exception {
+        status = 201;
+        ElasticSearchAccess access = createAccess();
+        access.setCompressionThreshold(-1);
+        String document = createDocument(5000);
+        access.push(document, "id1", null);
+
+        assertNull(contentEncoding);
+        assertEquals(document, new String(received, StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,387 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ElasticSearchBulkProcessorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<List<String>> batches = new ArrayList<>();
+
+    private final List<String> actions = new ArrayList<>();
+
+    private int failures;
+
+    /** Holds the requests back while it is not null */
+    private volatile CountDownLatch gate;
+
+    private final ElasticSearchAccess access = new ElasticSearchAccess(null, null, null) {
+        @Override
+        public void pushBulk(byte[] body, int length) throws IOException {
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            synchronized (batches) {
+                if (failures > 0) {
+                    failures--;
+                    throw new IOException("unavailable");
+                }
+            }
+            ElasticSearchAccess.BulkItemsFailure failure = failItems(body, length);
+            if (failure != null) {
+                throw failure;
+            }
+            List<String> documents = new ArrayList<>();
+            String[] lines = new String(body, 0, length, StandardCharsets.UTF_8).split("\n");
+            for (int i = 1; i < lines.length; i += 2) {
+                documents.add(lines[i]);
+            }
+            synchronized (batches) {
+                for (int i = 0; i < lines.length; i += 2) {
+                    actions.add(lines[i]);
+                }
+                batches.add(documents);
+            }
+        }
+
+        @Override
+        public void pushBulkAsync(byte[] body, int length, FutureCallback<Void> callback) throws IOException {
+            synchronized (batches) {
+                inFlight++;
+                maxInFlight = Math.max(maxInFlight, inFlight);
+            }
+            byte[] copy = Arrays.copyOf(body, length);
+            // completes the request later on another thread like the I/O thread of the client
+            responder.schedule(() -> {
+                synchronized (batches) {
+                    inFlight--;
+                }
+                try {
+                    pushBulk(copy, length);
+                } catch (IOException e) {
+                    callback.failed(e);
+                    return;
+                }
+                callback.completed(null);
+            }, 20, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    /** The number of times a document containing "retry" fails with 429 */
+    private int itemFailures;
+
+    /**
+     * Indexes the documents of a request like Elasticsearch would, if some of them fail.
+     *
+     * @return the failure or null if the request has no document containing "retry" or "reject"
+     */
+    private ElasticSearchAccess.BulkItemsFailure failItems(byte[] body, int length) {
+        String[] lines = new String(body, 0, length, StandardCharsets.UTF_8).split("\n");
+        List<Integer> retryable = new ArrayList<>();
+        List<String> indexed = new ArrayList<>();
+        int rejected = 0;
+        synchronized (batches) {
+            for (int i = 1; i < lines.length; i += 2) {
+                if (lines[i].contains("reject")) {
+                    rejected++;
+                } else if (lines[i].contains("retry") && itemFailures > 0) {
+                    itemFailures--;
+                    retryable.add(i / 2);
+                } else {
+                    indexed.add(lines[i]);
+                }
+            }
+            if (rejected == 0 && retryable.isEmpty()) {
+                return null;
+            }
+            batches.add(indexed);
+        }
+        byte[] retryBody = retryable.isEmpty() ? null : ElasticSearchAccess.selectItems(body, length, retryable);
+        return new ElasticSearchAccess.BulkItemsFailure("failed", retryBody, retryable.size(), rejected);
+    }
+
+    private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+
+    private int inFlight;
+
+    private int maxInFlight;
+
+    @After
+    public void stopResponder() {
+        responder.shutdownNow();
+    }
+
+    private ElasticSearchBulkProcessor createProcessor(int batchSize, long maxBytes, long lingerMillis) {
+        File spoolDirectory = new File(tmp.getRoot(), "spool");
+        return new ElasticSearchBulkProcessor(access, batchSize, maxBytes, lingerMillis, 1024 * 1024, OverflowPolicy.BLOCK, spoolDirectory);
+    }
+
+    @Test
+    public void testBatchSize() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(2, 1024, 60000);
+        processor.add("{\"a\":1}");
+        processor.add("{\"a\":2}");
+        processor.add("{\"a\":3}");
+        processor.flush();
+
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}", "{\"a\":2}"), Arrays.asList("{\"a\":3}")), batches);
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(100, 10, 60000);
+        processor.add("{\"a\":\"1234\"}");
+        processor.add("{\"a\":\"5678\"}");
+        processor.flush();
+
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        ElasticSearchBulkProcessor processor = createProcessor(100, 1024, 10);
+        processor.add("{\"a\":1}");
+        for (int i = 0; i < 500; i++) {
+            synchronized (batches) {
+                if (!batches.isEmpty()) break;
+            }
+            Thread.sleep(10);
+        }
+
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}")), batches);
+    }
+
+    @Test
+    public void testFlushTimeout() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(1, 1024, 60000);
+        gate = new CountDownLatch(1);
+        long position = processor.add("{\"a\":1}".getBytes(StandardCharsets.UTF_8), 0, 7);
+
+        assertEquals(1, position);
+        assertFalse(processor.flush(position, 50));
+        gate.countDown();
+        assertTrue(processor.flush(position, 10000));
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}")), batches);
+    }
+
+    @Test
+    public void testCloseDeletesSpillFile() throws IOException {
+        File spoolDirectory = new File(tmp.getRoot(), "spill");
+        ElasticSearchBulkProcessor processor = new ElasticSearchBulkProcessor(access, 100, 1024 * 1024, 60000, 1024,
+                OverflowPolicy.SPILL, spoolDirectory);
+        for (int i = 0; i < 20; i++) {
+            processor.add("{\"a\":\"" + String.format("%0100d", i) + "\"}");
+        }
+        assertEquals(1, spoolDirectory.list().length);
+
+        processor.close(10000);
+
+        assertEquals(20, batches.get(0).size());
+        assertEquals(0, spoolDirectory.list().length);
+    }
+
+    @Test
+    public void testFlushFailure() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(1, 1024, 60000);
+        failures = 1;
+        long position = processor.add("{\"a\":1}".getBytes(StandardCharsets.UTF_8), 0, 7);
+
+        // returns before the timeout, the document is sent again later
+        assertFalse(processor.flush(position, 10000));
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void testDocumentsForwardedToSuccessor() throws IOException {
+        ShippingEngine engine = new ShippingEngine(access, createProcessor(100, 1024, 60000), null);
+        ShippingEngine successor = new ShippingEngine(access, createProcessor(100, 1024, 60000), null);
+        JsonEncoder document = new JsonEncoder().startObject().field(JsonEncoder.name("a"), 1).endObject();
+        assertEquals(1, engine.send(document));
+
+        engine.replaceWith(successor);
+        assertEquals(1, successor.send(document));
+        long position = engine.send(document);
+
+        // the positions of the forwarded documents follow the ones of the closed engine
+        assertEquals(3, position);
+        assertTrue(engine.flush(position, 10000));
+        assertTrue(engine.flush(1, 10000));
+        int sent = 0;
+        synchronized (batches) {
+            for (List<String> batch : batches) {
+                sent += batch.size();
+            }
+        }
+        assertEquals(3, sent);
+    }
+
+    @Test
+    public void testDocumentLargerThanBuffer() throws IOException {
+        File spoolDirectory = new File(tmp.getRoot(), "spool");
+        ElasticSearchBulkProcessor processor = new ElasticSearchBulkProcessor(access, 100, 1024 * 1024, 60000, 1024, OverflowPolicy.BLOCK,
+                spoolDirectory);
+        String large = "{\"a\":\"" + String.format("%02000d", 1) + "\"}";
+        processor.add("{\"a\":1}");
+        processor.add(large);
+
+        // sent at once with its own request
+        assertEquals(Arrays.asList(Arrays.asList(large)), batches);
+        processor.flush();
+        assertEquals(Arrays.asList(Arrays.asList(large), Arrays.asList("{\"a\":1}")), batches);
+    }
+
+    @Test
+    public void testWriteAheadRetry() throws Exception {
+        WriteAheadSpool spool = WriteAheadSpool.open(tmp.getRoot(), "spool", WriteAheadSpool.DEFAULT_SEGMENT_SIZE);
+        ElasticSearchBulkProcessor processor = new ElasticSearchBulkProcessor(access, 100, 1024, 60000, spool);
+        failures = 1;
+        processor.add("{\"a\":1}");
+        processor.add("{\"a\":2}");
+        // returns although the documents could not be sent
+        processor.flush();
+        for (int i = 0; i < 500; i++) {
+            synchronized (batches) {
+                if (!batches.isEmpty()) break;
+            }
+            Thread.sleep(10);
+        }
+
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}", "{\"a\":2}")), batches);
+        processor.flush();
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        ElasticSearchBulkProcessor processor = createProcessor(100, 1024, 60000);
+        failures = 2;
+        processor.add("{\"a\":1}");
+        // returns while the batch waits to be sent again
+        processor.flush();
+        for (int i = 0; i < 500; i++) {
+            synchronized (batches) {
+                if (!batches.isEmpty()) break;
+            }
+            Thread.sleep(10);
+        }
+
+        // the batch was not dropped
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}")), batches);
+    }
+
+    @Test
+    public void testItemFailures() throws Exception {
+        ElasticSearchBulkProcessor processor = createProcessor(3, 1024, 60000);
+        itemFailures = 1;
+        processor.add("{\"a\":1}");
+        processor.add("{\"reject\":2}");
+        processor.add("{\"retry\":3}");
+        processor.flush();
+        for (int i = 0; i < 500; i++) {
+            synchronized (batches) {
+                if (batches.size() > 1) break;
+            }
+            Thread.sleep(10);
+        }
+
+        // only the document which failed with 429 was sent again
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}"), Arrays.asList("{\"retry\":3}")), batches);
+    }
+
+    @Test
+    public void testAsyncRequests() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(1, 1024, 60000);
+        processor.setMaxRequestsInFlight(3);
+        failures = 1;
+        for (int i = 0; i < 10; i++) {
+            processor.add("{\"a\":" + i + "}");
+        }
+        processor.flush();
+
+        Set<String> documents = new HashSet<>();
+        for (List<String> batch : batches) {
+            documents.addAll(batch);
+        }
+        // the failed batch was sent again
+        assertEquals(10, documents.size());
+        assertEquals(10, batches.size());
+        assertTrue("max. " + maxInFlight + " requests in flight", maxInFlight > 1 && maxInFlight <= 3);
+    }
+
+    @Test
+    public void testAsyncItemFailures() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(3, 1024, 60000);
+        processor.setMaxRequestsInFlight(2);
+        itemFailures = 2;
+        processor.add("{\"a\":1}");
+        processor.add("{\"reject\":2}");
+        processor.add("{\"retry\":3}");
+        processor.flush();
+
+        // only the document which failed with 429 was sent again, until it was indexed
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}"), Arrays.asList(), Arrays.asList("{\"retry\":3}")), batches);
+    }
+
+    @Test
+    public void testDocumentIds() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(100, 1024, 60000);
+        byte[] document = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+        processor.add(document, 0, document.length, "uid-1-\"0\"", null);
+        processor.add(document, 0, document.length, "uid-1-1", "uid");
+        processor.add(document, 0, document.length, null, null);
+        processor.flush();
+
+        assertEquals(Arrays.asList(Arrays.asList("{\"a\":1}", "{\"a\":1}", "{\"a\":1}")), batches);
+        assertEquals(Arrays.asList("{\"index\":{\"_id\":\"uid-1-\\\"0\\\"\"}}", "{\"index\":{\"_id\":\"uid-1-1\",\"routing\":\"uid\"}}",
+                "{\"index\":{}}"), actions);
+    }
+
+    @Test
+    public void testDocumentLikeActionLine() throws IOException {
+        ElasticSearchBulkProcessor processor = createProcessor(100, 1024, 60000);
+        processor.add("{\"index\":{\"a\":1}}");
+        processor.flush();
+
+        // the document gets its own action line although it starts like one
+        assertEquals(Arrays.asList(Arrays.asList("{\"index\":{\"a\":1}}")), batches);
+        assertEquals(Arrays.asList("{\"index\":{}}"), actions);
+    }
+
+    @Test
+    public void testSelectItems() {
+        byte[] body = "{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"a\":2}\n{\"index\":{}}\n{\"a\":3}\n".getBytes(StandardCharsets.UTF_8);
+
+        byte[] selected = ElasticSearchAccess.selectItems(body, body.length, Arrays.asList(0, 2));
+
+        assertEquals("{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"a\":3}\n", new String(selected, StandardCharsets.UTF_8));
+    }
+
+}
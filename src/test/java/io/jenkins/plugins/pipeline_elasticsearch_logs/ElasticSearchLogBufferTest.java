@@ -0,0 +1,230 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class ElasticSearchLogBufferTest {
+
+    private final List<JSONObject> documents = new ArrayList<>();
+
+    /**
+     * The requested pages as <code>first document:number of fields</code>.
+     */
+    private final List<String> requests = new ArrayList<>();
+
+    private boolean failLength;
+
+    private StringBuilder log;
+
+    private ElasticSearchLogReader reader;
+
+    @Before
+    public void setUp() throws URISyntaxException, IOException {
+        ElasticSearchRunConfiguration config = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), null,
+                null, null, false, "uid1", JSONObject.fromObject("{}"), true, () -> null);
+        reader = new ElasticSearchLogReader(config) {
+            @Override
+            long getLogLength(String nodeId) throws IOException {
+                if (failLength) {
+                    throw new IOException("unavailable");
+                }
+                long length = 0;
+                for (JSONObject document : documents) {
+                    if (!document.has(ConsoleNotes.LOG_BYTES_KEY)) {
+                        return -1;
+                    }
+                    length += document.getLong(ConsoleNotes.LOG_BYTES_KEY);
+                }
+                return length;
+            }
+
+            @Override
+            SearchHit[] readPage(String nodeId, Object[] searchAfter, int size, String[] fields) throws IOException {
+                int first = searchAfter == null ? 0 : ((Number) searchAfter[0]).intValue() + 1;
+                requests.add(first + ":" + fields.length);
+                List<SearchHit> hits = new ArrayList<>();
+                for (int i = first; i < documents.size() && hits.size() < size; i++) {
+                    JSONObject source = new JSONObject();
+                    for (String field : fields) {
+                        if (documents.get(i).has(field)) {
+                            source.put(field, documents.get(i).get(field));
+                        }
+                    }
+                    SearchHit hit = new SearchHit(i).sourceRef(new BytesArray(source.toString()));
+                    hit.sortValues(new Object[] { (long) i }, new DocValueFormat[] { DocValueFormat.RAW });
+                    hits.add(hit);
+                }
+                return hits.toArray(new SearchHit[0]);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        log = new StringBuilder();
+    }
+
+    private void addLine(String message) {
+        documents.add(new JSONObject().element(ConsoleNotes.MESSAGE_KEY, message).element(ConsoleNotes.LOG_BYTES_KEY,
+                message.getBytes(StandardCharsets.UTF_8).length + 1));
+        log.append(message).append('\n');
+    }
+
+    private void addLegacyLine(String message) {
+        documents.add(new JSONObject().element(ConsoleNotes.MESSAGE_KEY, message));
+        log.append(message).append('\n');
+    }
+
+    private void addRepeatedLine(String message, long repeatCount) {
+        documents.add(new JSONObject().element(ConsoleNotes.MESSAGE_KEY, message).element(RepeatedLine.REPEAT_COUNT_KEY, repeatCount)
+                .element(ConsoleNotes.LOG_BYTES_KEY, (message.length() + 1) * repeatCount));
+    }
+
+    private String read(ElasticSearchLogBuffer buffer, long start) throws IOException {
+        try (InputStream in = buffer.newInputStream()) {
+            long remaining = start;
+            while (remaining > 0) {
+                remaining -= in.skip(remaining);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[1000];
+            int n;
+            while ((n = in.read(b)) >= 0) {
+                out.write(b, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        for (int i = 0; i < 2500; i++) {
+            addLine("line ü " + i);
+        }
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+
+        assertEquals(log.length() + 2500, buffer.length());
+        assertEquals(log.toString(), read(buffer, 0));
+        assertEquals(Arrays.asList("0:5", "1000:5", "2000:5"), requests);
+    }
+
+    @Test
+    public void testSkipWholeDocuments() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            addLine("line " + i);
+        }
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+        int start = log.indexOf("line 90\n");
+
+        assertEquals("line 90\n", read(buffer, start).substring(0, 8));
+        // only the sizes are fetched to skip, the rest is fetched with the messages
+        assertEquals(Arrays.asList("0:1", "90:5"), requests);
+    }
+
+    @Test
+    public void testSkipIntoDocument() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            addLine("line " + i);
+        }
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+        int start = log.indexOf("line 50\n") + 3;
+
+        assertEquals(log.substring(start), read(buffer, start));
+        assertEquals(Arrays.asList("0:1", "50:5"), requests);
+    }
+
+    @Test
+    public void testSkipPastEnd() throws IOException {
+        addLine("line");
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+
+        assertEquals("", read(buffer, 100));
+    }
+
+    @Test
+    public void testDocumentsWithoutLogBytes() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            if (i == 4) {
+                addLegacyLine("legacy " + i);
+            } else {
+                addLine("line " + i);
+            }
+        }
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+        int start = log.indexOf("line 7\n") + 2;
+
+        assertEquals(log.length(), buffer.length());
+        assertEquals(log.substring(start), read(buffer, start));
+    }
+
+    @Test
+    public void testRepeatedLine() throws IOException {
+        addLine("first");
+        addRepeatedLine("repeated", 100_000_000L);
+        addLine("last");
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+        long length = 6 + 9 * 100_000_000L + 5;
+
+        assertEquals(length, buffer.length());
+        assertEquals("ated\nrepeated\nlast\n", read(buffer, length - 19));
+        try (InputStream in = buffer.newInputStream()) {
+            byte[] b = new byte[18];
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+            assertEquals("first\nrepeated\nrep", new String(b, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testPositionsOfRunningBuild() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            addLine("line " + i);
+        }
+        LogPositions positions = LogPositions.of("uid-buffer-test", null);
+        String first = read(new ElasticSearchLogBuffer(reader, null, positions), 0);
+        addLine("new line");
+        requests.clear();
+
+        String next = read(new ElasticSearchLogBuffer(reader, null, positions), first.length());
+
+        assertEquals("new line\n", next);
+        // the poll continues after the last document which was read before
+        assertEquals(Arrays.asList("100:5"), requests);
+    }
+
+    @Test
+    public void testLengthFailure() {
+        failLength = true;
+        ElasticSearchLogBuffer buffer = new ElasticSearchLogBuffer(reader, null, null);
+
+        try {
+            buffer.length();
+            fail("a failure must not be a log of length 0");
+        } catch (UncheckedIOException x) {
+            assertTrue(x.getCause().getMessage().contains("unavailable"));
+        }
+    }
+
+}
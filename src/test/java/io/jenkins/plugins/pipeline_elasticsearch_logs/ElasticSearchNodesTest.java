@@ -0,0 +1,101 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class ElasticSearchNodesTest {
+
+    private static Map<HttpHost, Integer> select(ElasticSearchNodes nodes, int requests) {
+        Map<HttpHost, Integer> counts = new HashMap<>();
+        for (int i = 0; i < requests; i++) {
+            counts.merge(nodes.select().getHost(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testRoundRobin() {
+        HttpHost a = new HttpHost("round-robin-a", 9200, "http");
+        HttpHost b = new HttpHost("round-robin-b", 9200, "http");
+        HttpHost c = new HttpHost("round-robin-c", 9200, "http");
+        ElasticSearchNodes nodes = ElasticSearchNodes.get(Arrays.asList(a, b, c), false);
+
+        Map<HttpHost, Integer> counts = select(nodes, 30);
+
+        assertEquals(Integer.valueOf(10), counts.get(a));
+        assertEquals(Integer.valueOf(10), counts.get(b));
+        assertEquals(Integer.valueOf(10), counts.get(c));
+    }
+
+    @Test
+    public void testLeastOutstandingRequests() {
+        HttpHost a = new HttpHost("outstanding-a", 9200, "http");
+        HttpHost b = new HttpHost("outstanding-b", 9200, "http");
+        ElasticSearchNodes nodes = ElasticSearchNodes.get(Arrays.asList(a, b), false);
+        ElasticSearchNodes.Node busy = nodes.select();
+        busy.begin();
+
+        for (int i = 0; i < 4; i++) {
+            ElasticSearchNodes.Node node = nodes.select();
+            assertEquals(busy.getHost() == a ? b : a, node.getHost());
+        }
+    }
+
+    @Test
+    public void testDeadNodeIsSkipped() {
+        HttpHost a = new HttpHost("dead-a", 9200, "http");
+        HttpHost b = new HttpHost("dead-b", 9200, "http");
+        HttpHost c = new HttpHost("dead-c", 9200, "http");
+        ElasticSearchNodes nodes = ElasticSearchNodes.get(Arrays.asList(a, b, c), false);
+        ElasticSearchNodes.Node dead = nodes.select();
+        dead.markDead();
+
+        Map<HttpHost, Integer> counts = select(nodes, 20);
+
+        assertEquals(2, counts.size());
+        assertEquals(Integer.valueOf(10), counts.values().iterator().next());
+
+        dead.markAlive();
+        assertEquals(3, select(nodes, 3).size());
+    }
+
+    @Test
+    public void testAllNodesDead() {
+        HttpHost a = new HttpHost("all-dead-a", 9200, "http");
+        HttpHost b = new HttpHost("all-dead-b", 9200, "http");
+        ElasticSearchNodes nodes = ElasticSearchNodes.get(Arrays.asList(a, b), false);
+        ElasticSearchNodes.Node first = nodes.select();
+        ElasticSearchNodes.Node second = nodes.select();
+        first.markDead();
+        second.markDead();
+        second.markDead();
+
+        // the node with the shorter backoff is retried first
+        assertSame(first, nodes.select());
+    }
+
+    @Test
+    public void testParseHttpNodes() {
+        JSONObject result = JSONObject.fromObject("{\"nodes\":{"
+                + "\"n1\":{\"http\":{\"publish_address\":\"10.0.0.1:9200\"}},"
+                + "\"n2\":{\"http\":{\"publish_address\":\"es2.example.com/10.0.0.2:9201\"}},"
+                + "\"n3\":{\"http\":{\"publish_address\":\"[::1]:9202\"}},"
+                + "\"n4\":{}}}");
+
+        List<HttpHost> hosts = ElasticSearchNodes.parseHttpNodes(result, "https");
+
+        assertEquals(Arrays.asList(new HttpHost("10.0.0.1", 9200, "https"), new HttpHost("es2.example.com", 9201, "https"),
+                new HttpHost("::1", 9202, "https")), hosts);
+    }
+
+}
@@ -1,15 +1,22 @@
 package io.jenkins.plugins.pipeline_elasticsearch_logs;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import net.sf.json.JSONObject;
 
 public class ElasticSearchRunConfigurationTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void testGetIndices() throws URISyntaxException {
         ElasticSearchRunConfiguration config = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), null, null,
@@ -19,4 +26,56 @@ public class ElasticSearchRunConfigurationTest {
         Assert.assertEquals("index1", indices[0]);
     }
 
+    @Test
+    public void testEventTemplate() throws URISyntaxException {
+        ElasticSearchRunConfiguration config = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), null, null,
+                null, false, "uid1", JSONObject.fromObject("{\"project\":\"p\",\"build\":1}"), false, null);
+        JsonEncoder encoder = new JsonEncoder();
+        config.createEventTemplate("buildStart", null).start(encoder).endObject();
+
+        JSONObject data = JSONObject.fromObject(encoder.toString());
+        Assert.assertEquals("buildStart", data.getString("eventType"));
+        Assert.assertEquals("uid1", data.getString("uid"));
+        Assert.assertEquals("p", data.getJSONObject("runId").getString("project"));
+        Assert.assertTrue(data.has("timestamp"));
+        Assert.assertTrue(data.has("timestampMillis"));
+    }
+
+    @Test
+    public void testShippingEngineIsShared() throws URISyntaxException, IOException {
+        ElasticSearchRunConfiguration config1 = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), "user",
+                "secret", null, false, "uid1", JSONObject.fromObject("{}"), false, null);
+        ElasticSearchRunConfiguration config2 = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), "user",
+                "secret", null, false, "uid2", JSONObject.fromObject("{}"), false, null);
+        ElasticSearchRunConfiguration config3 = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), "other",
+                "secret", null, false, "uid1", JSONObject.fromObject("{}"), false, null);
+
+        Assert.assertSame(config1.getShippingEngine(), config2.getShippingEngine());
+        Assert.assertNotSame(config1.getShippingEngine(), config3.getShippingEngine());
+    }
+
+    @Test
+    public void testShippingEngineIsReplacedWhenOptionsChange() throws URISyntaxException, IOException, InterruptedException {
+        File spool = tmp.newFolder();
+        ElasticSearchRunConfiguration config1 = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/replaced/_doc"), "user",
+                "secret", null, false, "uid1", JSONObject.fromObject("{}"), false, null);
+        config1.setBulkOptions(100, 1000, 100, 1000, OverflowPolicy.DROP_NEWEST);
+        config1.setWriteAhead(spool.getPath(), WriteAheadSpool.DEFAULT_MAX_BYTES);
+        ShippingEngine engine1 = config1.getShippingEngine();
+        Thread.sleep(10);
+        ElasticSearchRunConfiguration config2 = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/replaced/_doc"), "user",
+                "changed", null, false, "uid2", JSONObject.fromObject("{}"), false, null);
+        config2.setBulkOptions(100, 1000, 100, 1000, OverflowPolicy.DROP_NEWEST);
+        config2.setWriteAhead(spool.getPath(), WriteAheadSpool.DEFAULT_MAX_BYTES);
+
+        ShippingEngine engine2 = config2.getShippingEngine();
+
+        Assert.assertNotSame(engine1, engine2);
+        Assert.assertSame(engine2, config2.getShippingEngine());
+        // the older configuration does not replace the engine again
+        Assert.assertSame(engine2, config1.getShippingEngine());
+        // the successor was created without waiting for the closed engine to release its spool
+        Assert.assertEquals(2, spool.list().length);
+    }
+
 }
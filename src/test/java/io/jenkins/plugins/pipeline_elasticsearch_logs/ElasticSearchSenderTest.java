@@ -0,0 +1,153 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class ElasticSearchSenderTest {
+
+    private final List<JSONObject> documents = new ArrayList<>();
+
+    private final List<String> ids = new ArrayList<>();
+
+    private final ElasticSearchAccess access = new ElasticSearchAccess(null, null, null) {
+        @Override
+        public void push(String data, String id, String routing) throws IOException {
+            synchronized (documents) {
+                documents.add(JSONObject.fromObject(data));
+                ids.add(id);
+            }
+        }
+    };
+
+    private String uid;
+
+    private ElasticSearchSender createSender(String uid, @CheckForNull LogLimits limits) throws IOException, URISyntaxException {
+        this.uid = uid;
+        ElasticSearchRunConfiguration config = new ElasticSearchRunConfiguration(new URI("http://localhost:9200/index1/_doc"), null, null,
+                null, false, uid, JSONObject.fromObject("{}"), false, () -> access);
+        config.setCollapseRepeatedLines(true);
+        config.setLogLimits(limits);
+        return new ElasticSearchSender(null, config);
+    }
+
+    private static void println(PrintStream logger, String line, int times) {
+        for (int i = 0; i < times; i++) {
+            logger.print(line + "\n");
+        }
+    }
+
+    private int size() {
+        synchronized (documents) {
+            return documents.size();
+        }
+    }
+
+    private void assertLine(int index, String message, long seq, long repeatCount) {
+        JSONObject document = documents.get(index);
+        assertEquals(message, document.getString("message"));
+        assertEquals(seq, document.getLong("seq"));
+        assertEquals(repeatCount, document.has(RepeatedLine.REPEAT_COUNT_KEY) ? document.getLong(RepeatedLine.REPEAT_COUNT_KEY) : 0);
+        // the id is made of the uid, the stream id and the sequence number
+        assertTrue(ids.get(index).startsWith(uid + "-"));
+        assertTrue(ids.get(index).endsWith("-" + seq));
+    }
+
+    @Test
+    public void testRepetitionsAreSentBeforeOtherLine() throws Exception {
+        ElasticSearchSender sender = createSender("repeated-other-line", null);
+        PrintStream logger = sender.getLogger();
+        println(logger, "a", 3);
+        println(logger, "b", 1);
+
+        assertEquals(3, documents.size());
+        assertLine(0, "a", 0, 0);
+        assertLine(1, "a", 1, 2);
+        // the sequence numbers of the repetitions are skipped
+        assertLine(2, "b", 3, 0);
+
+        logger.close();
+        sender.close();
+        assertEquals(3, documents.size());
+    }
+
+    @Test
+    public void testRepetitionsAreSentOnClose() throws Exception {
+        ElasticSearchSender sender = createSender("repeated-close", null);
+        PrintStream logger = sender.getLogger();
+        println(logger, "a", 4);
+        assertEquals(1, documents.size());
+
+        logger.close();
+        sender.close();
+
+        assertEquals(2, documents.size());
+        assertLine(0, "a", 0, 0);
+        assertLine(1, "a", 1, 3);
+    }
+
+    @Test
+    public void testRepetitionsAreSentAfterLinger() throws Exception {
+        ElasticSearchSender sender = createSender("repeated-linger", null);
+        PrintStream logger = sender.getLogger();
+        println(logger, "a", 3);
+        for (int i = 0; i < 500 && size() < 2; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, size());
+        assertLine(1, "a", 1, 2);
+
+        // a repetition after the linger time starts a new count
+        println(logger, "a", 1);
+        println(logger, "b", 1);
+        assertEquals(4, size());
+        assertLine(2, "a", 3, 1);
+        assertLine(3, "b", 4, 0);
+        logger.close();
+        sender.close();
+    }
+
+    @Test
+    public void testProgressBarIsSentOnce() throws Exception {
+        ElasticSearchSender sender = createSender("progress-bar", null);
+        PrintStream logger = sender.getLogger();
+        logger.print("10%\r50%\r100%\n");
+        logger.close();
+        sender.close();
+
+        assertEquals(1, documents.size());
+        assertLine(0, "100%", 0, 0);
+        assertEquals(2, documents.get(0).getInt("rewrites"));
+    }
+
+    @Test
+    public void testRepetitionsCountAgainstLimits() throws Exception {
+        // "a" and its line break fit into the maximum five times
+        ElasticSearchSender sender = createSender("repeated-limits", new LogLimits(0, 0, 0, 0, 10));
+        PrintStream logger = sender.getLogger();
+        println(logger, "a", 10);
+        logger.close();
+        sender.close();
+
+        assertEquals(2, documents.size());
+        assertLine(0, "a", 0, 0);
+        // the repetitions exceed the maximum and are reported like other dropped lines
+        assertFalse(documents.get(1).has(RepeatedLine.REPEAT_COUNT_KEY));
+        assertEquals(9, documents.get(1).getLong("suppressedLines"));
+    }
+
+}
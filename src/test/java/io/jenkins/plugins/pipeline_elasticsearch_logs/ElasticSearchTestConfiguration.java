@@ -22,7 +22,7 @@ class ElasticSearchTestConfiguration extends ElasticSearchConfiguration {
     protected Supplier<ElasticSearchAccess> getAccessFactory() {
         return () -> new ElasticSearchAccess(null, null, null) {
             @Override
-            public void push(String data) throws IOException {
+            public void push(String data, String id, String routing) throws IOException {
                 Map<String, Object> map = JSONObject.fromObject(data);
                 receiver.accept(map);
             }
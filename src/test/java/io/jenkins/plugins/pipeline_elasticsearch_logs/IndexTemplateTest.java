@@ -0,0 +1,70 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class IndexTemplateTest {
+
+    private final Map<String, JSONObject> resources = new HashMap<>();
+
+    private final ElasticSearchAccess access = new ElasticSearchAccess(null, null, null) {
+        @Override
+        JSONObject getJson(String path) throws IOException {
+            return resources.get(path);
+        }
+
+        @Override
+        void putJson(String path, JSONObject resource) throws IOException {
+            resources.put(path, new JSONObject().element(path.substring(path.lastIndexOf('/') + 1), resource));
+        }
+    };
+
+    @Test
+    public void testMappings() {
+        JSONObject template = new IndexTemplate("jenkins", false).toJson();
+
+        JSONObject properties = template.getJSONObject("mappings").getJSONObject("properties");
+        assertEquals("keyword", properties.getJSONObject("uid").getString("type"));
+        assertEquals("keyword", properties.getJSONObject("eventType").getString("type"));
+        assertEquals("long", properties.getJSONObject("timestampMillis").getString("type"));
+        assertFalse(properties.getJSONObject("message").getBoolean("index"));
+        assertEquals("[\"jenkins\",\"jenkins-*\"]", template.getJSONArray("index_patterns").toString());
+    }
+
+    @Test
+    public void testInstall() throws IOException {
+        IndexTemplate template = new IndexTemplate("jenkins", true);
+        assertEquals("The index template pipeline-logs-jenkins is missing or outdated, "
+                + "it is installed when Jenkins starts and when the configuration is saved.", template.verify(access));
+
+        template.install(access);
+
+        assertTrue(resources.containsKey("/_template/pipeline-logs-jenkins"));
+        assertNull(template.verify(access));
+        // the message indexing changed
+        assertTrue(new IndexTemplate("jenkins", false).verify(access) != null);
+    }
+
+    @Test
+    public void testIndexWithoutTemplate() throws IOException {
+        IndexTemplate template = new IndexTemplate("jenkins", true);
+        template.install(access);
+        JSONObject uid = new JSONObject().element("mapping", new JSONObject().element("uid", new JSONObject().element("type", "text")));
+        resources.put("/jenkins/_mapping/field/uid",
+                new JSONObject().element("jenkins", new JSONObject().element("mappings", new JSONObject().element("uid", uid))));
+
+        assertEquals("The index jenkins was created without the index template pipeline-logs-jenkins, "
+                + "the template applies to the indices created from now on.", template.verify(access));
+    }
+
+}
@@ -8,9 +8,17 @@ import static io.jenkins.plugins.pipeline_elasticsearch_logs.testutils.ResourceU
 import static io.jenkins.plugins.pipeline_elasticsearch_logs.testutils.ResourceUtils.getTestPipeline;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.Assert;
@@ -25,6 +33,7 @@ import hudson.model.FreeStyleProject;
 import hudson.model.Result;
 import io.jenkins.plugins.pipeline_elasticsearch_logs.runid.DefaultRunIdProvider;
 import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 /**
  * The tests in this class are executed in a running Jenkins instance with different configurations
@@ -32,7 +41,7 @@ import net.sf.json.JSONArray;
  *
  * The expected entries sent to Elasticsearch are compared with the actual entries sent.
  * For this not an actual Elasticsearch instance is used but the {@link ElasticSearchAccessMock} is used
- * which overrrides the {@link ElasticSearchAccess#push(String)} method which normally sends the data to
+ * which overrrides the {@link ElasticSearchAccess#push(String, String, String)} method which normally sends the data to
  * Elasticsearch.
  */
 public class IntegrationTest {
@@ -127,6 +136,142 @@ public class IntegrationTest {
         assertMatchEntries(expectedLog, mockWriter.getEntries());
     }
 
+    @Test
+    public void testRoutingIsStoredWithTheBuild() throws Exception {
+        ElasticSearchAccessMock mockWriter = new ElasticSearchAccessMock(false);
+        configureElasticsearchPlugin(true, mockWriter);
+        ElasticSearchConfiguration config = ElasticSearchGlobalConfiguration.get().getElasticSearch();
+        WorkflowJob project = j.createProject(WorkflowJob.class);
+        project.setDefinition(new CpsFlowDefinition("echo 'routed'", true));
+
+        config.setRouteByRun(true);
+        WorkflowRun routed = j.buildAndAssertSuccess(project);
+        config.setRouteByRun(false);
+        WorkflowRun unrouted = j.buildAndAssertSuccess(project);
+        config.setRouteByRun(true);
+
+        // the logs are read the way they were written, not by the current option
+        Assert.assertEquals(config.getRunConfiguration(routed).getUid(), config.getRunConfiguration(routed).getRouting());
+        Assert.assertNull(config.getRunConfiguration(unrouted).getRouting());
+    }
+
+    @Test
+    public void testParallelEndEventsAreSentOnce() throws Exception {
+        ElasticSearchAccessMock mockWriter = new ElasticSearchAccessMock(false);
+        configureElasticsearchPlugin(true, mockWriter);
+        WorkflowRun build = runParallelPipeline();
+
+        assertEndEventsSentOnce(mockWriter.getEntries());
+
+        // the node joining the branches is preceded by the ends of both branches, notifying it again as a new head
+        // must not send their end events again
+        ElasticSearchGraphListener listener = new ElasticSearchGraphListener(ElasticSearchGlobalConfiguration.getRunConfiguration(build));
+        List<FlowNode> nodes = getNodes(build);
+        FlowNode join = nodes.stream().filter(node -> node.getParents().size() > 1).findFirst().get();
+        mockWriter.getEntries().clear();
+        for (FlowNode node : nodes) {
+            listener.onNewHead(node);
+            if (node == join) {
+                listener.onNewHead(node);
+            }
+        }
+
+        assertEndEventsSentOnce(mockWriter.getEntries());
+        Assert.assertTrue(listener.getSuppressedCount() > 0);
+    }
+
+    @Test
+    public void testAsyncGraphEventsAreSentBeforeTheBuildEnds() throws Exception {
+        ElasticSearchAccessMock mockWriter = new ElasticSearchAccessMock(false);
+        configureElasticsearchPlugin(true, mockWriter);
+        ElasticSearchGlobalConfiguration.get().getElasticSearch().setAsyncGraphEvents(true);
+
+        runParallelPipeline();
+
+        // the end of the flow does not wait for the events sent in the background
+        for (int i = 0; i < 500 && countEndEvents(mockWriter.getEntries()) < 6; i++) {
+            Thread.sleep(10);
+        }
+        assertEndEventsSentOnce(mockWriter.getEntries());
+    }
+
+    @Test
+    public void testParallelBranchOfNodes() throws Exception {
+        ElasticSearchAccessMock mockWriter = new ElasticSearchAccessMock(false);
+        configureElasticsearchPlugin(true, mockWriter);
+        WorkflowRun build = runParallelPipeline();
+
+        JSONObject first = getMessage(mockWriter.getEntries(), "in first");
+        JSONObject second = getMessage(mockWriter.getEntries(), "in second");
+        Assert.assertEquals("first", first.getString("parallelBranchName"));
+        Assert.assertEquals("second", second.getString("parallelBranchName"));
+        Assert.assertNotEquals(first.getString("parallelBranchId"), second.getString("parallelBranchId"));
+
+        // the contexts of the blocks are cached per flow execution until they are forgotten
+        FlowExecution execution = build.getExecution();
+        String branchId = first.getString("parallelBranchId");
+        NodeInfo.forgetExecution(execution);
+        Assert.assertFalse(NodeInfo.isCached(execution, branchId));
+        NodeInfo nodeInfo = new NodeInfo(execution.getNode(first.getString("flowNodeId")));
+        Assert.assertEquals("first", nodeInfo.parallelBranchName);
+        Assert.assertEquals(branchId, nodeInfo.parallelBranchId);
+        Assert.assertTrue(NodeInfo.isCached(execution, branchId));
+        NodeInfo.forgetExecution(execution);
+    }
+
+    private static JSONObject getMessage(List<String> entries, String message) {
+        for (String entry : entries) {
+            JSONObject json = JSONObject.fromObject(entry);
+            if ("nodeMessage".equals(json.optString("eventType")) && message.equals(json.optString("message"))) {
+                return json;
+            }
+        }
+        throw new AssertionError("not sent: " + message);
+    }
+
+    private WorkflowRun runParallelPipeline() throws Exception {
+        WorkflowJob project = j.createProject(WorkflowJob.class);
+        project.setDefinition(new CpsFlowDefinition("parallel first: { echo 'in first' }, second: { echo 'in second' }", true));
+        return j.buildAndAssertSuccess(project);
+    }
+
+    /**
+     * @return the nodes of the flow graph in the order they were created
+     */
+    private static List<FlowNode> getNodes(WorkflowRun build) {
+        List<FlowNode> nodes = new ArrayList<>(new DepthFirstScanner().allNodes(build.getExecution()));
+        nodes.sort(Comparator.comparingInt(node -> Integer.parseInt(node.getId())));
+        return nodes;
+    }
+
+    private static int countEndEvents(List<String> entries) {
+        int count = 0;
+        synchronized (entries) {
+            for (String entry : entries) {
+                String eventType = JSONObject.fromObject(entry).getString("eventType");
+                if (eventType.startsWith("flowGraph::") && eventType.endsWith("End")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void assertEndEventsSentOnce(List<String> entries) {
+        Set<String> endEvents = new HashSet<>();
+        int count = 0;
+        for (String entry : entries) {
+            JSONObject json = JSONObject.fromObject(entry);
+            String eventType = json.getString("eventType");
+            if (eventType.startsWith("flowGraph::") && eventType.endsWith("End")) {
+                Assert.assertTrue("sent twice: " + entry, endEvents.add(eventType + ":" + json.getString("flowNodeId")));
+                count++;
+            }
+        }
+        // the ends of both echo steps, both branches, the parallel step and the flow
+        Assert.assertEquals(6, count);
+    }
+
     private void configureElasticsearchPlugin(boolean activate, ElasticSearchAccessMock mockWriter) throws URISyntaxException {
         ElasticSearchGlobalConfiguration globalConfig = ElasticSearchGlobalConfiguration.get();
 
@@ -0,0 +1,68 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class JsonEncoderTest {
+
+    private static final byte[] A = JsonEncoder.name("a");
+    private static final byte[] B = JsonEncoder.name("b");
+
+    @Test
+    public void testFields() {
+        JsonEncoder encoder = new JsonEncoder();
+        encoder.startObject().field(A, "x").field(B, -42).startArray(JsonEncoder.name("c"));
+        encoder.startObject().field(A, 1).endObject().startObject().field(A, 2).endObject().endArray();
+        encoder.fields(new JsonEncoder().field(JsonEncoder.name("d"), (String) null).toByteArray());
+        encoder.endObject();
+
+        assertEquals("{\"a\":\"x\",\"b\":-42,\"c\":[{\"a\":1},{\"a\":2}],\"d\":null}", encoder.toString());
+
+        encoder.reset().startObject().field(A, Long.MAX_VALUE).endObject();
+        assertEquals("{\"a\":9223372036854775807}", encoder.toString());
+    }
+
+    @Test
+    public void testEscaping() {
+        String value = "quote \" backslash \\ tab \t newline \n control \u0001 umlaut \u00e4 euro \u20ac smiley \ud83d\ude00";
+        JsonEncoder encoder = new JsonEncoder();
+        encoder.startObject().field(A, value).endObject();
+        assertEquals(value, JSONObject.fromObject(encoder.toString()).getString("a"));
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        encoder.reset().startObject().field(A, bytes, 0, bytes.length).endObject();
+        assertEquals(value, JSONObject.fromObject(encoder.toString()).getString("a"));
+    }
+
+    @Test
+    public void testMalformedUtf8() {
+        byte[][] samples = { { 'a', (byte) 0xff, 'b' }, { 'a', (byte) 0xc3 }, { (byte) 0xe2, (byte) 0x82, 'c' },
+                { (byte) 0xed, (byte) 0xa0, (byte) 0x80 }, { (byte) 0xc0, (byte) 0xaf }, { (byte) 0xf0, (byte) 0x9f, (byte) 0x98 },
+                { (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, { (byte) 0xe0, (byte) 0x80, (byte) 0x80 } };
+        JsonEncoder encoder = new JsonEncoder();
+        for (byte[] sample : samples) {
+            encoder.reset().startObject().field(A, sample, 0, sample.length).endObject();
+            assertEquals(new String(sample, StandardCharsets.UTF_8), JSONObject.fromObject(encoder.toString()).getString("a"));
+        }
+    }
+
+    @Test
+    public void testTimestamp() {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
+        long[] samples = { 0, 1568206462711L, 951782400000L, 951868799999L, 4102444800000L, 1582934400001L };
+        JsonEncoder encoder = new JsonEncoder();
+        for (long millis : samples) {
+            encoder.reset().startObject().timestampField(A, millis).endObject();
+            assertEquals("{\"a\":\"" + formatter.format(Instant.ofEpochMilli(millis)) + "\"}", encoder.toString());
+        }
+    }
+
+}
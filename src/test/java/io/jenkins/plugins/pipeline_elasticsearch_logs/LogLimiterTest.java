@@ -0,0 +1,102 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import io.jenkins.plugins.pipeline_elasticsearch_logs.LogLimiter.Decision;
+
+public class LogLimiterTest {
+
+    private static int count(LogLimiter limiter, int lines, int bytes, Decision decision) {
+        int count = 0;
+        for (int i = 0; i < lines; i++) {
+            if (limiter.acquire(bytes) == decision) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testBuildLinesPerSecond() {
+        LogLimiter limiter = LogLimiter.get("lines", new LogLimits(10, 0, 0, 0, 0));
+
+        // the bucket holds the lines of one second
+        assertEquals(10, count(limiter, 15, 10, Decision.ACCEPTED));
+        assertEquals(Decision.RATE_LIMITED, limiter.acquire(10));
+    }
+
+    @Test
+    public void testBuildIsSharedByStreams() {
+        LogLimits limits = new LogLimits(0, 1000, 0, 0, 0);
+        LogLimiter first = LogLimiter.get("shared", limits);
+        LogLimiter second = LogLimiter.get("shared", limits);
+        LogLimiter otherBuild = LogLimiter.get("other", limits);
+
+        assertEquals(10, count(first, 10, 100, Decision.ACCEPTED));
+
+        assertEquals(Decision.RATE_LIMITED, second.acquire(100));
+        assertEquals(Decision.ACCEPTED, otherBuild.acquire(100));
+    }
+
+    @Test
+    public void testRemoveEndedBuild() {
+        LogLimits limits = new LogLimits(0, 0, 0, 0, 100);
+        assertEquals(Decision.ACCEPTED, LogLimiter.get("ended", limits).acquire(100));
+        assertEquals(Decision.MAX_BYTES_REACHED, LogLimiter.get("ended", limits).acquire(10));
+
+        LogLimiter.remove("ended");
+
+        assertEquals(Decision.ACCEPTED, LogLimiter.get("ended", limits).acquire(10));
+    }
+
+    @Test
+    public void testAgentLimitIsSharedByBuilds() {
+        LogLimits limits = new LogLimits(0, 0, 7, 0, 0);
+        LogLimiter first = LogLimiter.get("agent-1", limits);
+        LogLimiter second = LogLimiter.get("agent-2", limits);
+
+        assertEquals(4, count(first, 4, 10, Decision.ACCEPTED));
+        assertEquals(3, count(second, 4, 10, Decision.ACCEPTED));
+    }
+
+    @Test
+    public void testAgentLimitIsSharedByBuildsWithOtherLimits() {
+        LogLimiter first = LogLimiter.get("agent-other-1", new LogLimits(0, 0, 0, 50, 0));
+        assertEquals(5, count(first, 5, 10, Decision.ACCEPTED));
+
+        // a build of a job which overrides the build limits takes the tokens from the same bucket
+        LogLimiter second = LogLimiter.get("agent-other-2", new LogLimits(0, 1000, 0, 50, 100000));
+        assertEquals(Decision.RATE_LIMITED, second.acquire(10));
+    }
+
+    @Test
+    public void testRepetitionsCountAsLines() {
+        LogLimiter limiter = LogLimiter.get("repetitions", new LogLimits(0, 0, 0, 0, 1000));
+
+        assertEquals(Decision.ACCEPTED, limiter.acquire(9, 900));
+        assertEquals(Decision.MAX_BYTES_REACHED, limiter.acquire(2, 200));
+        assertEquals(Decision.MAX_BYTES_REACHED, limiter.acquire(10));
+    }
+
+    @Test
+    public void testLineLargerThanBucket() {
+        LogLimiter limiter = LogLimiter.get("large", new LogLimits(0, 100, 0, 0, 0));
+
+        assertEquals(Decision.ACCEPTED, limiter.acquire(500));
+        assertEquals(Decision.RATE_LIMITED, limiter.acquire(500));
+    }
+
+    @Test
+    public void testMaxBytesPerBuild() {
+        LogLimiter limiter = LogLimiter.get("max", new LogLimits(0, 0, 0, 0, 1000));
+
+        assertEquals(9, count(limiter, 9, 100, Decision.ACCEPTED));
+        assertEquals(Decision.MAX_BYTES_REACHED, limiter.acquire(200));
+        // a smaller line does not fit in anymore either
+        assertEquals(Decision.MAX_BYTES_REACHED, limiter.acquire(10));
+        assertEquals(Decision.MAX_BYTES_REACHED, LogLimiter.get("max", new LogLimits(0, 0, 0, 0, 1000)).acquire(10));
+    }
+
+}
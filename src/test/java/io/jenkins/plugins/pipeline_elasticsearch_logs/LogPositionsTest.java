@@ -0,0 +1,47 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class LogPositionsTest {
+
+    @Test
+    public void testPositions() {
+        LogPositions positions = LogPositions.of("uid-positions", null);
+        assertSame(positions, LogPositions.of("uid-positions", null));
+        assertNotSame(positions, LogPositions.of("uid-positions", "5"));
+
+        positions.put(120, new Object[] { 1000L, 1L, 7L });
+
+        assertArrayEquals(new Object[] { 1000L, 1L, 7L }, positions.get(120));
+        assertNull(positions.get(100));
+    }
+
+    @Test
+    public void testForget() {
+        LogPositions positions = LogPositions.of("uid-forget", "5");
+        positions.put(120, new Object[] { 1000L, 1L, 7L });
+
+        LogPositions.forget("uid-forget", "5");
+
+        assertNull(LogPositions.of("uid-forget", "5").get(120));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPositionIsForgotten() {
+        LogPositions positions = LogPositions.of("uid-lru", null);
+        for (long offset = 0; offset < 20; offset++) {
+            positions.put(offset, new Object[] { offset });
+            positions.get(0);
+        }
+
+        assertArrayEquals(new Object[] { 0L }, positions.get(0));
+        assertNull(positions.get(1));
+        assertArrayEquals(new Object[] { 19L }, positions.get(19));
+    }
+
+}
@@ -0,0 +1,136 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogRingBufferTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private LogRingBuffer createBuffer(OverflowPolicy policy) {
+        return new LogRingBuffer(1024, policy, tmp.getRoot());
+    }
+
+    private static void put(LogRingBuffer buffer, String record) throws IOException {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        buffer.put(bytes, 0, bytes.length);
+    }
+
+    private static List<String> drain(LogRingBuffer buffer) throws IOException {
+        List<String> records = new ArrayList<>();
+        buffer.drainTo((b, off, len) -> records.add(new String(b, off, len, StandardCharsets.UTF_8)), Integer.MAX_VALUE, Long.MAX_VALUE);
+        return records;
+    }
+
+    private static String record(int i) {
+        // 100 bytes including the header, so that 10 records fit into the buffer
+        return String.format("%096d", i);
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        LogRingBuffer buffer = createBuffer(OverflowPolicy.DROP_NEWEST);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            put(buffer, record(i));
+            expected.add(record(i));
+            if (i % 7 == 6) {
+                assertEquals(expected, drain(buffer));
+                expected.clear();
+            }
+        }
+        assertEquals(expected, drain(buffer));
+        assertEquals(0, buffer.getDroppedNewestCount());
+        assertEquals(100, buffer.getTakeCount());
+    }
+
+    @Test
+    public void testDropNewest() throws IOException {
+        LogRingBuffer buffer = createBuffer(OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 12; i++) {
+            put(buffer, record(i));
+        }
+        List<String> records = drain(buffer);
+        assertEquals(10, records.size());
+        assertEquals(record(9), records.get(9));
+        assertEquals(2, buffer.getDroppedNewestCount());
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        LogRingBuffer buffer = createBuffer(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 12; i++) {
+            put(buffer, record(i));
+        }
+        List<String> records = drain(buffer);
+        assertEquals(10, records.size());
+        assertEquals(record(2), records.get(0));
+        assertEquals(record(11), records.get(9));
+        assertEquals(2, buffer.getDroppedOldestCount());
+        assertEquals(12, buffer.getTakeCount());
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        LogRingBuffer buffer = createBuffer(OverflowPolicy.SPILL);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            put(buffer, record(i));
+            expected.add(record(i));
+        }
+        assertEquals(5, buffer.getSpilledCount());
+        assertEquals(expected, drain(buffer));
+        assertEquals(Arrays.asList(), drain(buffer));
+        assertEquals(15, buffer.getTakeCount());
+    }
+
+    @Test
+    public void testCloseDeletesSpillFile() throws IOException {
+        LogRingBuffer buffer = createBuffer(OverflowPolicy.SPILL);
+        for (int i = 0; i < 15; i++) {
+            put(buffer, record(i));
+        }
+        drain(buffer);
+        assertEquals(1, tmp.getRoot().list().length);
+
+        buffer.close();
+
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void testRecordLargerThanBuffer() throws IOException {
+        String large = String.format("%02000d", 1);
+        LogRingBuffer spilling = createBuffer(OverflowPolicy.SPILL);
+        put(spilling, record(0));
+        put(spilling, large);
+
+        assertFalse(spilling.isTooLarge(large.length()));
+        assertEquals(1, spilling.getSpilledCount());
+        assertEquals(0, spilling.getDroppedNewestCount());
+        assertEquals(Arrays.asList(record(0), large), drain(spilling));
+
+        LogRingBuffer blocking = createBuffer(OverflowPolicy.BLOCK);
+        assertTrue(blocking.isTooLarge(large.length()));
+        try {
+            put(blocking, large);
+            fail("a record which never fits must not be dropped silently");
+        } catch (IOException e) {
+            assertEquals(0, blocking.getDroppedNewestCount());
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class RepeatedLineTest {
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWriteRepeatedLine() throws IOException {
+        RepeatedLine repeated = new RepeatedLine(true);
+        byte[] line = "x \u001B[8mha:AAA=\u001B[0my\n".getBytes(StandardCharsets.UTF_8);
+        repeated.remember(line, line.length);
+        byte[] other = "x y\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(repeated.addIfRepeated(other, other.length, 999));
+        assertTrue(repeated.addIfRepeated(line, line.length, 1000));
+        assertTrue(repeated.addIfRepeated(line, line.length, 1002));
+        assertTrue(repeated.addIfRepeated(line, line.length, 1005));
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        repeated.writeTo(encoder);
+        JSONObject source = JSONObject.fromObject(encoder.endObject().toString());
+        StringWriter writer = new StringWriter();
+
+        ConsoleNotes.write(writer, source);
+
+        String expected = "x \u001B[8mha:AAA=\u001B[0my\n";
+        assertEquals(expected + expected + expected, writer.toString());
+        assertEquals(1000, repeated.getFirstMillis());
+        assertEquals(1005L, ((Number) source.get("lastTimestampMillis")).longValue());
+        assertEquals(writer.toString().getBytes(StandardCharsets.UTF_8).length, ((Number) source.get("logBytes")).intValue());
+        assertEquals(0, repeated.getCount());
+    }
+
+    @Test
+    public void testNothingRememberedIsNoRepetition() {
+        RepeatedLine repeated = new RepeatedLine(false);
+        byte[] empty = bytes("");
+
+        assertFalse(repeated.addIfRepeated(empty, 0, 1000));
+        assertEquals(-1, repeated.getLength());
+    }
+
+    @Test
+    public void testLineWithSamePrefixIsNoRepetition() {
+        RepeatedLine repeated = new RepeatedLine(false);
+        byte[] line = bytes("abc\n");
+        repeated.remember(line, line.length);
+
+        byte[] longer = bytes("abcd\n");
+        assertFalse(repeated.addIfRepeated(longer, longer.length, 1000));
+        byte[] sameLength = bytes("abd\n");
+        assertFalse(repeated.addIfRepeated(sameLength, sameLength.length, 1000));
+        assertEquals(0, repeated.getCount());
+        assertEquals(4, repeated.getLength());
+    }
+
+    @Test
+    public void testRememberLongLine() {
+        RepeatedLine repeated = new RepeatedLine(false);
+        byte[] line = bytes(String.format("%01000d\n", 1));
+        repeated.remember(line, line.length);
+
+        assertTrue(repeated.addIfRepeated(line.clone(), line.length, 1000));
+        assertEquals(1001, repeated.getLength());
+    }
+
+    @Test
+    public void testForget() {
+        RepeatedLine repeated = new RepeatedLine(false);
+        byte[] line = bytes("a\n");
+        repeated.remember(line, line.length);
+        assertTrue(repeated.addIfRepeated(line, line.length, 1000));
+
+        repeated.forget();
+
+        assertEquals(0, repeated.getCount());
+        assertFalse(repeated.addIfRepeated(line, line.length, 1001));
+    }
+
+    @Test
+    public void testDrop() {
+        RepeatedLine repeated = new RepeatedLine(false);
+        byte[] line = bytes("a\n");
+        repeated.remember(line, line.length);
+        assertTrue(repeated.addIfRepeated(line, line.length, 1000));
+
+        repeated.drop();
+
+        // the line is still remembered, the next repetition starts a new count
+        assertEquals(0, repeated.getCount());
+        assertTrue(repeated.addIfRepeated(line, line.length, 1002));
+        assertEquals(1, repeated.getCount());
+        assertEquals(1002, repeated.getFirstMillis());
+    }
+
+    @Test
+    public void testRemoveRewrites() {
+        byte[] line = "Progress 10%\rProgress 50%\rProgress 100%\r\n".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(2, RepeatedLine.countRewrites(line, line.length));
+        int len = RepeatedLine.removeRewrites(line, line.length);
+
+        assertEquals("Progress 100%\r\n", new String(line, 0, len, StandardCharsets.UTF_8));
+        assertEquals(0, RepeatedLine.countRewrites(line, len));
+        assertEquals(len, RepeatedLine.removeRewrites(line, len));
+    }
+
+    @Test
+    public void testRewriteWithoutLineBreak() {
+        byte[] line = bytes("10%\r20%");
+
+        assertEquals(1, RepeatedLine.countRewrites(line, line.length));
+        int len = RepeatedLine.removeRewrites(line, line.length);
+
+        assertEquals("20%", new String(line, 0, len, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWriteRewrites() {
+        JsonEncoder encoder = new JsonEncoder().startObject();
+        RepeatedLine.writeRewrites(encoder, 3);
+
+        assertEquals(3, JSONObject.fromObject(encoder.endObject().toString()).getInt("rewrites"));
+    }
+
+}
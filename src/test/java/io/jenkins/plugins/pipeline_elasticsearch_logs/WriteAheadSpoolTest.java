@@ -0,0 +1,183 @@
+package io.jenkins.plugins.pipeline_elasticsearch_logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadSpoolTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private WriteAheadSpool open() throws IOException {
+        // 300 bytes per segment, so that 3 records fit into a segment
+        return WriteAheadSpool.open(tmp.getRoot(), "test", 300);
+    }
+
+    private static void put(WriteAheadSpool spool, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            byte[] bytes = record(i).getBytes(StandardCharsets.UTF_8);
+            spool.put(bytes, 0, bytes.length);
+        }
+    }
+
+    private static List<String> drain(WriteAheadSpool spool, int maxRecords) throws IOException {
+        List<String> records = new ArrayList<>();
+        spool.drainTo((b, off, len) -> records.add(new String(b, off, len, StandardCharsets.UTF_8)), maxRecords, Long.MAX_VALUE);
+        return records;
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    private static String record(int i) {
+        // 100 bytes including the header
+        return String.format("%096d", i);
+    }
+
+    private static int countSegments(WriteAheadSpool spool) {
+        return spool.getDirectory().list((dir, name) -> name.startsWith("segment-")).length;
+    }
+
+    @Test
+    public void testCommit() throws IOException {
+        WriteAheadSpool spool = open();
+        put(spool, 0, 10);
+        assertEquals(4, countSegments(spool));
+
+        assertEquals(records(0, 4), drain(spool, 4));
+        spool.commit();
+        assertEquals(6, spool.size());
+        assertEquals(3, countSegments(spool));
+
+        assertEquals(records(4, 10), drain(spool, Integer.MAX_VALUE));
+        spool.commit();
+        assertTrue(spool.isEmpty());
+        assertEquals(1, countSegments(spool));
+        assertEquals(10, spool.getTakeCount());
+
+        put(spool, 10, 12);
+        assertEquals(records(10, 12), drain(spool, Integer.MAX_VALUE));
+        spool.close();
+    }
+
+    @Test
+    public void testRollback() throws IOException {
+        WriteAheadSpool spool = open();
+        put(spool, 0, 5);
+        assertEquals(records(0, 2), drain(spool, 2));
+        spool.commit();
+
+        assertEquals(records(2, 5), drain(spool, Integer.MAX_VALUE));
+        spool.rollback();
+        assertEquals(3, spool.size());
+        assertEquals(records(2, 5), drain(spool, Integer.MAX_VALUE));
+        spool.commit();
+        assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        WriteAheadSpool spool = open();
+        put(spool, 0, 5);
+        assertEquals(records(0, 4), drain(spool, 4));
+        spool.commit();
+        assertEquals(records(4, 5), drain(spool, Integer.MAX_VALUE));
+        spool.close();
+
+        spool = open();
+        assertEquals(1, spool.size());
+        put(spool, 5, 7);
+        assertEquals(records(4, 7), drain(spool, Integer.MAX_VALUE));
+        spool.close();
+    }
+
+    @Test
+    public void testDirectoryInUse() throws IOException {
+        WriteAheadSpool first = open();
+        WriteAheadSpool second = open();
+        assertNotEquals(first.getDirectory(), second.getDirectory());
+        assertEquals(Arrays.asList(new File(tmp.getRoot(), "test"), new File(tmp.getRoot(), "test-1")),
+                Arrays.asList(first.getDirectory(), second.getDirectory()));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testSiblingsAreMerged() throws IOException {
+        WriteAheadSpool first = open();
+        WriteAheadSpool second = open();
+        put(first, 0, 2);
+        put(second, 2, 7);
+        first.close();
+        second.close();
+
+        WriteAheadSpool spool = open();
+
+        assertEquals(new File(tmp.getRoot(), "test"), spool.getDirectory());
+        assertEquals(records(0, 7), drain(spool, Integer.MAX_VALUE));
+        spool.commit();
+        spool.close();
+        // the records were moved, they are not sent twice
+        spool = WriteAheadSpool.open(tmp.getRoot(), "test-1", 300);
+        assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        WriteAheadSpool spool = WriteAheadSpool.open(tmp.getRoot(), "test", 300, 250, OverflowPolicy.DROP_NEWEST);
+        put(spool, 0, 3);
+
+        assertEquals(2, spool.size());
+        assertEquals(1, spool.getDroppedNewestCount());
+        drain(spool, 1);
+        spool.commit();
+        put(spool, 3, 4);
+        assertEquals(records(1, 2), drain(spool, 1));
+        assertEquals(records(3, 4), drain(spool, 1));
+        spool.close();
+    }
+
+    @Test
+    public void testMaxBytesBlocks() throws Exception {
+        WriteAheadSpool spool = WriteAheadSpool.open(tmp.getRoot(), "test", 300, 250, OverflowPolicy.BLOCK);
+        put(spool, 0, 2);
+        Thread producer = new Thread(() -> {
+            try {
+                put(spool, 2, 3);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        drain(spool, 1);
+        spool.commit();
+        producer.join(10000);
+
+        assertEquals(1, spool.getBlockedCount());
+        assertEquals(records(1, 3), drain(spool, Integer.MAX_VALUE));
+        spool.close();
+    }
+
+}
@@ -23,8 +23,8 @@ public class JSONUtils {
     // That's the order we want the keys to have for
     // better readability of the test log resources.
     static final String[] PRETTYPRINT_KEY_ORDER = new String[] { "eventType", "step", "flowNodeId", "startId", "predecessors", "message",
-            "displayName", "result", "errorMessage", "stageId", "stageName", "duration", "agent", "annotations", "timestamp",
-            "timestampMillis", "runId", "uid" };
+            "logBytes", "displayName", "result", "errorMessage", "stageId", "stageName", "duration", "agent", "annotations", "seq",
+            "streamId", "timestamp", "timestampMillis", "runId", "uid" };
 
     @SuppressWarnings("serial")
     static final Map<String, String> DEFAULT_REPLACE_MAP = new HashMap<String, String>() {
@@ -35,6 +35,8 @@ public class JSONUtils {
             put("timestamp", ANY);
             put("uid", ANY);
             put("annotations", ANY);
+            put("seq", ANY);
+            put("streamId", ANY);
         }
     };
 